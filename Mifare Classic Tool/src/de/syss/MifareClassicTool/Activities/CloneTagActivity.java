@@ -0,0 +1,338 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool.Activities;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Environment;
+import android.os.Handler;
+import android.util.SparseArray;
+import android.view.WindowManager;
+import android.widget.TextView;
+import android.widget.Toast;
+import de.syss.MifareClassicTool.Common;
+import de.syss.MifareClassicTool.KeyDictionary;
+import de.syss.MifareClassicTool.KeyStatistics;
+import de.syss.MifareClassicTool.MCReader;
+import de.syss.MifareClassicTool.R;
+import de.syss.MifareClassicTool.WriteJournal;
+import de.syss.MifareClassicTool.WritePlan;
+
+/**
+ * Clone a tag to another tag in one go. The source tag is mapped and read
+ * with the {@link CreateKeyMapActivity}. Its data and key map are kept in
+ * memory (no dump file). Then every new tag is treated as target:
+ * its keys are mapped with the keys of the source tag first (see
+ * {@link MCReader#setSeedKeyMap(SparseArray)}) and only the missing keys
+ * (that are needed to write the data, see
+ * {@link MCReader#setMappingGoal(MCReader.MappingGoal, HashMap)})
+ * are searched in the chosen key files. After that, the data is written
+ * with a {@link WritePlan}. The manufacturer block will never be written.
+ */
+public class CloneTagActivity extends BasicActivity {
+
+    private final static int KEY_MAP_CREATOR = 1;
+
+    private Handler mHandler = new Handler();
+    private TextView mStatus;
+    private TextView mResult;
+    private HashMap<Integer, HashMap<Integer, byte[]>> mDump;
+    private HashMap<Integer, int[]> mDumpPos;
+    private int mBlockCount;
+    private SparseArray<byte[][]> mSourceKeyMap;
+    private KeyDictionary mKeyDictionary;
+    private KeyStatistics mKeyStatistics;
+    private byte[] mSourceUID;
+    private WriteJournal mJournal;
+    private boolean mIsWriting;
+
+    /**
+     * Check for external storage and show the {@link CreateKeyMapActivity}
+     * to map and read the source tag.
+     */
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_clone_tag);
+        mStatus = (TextView) findViewById(R.id.textViewCloneTagStatus);
+        mResult = (TextView) findViewById(R.id.textViewCloneTagResult);
+
+        if (!Common.isExternalStorageWritableErrorToast(this)) {
+            finish();
+            return;
+        }
+
+        mJournal = new WriteJournal(new File(
+                Environment.getExternalStoragePublicDirectory(
+                Common.HOME_DIR) + Common.WRITE_JOURNALS_DIR));
+        Intent intent = new Intent(this, CreateKeyMapActivity.class);
+        intent.putExtra(CreateKeyMapActivity.EXTRA_KEYS_DIR,
+                Environment.getExternalStoragePublicDirectory(
+                        Common.HOME_DIR) + Common.KEYS_DIR);
+        intent.putExtra(CreateKeyMapActivity.EXTRA_BUTTON_TEXT,
+                getString(R.string.action_create_key_map_and_read));
+        intent.putExtra(CreateKeyMapActivity.EXTRA_READ_TAG, true);
+        startActivityForResult(intent, KEY_MAP_CREATOR);
+    }
+
+    /**
+     * Checks the result code of the key mapping process. If the process
+     * was successful, the data (read while mapping) and the key map of the
+     * source tag are kept and the activity waits for the target tag.
+     */
+    @Override
+    public void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+
+        switch(requestCode) {
+        case KEY_MAP_CREATOR:
+            if (resultCode != Activity.RESULT_OK) {
+                // Error.
+                if (resultCode == 4) {
+                    Toast.makeText(this, R.string.info_no_key_found,
+                            Toast.LENGTH_LONG).show();
+                }
+                finish();
+                return;
+            }
+            SparseArray<String[]> rawDump = Common.getRawDump();
+            HashMap<Integer, HashMap<Integer, byte[]>> dump = null;
+            if (rawDump != null) {
+                dump = Common.rawDumpToBlocks(rawDump);
+            }
+            if (dump != null && dump.get(0) != null) {
+                // Never write the manufacturer block.
+                dump.get(0).remove(0);
+                if (dump.get(0).size() == 0) {
+                    dump.remove(0);
+                }
+            }
+            if (dump == null || dump.size() == 0) {
+                // Error. Nothing read.
+                Toast.makeText(this, R.string.info_none_key_valid_for_reading,
+                        Toast.LENGTH_LONG).show();
+                finish();
+                return;
+            }
+            mDump = dump;
+            mSourceKeyMap = Common.getKeyMap();
+            mSourceUID = Common.getUID();
+
+            // The positions of all blocks (the same for every target).
+            mDumpPos = new HashMap<Integer, int[]>(mDump.size());
+            mBlockCount = 0;
+            for (int sector : mDump.keySet()) {
+                int i = 0;
+                int[] blocks = new int[mDump.get(sector).size()];
+                for (int block : mDump.get(sector).keySet()) {
+                    blocks[i++] = block;
+                }
+                mDumpPos.put(sector, blocks);
+                mBlockCount += blocks.length;
+            }
+
+            // Load the key files (for the keys that are not the
+            // same as on the source tag).
+            String[] paths = data.getStringArrayExtra(
+                    CreateKeyMapActivity.EXTRA_KEY_FILES);
+            File[] keyFiles = new File[paths.length];
+            for (int i = 0; i < paths.length; i++) {
+                keyFiles[i] = new File(paths[i]);
+            }
+            try {
+                mKeyDictionary = MCReader.loadKeyFiles(keyFiles);
+            } catch (OutOfMemoryError e) {
+                // Error. Too many keys (out of memory).
+                // Only the keys of the source tag will be used.
+                Toast.makeText(this, R.string.info_to_many_keys,
+                        Toast.LENGTH_LONG).show();
+            }
+            // Check the keys that were found most often first.
+            mKeyStatistics = new KeyStatistics(new File(
+                    Environment.getExternalStoragePublicDirectory(
+                    Common.HOME_DIR) + Common.KEY_STATISTICS_FILE));
+            mKeyStatistics.rank(mKeyDictionary);
+            mStatus.setText(R.string.text_clone_tag_wait_for_target);
+            break;
+        }
+    }
+
+    /**
+     * Save the key hit statistics (see {@link KeyStatistics#save()})
+     * in the background. They are only kept in memory while
+     * cloning tags.
+     */
+    @Override
+    public void onPause() {
+        super.onPause();
+        if (mKeyStatistics != null) {
+            final KeyStatistics statistics = mKeyStatistics;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    statistics.save();
+                }
+            }).start();
+        }
+    }
+
+    /**
+     * Write the data of the source tag to every new tag (if there is not
+     * already a tag being written). The source tag itself will be ignored.
+     * Before the source tag was read, new Intents will
+     * be handled like in every other Activity.
+     * @see BasicActivity#onNewIntent(Intent)
+     */
+    @Override
+    public void onNewIntent(Intent intent) {
+        if (mDump == null) {
+            super.onNewIntent(intent);
+            return;
+        }
+        if (mIsWriting) {
+            // Still writing the last tag.
+            return;
+        }
+        int typeCheck = Common.treatAsNewTag(intent, this, false);
+        if (typeCheck != 0) {
+            return;
+        }
+        if (Arrays.equals(mSourceUID, Common.getUID())) {
+            Toast.makeText(this, R.string.info_clone_tag_is_source,
+                    Toast.LENGTH_LONG).show();
+            return;
+        }
+        MCReader reader = Common.checkForTagAndCreateReader(this);
+        if (reader != null) {
+            cloneToTag(reader);
+        }
+    }
+
+    /**
+     * Start a worker thread that maps the keys of the target tag and writes
+     * the data of the source tag to it (see {@link #writeClone(MCReader,
+     * String)}). The result is shown afterwards.
+     * @param reader A connected {@link MCReader} of the target tag.
+     */
+    private void cloneToTag(final MCReader reader) {
+        mIsWriting = true;
+        getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+        mStatus.setText(R.string.text_clone_tag_writing);
+        final String uid = Common.byte2HexString(Common.getUID());
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final int[] result = writeClone(reader, uid);
+                reader.close();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        int text;
+                        switch (result[0]) {
+                        case 0:
+                            text = R.string.text_mass_clone_ok;
+                            break;
+                        case 1:
+                            text = R.string.info_no_key_found;
+                            break;
+                        case 2:
+                            text = R.string.info_check_ac_error;
+                            break;
+                        default:
+                            text = R.string.text_mass_clone_write_error;
+                        }
+                        String skipped = "";
+                        if (result[2] > 0) {
+                            skipped = "\n" + getString(
+                                    R.string.text_clone_tag_not_writable)
+                                    + " " + result[2];
+                        }
+                        mResult.setText(uid + ": " + getString(text) + "\n"
+                                + getString(R.string.text_clone_tag_written)
+                                + " " + result[1] + "/" + mBlockCount
+                                + skipped);
+                        mStatus.setText(
+                                R.string.text_clone_tag_wait_for_target);
+                        getWindow().clearFlags(
+                                WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+                        mIsWriting = false;
+                    }
+                });
+            }
+        }).start();
+    }
+
+    /**
+     * Map the keys of the target tag (keys of the source tag first) and
+     * write all blocks that are writable with the found keys.
+     * @param reader A connected {@link MCReader} of the target tag.
+     * @param uid The UID of the target tag.
+     * @return An array with the result code, the number of written
+     * blocks (also if writing failed) and the number of blocks that were
+     * skipped because they are not writable with the found keys (or not
+     * on the target tag). The result codes are:<br />
+     * <ul>
+     * <li>0 - Everything went fine.</li>
+     * <li>1 - No keys found.</li>
+     * <li>2 - Error while checking the Access Conditions.</li>
+     * <li>3 - Error while writing.</li>
+     * </ul>
+     */
+    private int[] writeClone(MCReader reader, String uid) {
+        // Only map the sectors of the dump (that are on the target tag).
+        BitSet sectors = new BitSet();
+        for (int sector : mDump.keySet()) {
+            if (sector < reader.getSectorCount()) {
+                sectors.set(sector);
+            }
+        }
+        int last = sectors.length() - 1;
+        reader.setKeyDictionary(mKeyDictionary);
+        reader.setSeedKeyMap(mSourceKeyMap);
+        reader.setMappingGoal(MCReader.MappingGoal.WriteBlocks, mDumpPos);
+        if (!reader.setMappingSectors(sectors)) {
+            return new int[] {1, 0, 0};
+        }
+        int status;
+        do {
+            status = reader.buildNextKeyMapPart();
+        } while (status != -1 && status < last);
+        SparseArray<byte[][]> keyMap = reader.getKeyMap();
+        mKeyStatistics.add(keyMap);
+        if (status == -1 || keyMap == null || keyMap.size() == 0) {
+            return new int[] {1, 0, 0};
+        }
+
+        HashMap<Integer, HashMap<Integer, Integer>> writeOnPos =
+                reader.isWritableOnPositions(mDumpPos, keyMap);
+        if (writeOnPos == null) {
+            return new int[] {2, 0, 0};
+        }
+        WritePlan plan = new WritePlan(writeOnPos, mDump, keyMap);
+        int skipped = mBlockCount - plan.getSteps().size();
+        int code = (plan.execute(reader, mJournal, uid) != 0) ? 3 : 0;
+        return new int[] {code, plan.getWrittenCount(), skipped};
+    }
+}
@@ -21,17 +21,25 @@ package de.syss.MifareClassicTool.Activities;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.Handler;
 import android.text.InputFilter;
 import android.text.InputType;
 import android.text.TextUtils.TruncateAt;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.Gravity;
 import android.view.View;
 import android.view.WindowManager;
@@ -43,6 +51,12 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 import de.syss.MifareClassicTool.Common;
+import de.syss.MifareClassicTool.KeyDictionary;
+import de.syss.MifareClassicTool.KeyHarvester;
+import de.syss.MifareClassicTool.KeyMapCache;
+import de.syss.MifareClassicTool.KeyPredictor;
+import de.syss.MifareClassicTool.KeyStatistics;
+import de.syss.MifareClassicTool.KeyTierSettings;
 import de.syss.MifareClassicTool.MCReader;
 import de.syss.MifareClassicTool.R;
 
@@ -53,7 +67,10 @@ import de.syss.MifareClassicTool.R;
  * The result codes are:
  * <ul>
  * <li>{@link Activity#RESULT_OK} - Everything is O.K. The key map can be
- * retrieved by calling {@link Common#getKeyMap()}.</li>
+ * retrieved by calling {@link Common#getKeyMap()}. The used key files
+ * are in the result Intent ({@link #EXTRA_KEY_FILES}). If the tag was read
+ * while mapping ({@link #EXTRA_READ_TAG}), the tag data can be retrieved by
+ * calling {@link Common#getRawDump()}.</li>
  * <li>1 - Directory from {@link #EXTRA_KEYS_DIR} does not
  * exist.</li>
  * <li>2 - No directory specified in Intent
@@ -92,6 +109,50 @@ public class CreateKeyMapActivity extends BasicActivity {
      */
     public final static String EXTRA_SECTOR_CHOOSER_TO =
             "de.syss.MifareClassicTool.Activity.SECTOR_CHOOSER_TO";
+    /**
+     * The sectors for the key mapping process as int[] (e.g. only the
+     * sectors of a dump). The sectors do not have to be contiguous.
+     * If set, the sector chooser is disabled and
+     * {@link #EXTRA_SECTOR_CHOOSER_FROM} and
+     * {@link #EXTRA_SECTOR_CHOOSER_TO} are ignored. Optional.
+     * @see MCReader#setMappingSectors(BitSet)
+     */
+    public final static String EXTRA_SECTORS =
+            "de.syss.MifareClassicTool.Activity.SECTORS";
+    /**
+     * A boolean value to enable or disable (default) reading the tag
+     * while creating the key map. If enabled, the tag data can be retrieved
+     * by calling {@link Common#getRawDump()}. Optional.
+     * @see MCReader#setReadWhileMapping(boolean)
+     */
+    public final static String EXTRA_READ_TAG =
+            "de.syss.MifareClassicTool.Activity.READ_TAG";
+    /**
+     * Keys that will be tried first (before the cached keys and the
+     * key files), e.g. the keys of a dump that will be written to the tag.
+     * This is a String[] with one entry per sector (index = sector):
+     * key A and key B as hex ({@link MCReader#NO_KEY} if unknown) or
+     * "null" if there are no keys for the sector. Optional.
+     * @see MCReader#setSeedKeyMap(SparseArray)
+     */
+    public final static String EXTRA_SEED_KEYS =
+            "de.syss.MifareClassicTool.Activity.SEED_KEYS";
+    /**
+     * The goal of the key mapping as String (name of a
+     * {@link MCReader.MappingGoal}). If there is a goal, only the keys
+     * needed for it are searched. Optional.
+     * @see MCReader#setMappingGoal(MCReader.MappingGoal, HashMap)
+     */
+    public final static String EXTRA_MAPPING_GOAL =
+            "de.syss.MifareClassicTool.Activity.MAPPING_GOAL";
+    /**
+     * The blocks to write for the mapping goal
+     * {@link MCReader.MappingGoal#WriteBlocks} as HashMap<Integer, int[]>
+     * (key = sector, value = blocks). Optional.
+     * @see #EXTRA_MAPPING_GOAL
+     */
+    public final static String EXTRA_MAPPING_GOAL_BLOCKS =
+            "de.syss.MifareClassicTool.Activity.MAPPING_GOAL_BLOCKS";
     /**
      * The title of the activity. Optional.
      * e.g. "Map Keys to Sectors"
@@ -109,6 +170,38 @@ public class CreateKeyMapActivity extends BasicActivity {
     // For later use.
 //    public final static String EXTRA_KEY_MAP =
 //            "de.syss.MifareClassicTool.Activity.KEY_MAP";
+    /**
+     * The paths (String[]) of the key files the key map was created with
+     * (in the order they were used: the order of the user or, by default,
+     * best hit rate first, then smallest first).
+     * This is in the result Intent if the result code is
+     * {@link Activity#RESULT_OK}.
+     */
+    public final static String EXTRA_KEY_FILES =
+            "de.syss.MifareClassicTool.Activity.KEY_FILES";
+    /**
+     * The key file every found key was found in (int[]): index
+     * sector * 2 is key A, sector * 2 + 1 is key B and the value is the
+     * index of the key file in {@link #EXTRA_KEY_FILES} (-1 if the key was
+     * not found or was not found in a key file).
+     * This is in the result Intent if the result code is
+     * {@link Activity#RESULT_OK}.
+     * @see MCReader#getKeyTiers(int)
+     */
+    public final static String EXTRA_KEY_TIERS =
+            "de.syss.MifareClassicTool.Activity.KEY_TIERS";
+    /**
+     * The keys that were not found although all key files were searched
+     * (boolean[]): index sector * 2 is key A, sector * 2 + 1 is key B.
+     * Keys that were not found for other reasons (mapping stopped, time
+     * budget used up) are false, because they might still be in
+     * the key files.
+     * This is in the result Intent if the result code is
+     * {@link Activity#RESULT_OK}.
+     * @see MCReader#getExhaustedKeys(int)
+     */
+    public final static String EXTRA_EXHAUSTED_KEYS =
+            "de.syss.MifareClassicTool.Activity.EXHAUSTED_KEYS";
 
 
     // Sector count of the biggest Mifare Classic tag (4K Tag)
@@ -127,24 +220,38 @@ public class CreateKeyMapActivity extends BasicActivity {
     private TextView mSectorRange;
     private Button mChangeSectorRange;
     private Handler mHandler = new Handler();
+    private ExecutorService mHarvester;
     private int mProgressStatus;
     private ProgressBar mProgressBar;
     private boolean mIsCreatingKeyMap;
+    private boolean mUsePartialKeyMap;
     private String mKeyDirPath;
     private int mFirstSector;
     private int mLastSector;
+    private BitSet mSectors;
+    private int mProgress;
+    private KeyMapCache mKeyMapCache;
+    private KeyStatistics mKeyStatistics;
+    private String mTagId;
+    private String mDictionaryId;
+    private File[] mKeyFiles;
+    private KeyTierSettings mTierSettings;
+    private boolean mIsUserOrder;
 
     /**
-     * Set layout, set the mapping range
+     * Set layout, set the mapping range, load the
+     * {@link KeyTierSettings} of the last mapping
      * and initialize some member variables.
      * @see #EXTRA_SECTOR_CHOOSER
      * @see #EXTRA_SECTOR_CHOOSER_FROM
      * @see #EXTRA_SECTOR_CHOOSER_TO
+     * @see #EXTRA_SECTORS
      */
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_create_key_map);
+        mHarvester = Executors.newSingleThreadExecutor();
         mCreateKeyMap = (Button) findViewById(R.id.buttonCreateKeyMap);
         mChangeSectorRange = (Button) findViewById(
                 R.id.buttonCreateKeyMapChangeRange);
@@ -152,6 +259,10 @@ public class CreateKeyMapActivity extends BasicActivity {
         mKeyFilesGroup = (LinearLayout) findViewById(
                 R.id.LinearLayoutCreateKeyMapKeyFiles);
         mProgressBar = (ProgressBar) findViewById(R.id.progressBarCreateKeyMap);
+        mTierSettings = new KeyTierSettings(new File(
+                Environment.getExternalStoragePublicDirectory(
+                Common.HOME_DIR) + Common.KEY_TIERS_FILE));
+        mIsUserOrder = mTierSettings.isUserOrder();
 
         // Init. sector range.
         Intent intent = getIntent();
@@ -173,6 +284,25 @@ public class CreateKeyMapActivity extends BasicActivity {
         if (custom) {
             mSectorRange.setText((from) + " - " + (to));
         }
+        int[] sectors = intent.getIntArrayExtra(EXTRA_SECTORS);
+        if (sectors != null && sectors.length > 0) {
+            mSectors = new BitSet();
+            StringBuilder text = new StringBuilder();
+            for (int sector : sectors) {
+                if (sector >= 0) {
+                    mSectors.set(sector);
+                }
+            }
+            for (int i = mSectors.nextSetBit(0); i != -1;
+                    i = mSectors.nextSetBit(i + 1)) {
+                if (text.length() > 0) {
+                    text.append(", ");
+                }
+                text.append(i);
+            }
+            mSectorRange.setText(text);
+            mChangeSectorRange.setEnabled(false);
+        }
 
         // Init. title and button text.
         if (intent.hasExtra(EXTRA_TITLE)) {
@@ -196,8 +326,24 @@ public class CreateKeyMapActivity extends BasicActivity {
     }
 
     /**
-     * List files from the {@link #EXTRA_KEYS_DIR}.
-     * Also restore the last marked key file (if there was one).
+     * Stop the background harvester. A harvest that is already running
+     * will still be finished.
+     */
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mHarvester.shutdown();
+    }
+
+    /**
+     * List files from the {@link #EXTRA_KEYS_DIR}. After that, the keys
+     * of new dumps are added to the harvested key file in the background
+     * (see {@link Common#getKeyHarvester()}). Mapping does not wait for
+     * the harvest (keys harvested later are used by the next mapping).
+     * If the harvested key file was created, the key files are
+     * listed again.
+     * The order, the checked state and the budgets of the key files are
+     * restored from the last mapping (see {@link KeyTierSettings}).
      */
     @Override
     public void onStart() {
@@ -223,14 +369,194 @@ public class CreateKeyMapActivity extends BasicActivity {
 
         // List key files.
         mKeyDirPath = dir.getPath();
-        File[] keyFiles = dir.listFiles();
-        Arrays.sort(keyFiles);
+        listKeyFiles();
+
+        // Harvest the keys of new dumps into the harvested key file
+        // (in the background, this reads all new dumps).
+        final File dumpsDir = new File(
+                Environment.getExternalStoragePublicDirectory(
+                Common.HOME_DIR) + Common.DUMPS_DIR);
+        final File harvestedFile = new File(dir, Common.HARVESTED_KEYS);
+        final boolean isListed = harvestedFile.exists();
+        final KeyHarvester harvester = Common.getKeyHarvester();
+        mHarvester.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean outOfMemory = false;
+                try {
+                    int newKeys = harvester.harvestDir(dumpsDir);
+                    Log.d(LOG_TAG, "Harvested " + newKeys
+                            + " new keys from dumps.");
+                } catch (OutOfMemoryError e) {
+                    outOfMemory = true;
+                }
+                final boolean tooManyKeys = outOfMemory;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (tooManyKeys) {
+                            // Error. Too many keys (out of memory).
+                            Toast.makeText(CreateKeyMapActivity.this,
+                                    R.string.info_to_many_keys,
+                                    Toast.LENGTH_LONG).show();
+                        }
+                        if (!isListed && harvestedFile.exists()) {
+                            // The harvested key file is new.
+                            listKeyFiles();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * List the files of {@link #mKeyDirPath}. Every key file is a row with
+     * a move up button, a check box and its budget (keys and seconds per
+     * sector, see {@link MCReader#setKeyFileTiers(File[], int[], long[],
+     * android.content.Context)}). Key files that are already listed keep
+     * their settings, the others get the settings of the last mapping
+     * (see {@link KeyTierSettings}). If the user has not ordered the
+     * key files, they are listed by size (smallest first). Otherwise
+     * they keep their order and new key files are added at the end.
+     */
+    private void listKeyFiles() {
+        File[] keyFiles = new File(mKeyDirPath).listFiles();
+        if (keyFiles == null) {
+            return;
+        }
+        if (mKeyFilesGroup.getChildCount() > 0) {
+            mTierSettings.set(getTierSettings(), mIsUserOrder);
+        }
+        Arrays.sort(keyFiles, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long diff = lhs.length() - rhs.length();
+                return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+            }
+        });
+        ArrayList<String> names = new ArrayList<String>();
+        if (mIsUserOrder) {
+            for (KeyTierSettings.Tier tier : mTierSettings.getTiers()) {
+                if (new File(mKeyDirPath, tier.getName()).isFile()) {
+                    names.add(tier.getName());
+                }
+            }
+        }
+        for (File f : keyFiles) {
+            if (f.isFile() && !names.contains(f.getName())) {
+                names.add(f.getName());
+            }
+        }
         mKeyFilesGroup.removeAllViews();
-        for(File f : keyFiles) {
-            CheckBox c = new CheckBox(this);
-            c.setText(f.getName());
-            mKeyFilesGroup.addView(c);
+        for (String name : names) {
+            addKeyFile(name, mTierSettings.getTier(name));
+        }
+    }
+
+    /**
+     * Add a key file row to {@link #mKeyFilesGroup} (see
+     * {@link #listKeyFiles()}).
+     * @param name The name of the key file.
+     * @param tier The settings of the key file or "null" if there
+     * are none (not checked, no limits).
+     */
+    private void addKeyFile(String name, KeyTierSettings.Tier tier) {
+        LinearLayout row = new LinearLayout(this);
+        row.setGravity(Gravity.CENTER_VERTICAL);
+        Button up = new Button(this, null, android.R.attr.buttonStyleSmall);
+        up.setText(R.string.action_move_up);
+        up.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                View row = (View) v.getParent();
+                int i = mKeyFilesGroup.indexOfChild(row);
+                if (i > 0) {
+                    mKeyFilesGroup.removeViewAt(i);
+                    mKeyFilesGroup.addView(row, i - 1);
+                    mIsUserOrder = true;
+                }
+            }
+        });
+        CheckBox c = new CheckBox(this);
+        c.setText(name);
+        c.setChecked(tier != null && tier.isChecked());
+        row.addView(up);
+        row.addView(c, new LinearLayout.LayoutParams(
+                0, LinearLayout.LayoutParams.WRAP_CONTENT, 1));
+        row.addView(createBudgetField(R.string.hint_key_budget, 7,
+                (tier != null) ? tier.getMaxKeys() : 0));
+        row.addView(createBudgetField(R.string.hint_time_budget, 5,
+                (tier != null) ? tier.getMaxSeconds() : 0));
+        mKeyFilesGroup.addView(row);
+    }
+
+    /**
+     * Create a text field for a budget of a key file.
+     * @param hint The hint (unit) of the budget.
+     * @param maxLength The maximum number of digits.
+     * @param value The budget (0 = no limit, the field will be empty).
+     * @return The text field.
+     */
+    private EditText createBudgetField(int hint, int maxLength, int value) {
+        EditText budget = new EditText(this);
+        budget.setHint(hint);
+        budget.setInputType(InputType.TYPE_CLASS_NUMBER);
+        budget.setSingleLine();
+        budget.setMinimumWidth(90);
+        budget.setFilters(new InputFilter[] {
+                new InputFilter.LengthFilter(maxLength)});
+        budget.setGravity(Gravity.CENTER_HORIZONTAL);
+        if (value > 0) {
+            budget.setText(String.valueOf(value));
+        }
+        return budget;
+    }
+
+    /**
+     * Get the settings of the listed key files (see
+     * {@link #listKeyFiles()}).
+     * @return The settings of all key files in the listed order.
+     */
+    private List<KeyTierSettings.Tier> getTierSettings() {
+        ArrayList<KeyTierSettings.Tier> ret =
+                new ArrayList<KeyTierSettings.Tier>();
+        for (int i = 0; i < mKeyFilesGroup.getChildCount(); i++) {
+            LinearLayout row = (LinearLayout) mKeyFilesGroup.getChildAt(i);
+            CheckBox c = (CheckBox) row.getChildAt(1);
+            ret.add(new KeyTierSettings.Tier(c.getText().toString(),
+                    c.isChecked(), getBudget((EditText) row.getChildAt(2)),
+                    getBudget((EditText) row.getChildAt(3))));
         }
+        return ret;
+    }
+
+    /**
+     * Get a budget of a key file from its text field.
+     * @param budget The text field.
+     * @return The budget or 0 if there is no limit.
+     */
+    private static int getBudget(EditText budget) {
+        String text = budget.getText().toString();
+        if (text.equals("")) {
+            return 0;
+        }
+        try {
+            return Math.max(Integer.parseInt(text), 0);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * List the key files in the default order again (smallest first and
+     * best hit rate first when mapping).
+     * @param view The View object that triggered the method
+     * (in this case the default order button).
+     */
+    public void onDefaultOrder(View view) {
+        mIsUserOrder = false;
+        listKeyFiles();
     }
 
     /**
@@ -257,14 +583,15 @@ public class CreateKeyMapActivity extends BasicActivity {
      */
     private void selectKeyFiles(boolean allOrNone) {
         for (int i = 0; i < mKeyFilesGroup.getChildCount(); i++) {
-            CheckBox c = (CheckBox) mKeyFilesGroup.getChildAt(i);
-            c.setChecked(allOrNone);
+            LinearLayout row = (LinearLayout) mKeyFilesGroup.getChildAt(i);
+            ((CheckBox) row.getChildAt(1)).setChecked(allOrNone);
         }
     }
 
     /**
      * Inform the worker thread from {@link #createKeyMap(MCReader)}
-     * to stop creating the key map. If the thread is already
+     * to stop creating the key map. The keys found so far will be used
+     * (if there are any). If the thread is already
      * informed or does not exists this button will finish the activity.
      * @param view The View object that triggered the method
      * (in this case the cancel button).
@@ -273,6 +600,7 @@ public class CreateKeyMapActivity extends BasicActivity {
     public void onCancelCreateKeyMap(View view) {
         if (mIsCreatingKeyMap == true) {
             mIsCreatingKeyMap = false;
+            mUsePartialKeyMap = true;
         } else {
             finish();
         }
@@ -289,84 +617,187 @@ public class CreateKeyMapActivity extends BasicActivity {
      * @see #keyMapCreated(MCReader)
      */
     public void onCreateKeyMap(View view) {
-        // Check for checked chek boxes.
-        ArrayList<String> fileNames = new ArrayList<String>();
-        for (int i = 0; i < mKeyFilesGroup.getChildCount(); i++) {
-            CheckBox c = (CheckBox) mKeyFilesGroup.getChildAt(i);
-            if (c.isChecked()) {
-                fileNames.add(c.getText().toString());
+        // Remember the settings of the key files for the next mapping.
+        List<KeyTierSettings.Tier> tiers = getTierSettings();
+        mTierSettings.set(tiers, mIsUserOrder);
+        mTierSettings.save();
+        // Check for checked check boxes and if the key files still exist.
+        ArrayList<File> keyFiles = new ArrayList<File>();
+        ArrayList<KeyTierSettings.Tier> checkedTiers =
+                new ArrayList<KeyTierSettings.Tier>();
+        for (KeyTierSettings.Tier tier : tiers) {
+            if (!tier.isChecked()) {
+                continue;
+            }
+            File keyFile = new File(mKeyDirPath, tier.getName());
+            if (keyFile.exists()) {
+                keyFiles.add(keyFile);
+                checkedTiers.add(tier);
+            } else {
+                Log.d(LOG_TAG, "Key file "
+                        + keyFile.getAbsolutePath()
+                        + "doesn't exists anymore.");
             }
         }
-        if (fileNames.size() > 0) {
-            // Check if key files still exists.
-            ArrayList<File> keyFiles = new ArrayList<File>();
-            for (String fileName : fileNames) {
-                File keyFile = new File(mKeyDirPath, fileName);
-                if (keyFile.exists()) {
-                    keyFiles.add(keyFile);
-                } else {
-                    Log.d(LOG_TAG, "Key file "
-                            + keyFile.getAbsolutePath()
-                            + "doesn't exists anymore.");
-                }
+        if (keyFiles.size() > 0) {
+            MCReader reader = Common.checkForTagAndCreateReader(this);
+            if (reader == null) {
+                return;
             }
-            if (keyFiles.size() > 0) {
-                MCReader reader = Common.checkForTagAndCreateReader(this);
-                if (reader == null) {
-                    return;
-                }
 
-                // Set key files.
-                File[] keys = keyFiles.toArray(new File[keyFiles.size()]);
-                if (reader.setKeyFile(keys, this) == false) {
-                    // Error.
-                    reader.close();
-                    return;
-                }
-                // Don't turn screen of while mapping.
-                getWindow().addFlags(
-                        WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
-                // Get key map range.
-                if (mSectorRange.getText().toString().equals(
-                        getString(R.string.text_sector_range_all))) {
-                    // Read all.
-                    mFirstSector = 0;
-                    mLastSector = reader.getSectorCount()-1;
-                } else {
-                    String[] fromAndTo = mSectorRange.getText()
-                            .toString().split(" ");
-                    mFirstSector = Integer.parseInt(fromAndTo[0]);
-                    mLastSector = Integer.parseInt(fromAndTo[2]);
+            // Set key files. Every key file is a tier with its own
+            // budget, in the listed order (by default smallest first,
+            // huge dictionaries are only used for the sectors the
+            // smaller ones have no keys for).
+            File[] keys = keyFiles.toArray(new File[keyFiles.size()]);
+            int[] maxKeys = new int[keys.length];
+            long[] maxMillis = new long[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                maxKeys[i] = checkedTiers.get(i).getMaxKeys();
+                maxMillis[i] = checkedTiers.get(i).getMaxSeconds() * 1000L;
+            }
+            if (reader.setKeyFileTiers(keys, maxKeys, maxMillis,
+                    this) == false) {
+                // Error.
+                reader.close();
+                return;
+            }
+            // Check the keys that were found most often first. If the
+            // user did not order the key files, the key files with
+            // a better hit rate are moved to the front.
+            mKeyStatistics = new KeyStatistics(new File(
+                    Environment.getExternalStoragePublicDirectory(
+                    Common.HOME_DIR) + Common.KEY_STATISTICS_FILE));
+            mKeyFiles = keys;
+            if (!mIsUserOrder) {
+                int[] order = reader.orderKeyTiers(mKeyStatistics);
+                mKeyFiles = new File[keys.length];
+                for (int i = 0; i < keys.length; i++) {
+                    mKeyFiles[i] = keys[order[i]];
                 }
-                // Set map creation range.
-                if (!reader.setMappingRange(
-                        mFirstSector, mLastSector)) {
-                    // Error.
-                    Toast.makeText(this,
-                            R.string.info_mapping_sector_out_of_range,
-                            Toast.LENGTH_LONG).show();
-                    reader.close();
-                    return;
+            }
+            reader.rankKeys(mKeyStatistics);
+            // Try the cached keys of this tag first (if there are any).
+            mDictionaryId = KeyDictionary.getId(keys);
+            mTagId = KeyMapCache.getTagId(Common.getTag());
+            mKeyMapCache = new KeyMapCache(new File(
+                    Environment.getExternalStoragePublicDirectory(
+                    Common.HOME_DIR) + Common.KEY_MAPS_DIR));
+            reader.setCandidateKeyMap(
+                    mKeyMapCache.get(mTagId, mDictionaryId));
+            reader.setSeedKeyMap(getSeedKeys());
+            setMappingGoal(reader);
+            reader.setReadWhileMapping(
+                    getIntent().getBooleanExtra(EXTRA_READ_TAG, false));
+            // Don't turn screen of while mapping.
+            getWindow().addFlags(
+                    WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+            // Get key map range.
+            if (mSectors != null) {
+                // Only the given sectors.
+                mFirstSector = mSectors.nextSetBit(0);
+                mLastSector = mSectors.length() - 1;
+            } else if (mSectorRange.getText().toString().equals(
+                    getString(R.string.text_sector_range_all))) {
+                // Read all.
+                mFirstSector = 0;
+                mLastSector = reader.getSectorCount()-1;
+            } else {
+                String[] fromAndTo = mSectorRange.getText()
+                        .toString().split(" ");
+                mFirstSector = Integer.parseInt(fromAndTo[0]);
+                mLastSector = Integer.parseInt(fromAndTo[2]);
+            }
+            // Set map creation range.
+            boolean rangeSet = (mSectors != null)
+                    ? reader.setMappingSectors(mSectors)
+                    : reader.setMappingRange(mFirstSector, mLastSector);
+            if (!rangeSet) {
+                // Error.
+                Toast.makeText(this,
+                        R.string.info_mapping_sector_out_of_range,
+                        Toast.LENGTH_LONG).show();
+                reader.close();
+                return;
+            }
+            Common.setKeyMapRange(mFirstSector, mLastSector);
+            // Init. GUI elements.
+            mProgressStatus = -1;
+            mProgressBar.setMax(Math.max(reader.getKeyCount(), 1));
+            mCreateKeyMap.setEnabled(false);
+            mIsCreatingKeyMap = true;
+            mUsePartialKeyMap = false;
+            Toast.makeText(this, R.string.info_wait_key_map,
+                    Toast.LENGTH_SHORT).show();
+            // Read as much as possible with given key file.
+            createKeyMap(reader);
+        }
+    }
+
+    /**
+     * Set the mapping goal from the Intent (see {@link #EXTRA_MAPPING_GOAL}
+     * and {@link #EXTRA_MAPPING_GOAL_BLOCKS}).
+     * @param reader The reader to set the goal for.
+     * @return True if there is a goal. False otherwise (or if the
+     * goal is invalid).
+     */
+    @SuppressWarnings("unchecked")
+    private boolean setMappingGoal(MCReader reader) {
+        String goal = getIntent().getStringExtra(EXTRA_MAPPING_GOAL);
+        if (goal == null) {
+            return false;
+        }
+        try {
+            reader.setMappingGoal(MCReader.MappingGoal.valueOf(goal),
+                    (HashMap<Integer, int[]>) getIntent()
+                    .getSerializableExtra(EXTRA_MAPPING_GOAL_BLOCKS));
+        } catch (IllegalArgumentException e) {
+            Log.e(LOG_TAG, "Invalid mapping goal: " + goal);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get the seed keys from the Intent (see {@link #EXTRA_SEED_KEYS}).
+     * @return Keys (A and B) mapped to a sector or "null" if there
+     * are no seed keys.
+     */
+    private SparseArray<byte[][]> getSeedKeys() {
+        String[] seeds = getIntent().getStringArrayExtra(EXTRA_SEED_KEYS);
+        if (seeds == null) {
+            return null;
+        }
+        SparseArray<byte[][]> ret = new SparseArray<byte[][]>();
+        for (int i = 0; i < seeds.length; i++) {
+            if (seeds[i] == null || seeds[i].length() != 24) {
+                continue;
+            }
+            byte[][] keys = new byte[2][];
+            for (int j = 0; j < 2; j++) {
+                String key = seeds[i].substring(j*12, (j+1)*12);
+                if (!key.equals(MCReader.NO_KEY)) {
+                    keys[j] = Common.hexStringToByteArray(key);
                 }
-                Common.setKeyMapRange(mFirstSector, mLastSector);
-                // Init. GUI elements.
-                mProgressStatus = -1;
-                mProgressBar.setMax((mLastSector-mFirstSector)+1);
-                mCreateKeyMap.setEnabled(false);
-                mIsCreatingKeyMap = true;
-                Toast.makeText(this, R.string.info_wait_key_map,
-                        Toast.LENGTH_SHORT).show();
-                // Read as much as possible with given key file.
-                createKeyMap(reader);
             }
+            ret.put(i, keys);
         }
+        return ret;
     }
 
     /**
      * Triggered by {@link #onCreateKeyMap(View)} this
-     * method starts a worker thread that first creates a key map and then
+     * method starts a worker thread that first loads the
+     * {@link KeyPredictor}, then creates a key map and then
      * calls {@link #keyMapCreated(MCReader)}.
+     * The key map is created breadth-first (see
+     * {@link MCReader#buildNextKeyMapStep()}), so if the mapping is
+     * stopped with the cancel button, the keys found so far can be used.
      * It also updates the progress bar in the UI thread.
+     * The found keys are added to the {@link KeyStatistics} and the
+     * result of every complete sector (see
+     * {@link MCReader#getExhaustedKeys(int)}) is added to the
+     * {@link KeyMapCache}.
      * @param reader A connected {@link MCReader}.
      * @see #onCreateKeyMap(View)
      * @see #keyMapCreated(MCReader)
@@ -375,22 +806,61 @@ public class CreateKeyMapActivity extends BasicActivity {
         new Thread(new Runnable() {
             @Override
             public void run() {
-                // Build key map parts and update the progress bar.
-                while (mProgressStatus < mLastSector) {
-                    mProgressStatus = reader.buildNextKeyMapPart();
+                // Try the keys predicted from the known dumps before
+                // the key files. The model is kept up to date by the
+                // key harvester. Only if there is none yet (the first
+                // harvest is still running), all dumps are read.
+                File home = Environment.getExternalStoragePublicDirectory(
+                        Common.HOME_DIR);
+                KeyPredictor predictor = KeyPredictor.load(
+                        new File(home + Common.KEY_PREDICTOR_FILE));
+                if (predictor == null) {
+                    predictor = KeyPredictor.train(
+                            new File(home + Common.DUMPS_DIR));
+                }
+                reader.setKeyPredictor(predictor);
+                // Build key map steps and update the progress bar.
+                while (!reader.isKeyMapComplete()) {
+                    mProgressStatus = reader.buildNextKeyMapStep();
                     if (mProgressStatus == -1 || mIsCreatingKeyMap == false) {
-                        // Error while building next key map part.
+                        // Error while building next key map step
+                        // or stopped.
                         break;
                     }
-
+                    mProgress = reader.getKeyMapProgress();
                     mHandler.post(new Runnable() {
                         @Override
                         public void run() {
-                            mProgressBar.setProgress(
-                                    (mProgressStatus - mFirstSector) + 1);
+                            mProgressBar.setProgress(mProgress);
                         }
                     });
                 }
+                // Add the found keys to the key hit statistics.
+                mKeyStatistics.add(reader.getKeyMap());
+                mKeyStatistics.save();
+                // Cache the result of every complete sector (both keys
+                // found or searched in all key files, because a missing
+                // key in the cache means it is not in the key files).
+                SparseArray<byte[][]> keyMap = reader.getKeyMap();
+                for (int sector = mFirstSector; keyMap != null
+                        && sector <= mLastSector; sector++) {
+                    if (mSectors != null && !mSectors.get(sector)) {
+                        continue;
+                    }
+                    byte[][] keys = keyMap.get(sector);
+                    boolean[] exhausted = reader.getExhaustedKeys(sector);
+                    boolean complete = true;
+                    for (int j = 0; j < 2; j++) {
+                        if ((keys == null || keys[j] == null)
+                                && !exhausted[j]) {
+                            complete = false;
+                        }
+                    }
+                    if (complete) {
+                        mKeyMapCache.put(mTagId, sector, keys,
+                                mDictionaryId);
+                    }
+                }
 
                 mHandler.post(new Runnable() {
                     @Override
@@ -400,11 +870,21 @@ public class CreateKeyMapActivity extends BasicActivity {
                         mProgressBar.setProgress(0);
                         mCreateKeyMap.setEnabled(true);
                         reader.close();
-                        if (mIsCreatingKeyMap == true
-                                && mProgressStatus != -1) {
+                        boolean partial = mUsePartialKeyMap
+                                && reader.getKeyMap() != null
+                                && reader.getKeyMap().size() > 0;
+                        if (mProgressStatus != -1
+                                && (mIsCreatingKeyMap == true || partial)) {
+                            if (partial) {
+                                Toast.makeText(CreateKeyMapActivity.this,
+                                        R.string.info_key_map_partial,
+                                        Toast.LENGTH_LONG).show();
+                            }
                             keyMapCreated(reader);
                         } else {
                             Common.setKeyMap(null);
+                            Common.setRawDump(null);
+                            Common.setACCache(null);
                             Common.setKeyMapRange(-1, -1);
                         }
                         mIsCreatingKeyMap = false;
@@ -418,7 +898,8 @@ public class CreateKeyMapActivity extends BasicActivity {
      * Triggered by {@link #createKeyMap(MCReader)}, this method
      * sets the result code to {@link Activity#RESULT_OK},
      * saves the created key map to
-     * {@link Common#setKeyMap(android.util.SparseArray)}
+     * {@link Common#setKeyMap(android.util.SparseArray)},
+     * shows how many keys were found in which key file
      * and finishes this Activity.
      * @param reader A {@link MCReader}.
      * @see #createKeyMap(MCReader)
@@ -428,17 +909,82 @@ public class CreateKeyMapActivity extends BasicActivity {
         // LOW: Return key map in intent.
         if (reader.getKeyMap().size() == 0) {
             Common.setKeyMap(null);
+            Common.setRawDump(null);
+            Common.setACCache(null);
             setResult(4);
         } else {
             Common.setKeyMap(reader.getKeyMap());
+            Common.setRawDump(reader.getRawDump());
+            Common.setACCache(reader.getACCache());
 //            Intent intent = new Intent();
 //            intent.putExtra(EXTRA_KEY_MAP, mMCReader);
 //            setResult(Activity.RESULT_OK, intent);
-            setResult(Activity.RESULT_OK);
+            String[] keyFiles = new String[mKeyFiles.length];
+            for (int i = 0; i < mKeyFiles.length; i++) {
+                keyFiles[i] = mKeyFiles[i].getAbsolutePath();
+            }
+            // The key file (tier) every key was found in and the number
+            // of keys per key file (the last one for keys that were not
+            // found in a key file).
+            SparseArray<byte[][]> keyMap = reader.getKeyMap();
+            int[] keyTiers = new int[(keyMap.keyAt(keyMap.size()-1) + 1) * 2];
+            int[] keyCounts = new int[mKeyFiles.length + 1];
+            Arrays.fill(keyTiers, -1);
+            for (int i = 0; i < keyMap.size(); i++) {
+                int[] tiers = reader.getKeyTiers(keyMap.keyAt(i));
+                byte[][] keys = keyMap.valueAt(i);
+                for (int j = 0; j < 2; j++) {
+                    keyTiers[keyMap.keyAt(i) * 2 + j] = tiers[j];
+                    if (keys[j] != null) {
+                        boolean inKeyFile = tiers[j] >= 0
+                                && tiers[j] < mKeyFiles.length;
+                        keyCounts[inKeyFile ? tiers[j] : mKeyFiles.length]++;
+                    }
+                }
+                Log.d(LOG_TAG, "Sector " + keyMap.keyAt(i) + ": key A from "
+                        + getTierName(tiers[0]) + ", key B from "
+                        + getTierName(tiers[1]));
+            }
+            StringBuilder sources = new StringBuilder(
+                    getString(R.string.info_key_sources));
+            for (int i = 0; i < keyCounts.length; i++) {
+                if (keyCounts[i] > 0) {
+                    sources.append("\n" + ((i < mKeyFiles.length)
+                            ? mKeyFiles[i].getName()
+                            : getString(R.string.info_key_source_other))
+                            + ": " + keyCounts[i]);
+                }
+            }
+            Toast.makeText(this, sources, Toast.LENGTH_LONG).show();
+            // The keys that are not in the key files.
+            boolean[] exhaustedKeys = new boolean[(mLastSector + 1) * 2];
+            for (int i = mFirstSector; i <= mLastSector; i++) {
+                boolean[] exhausted = reader.getExhaustedKeys(i);
+                exhaustedKeys[i * 2] = exhausted[0];
+                exhaustedKeys[i * 2 + 1] = exhausted[1];
+            }
+            Intent intent = new Intent();
+            intent.putExtra(EXTRA_KEY_FILES, keyFiles);
+            intent.putExtra(EXTRA_KEY_TIERS, keyTiers);
+            intent.putExtra(EXTRA_EXHAUSTED_KEYS, exhaustedKeys);
+            setResult(Activity.RESULT_OK, intent);
         }
         finish();
     }
 
+    /**
+     * Get the name of the key file of a tier (for logging).
+     * @param tier The tier (index of {@link #mKeyFiles}).
+     * @return The name of the key file or "-" if the key was not found in
+     * a key file.
+     */
+    private String getTierName(int tier) {
+        if (tier < 0 || tier >= mKeyFiles.length) {
+            return "-";
+        }
+        return mKeyFiles[tier].getName();
+    }
+
     /**
      * Show a dialog which lets the user choose the key mapping range.
      * @param view The View object that triggered the method
@@ -21,6 +21,8 @@ package de.syss.MifareClassicTool.Activities;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.app.AlertDialog;
 import android.content.Context;
@@ -30,6 +32,7 @@ import android.graphics.Typeface;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
 import android.text.InputType;
 import android.text.SpannableString;
 import android.text.TextUtils;
@@ -47,6 +50,7 @@ import android.widget.TextView;
 import android.widget.TextView.BufferType;
 import android.widget.Toast;
 import de.syss.MifareClassicTool.Common;
+import de.syss.MifareClassicTool.KeyHarvester;
 import de.syss.MifareClassicTool.R;
 
 /**
@@ -85,6 +89,8 @@ public class DumpEditorActivity extends BasicActivity {
 
     private LinearLayout mLayout;
     private String mFileName = "";
+    private Handler mHandler = new Handler();
+    private ExecutorService mHarvester;
 
     /**
      * All blocks containing valid data AND their headers (marked with "+"
@@ -105,6 +111,7 @@ public class DumpEditorActivity extends BasicActivity {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_dump_editor);
+        mHarvester = Executors.newSingleThreadExecutor();
 
         mLayout= (LinearLayout) findViewById(
                 R.id.LinearLayoutDumpEditor);
@@ -176,6 +183,16 @@ public class DumpEditorActivity extends BasicActivity {
         }
     }
 
+    /**
+     * Stop the background harvester. Keys of dumps that are already
+     * queued will still be harvested.
+     */
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mHarvester.shutdown();
+    }
+
     /**
      * Add the menu with the editor functions to the Activity.
      */
@@ -306,6 +323,7 @@ public class DumpEditorActivity extends BasicActivity {
                                 Toast.makeText(cont,
                                         R.string.info_save_successful,
                                         Toast.LENGTH_LONG).show();
+                                harvestKeys();
                             } else {
                                 Toast.makeText(cont,
                                         R.string.info_save_error,
@@ -329,6 +347,34 @@ public class DumpEditorActivity extends BasicActivity {
         }
     }
 
+    /**
+     * Add the keys of the dump ({@link #mLines}) to the harvested
+     * key file (see {@link Common#getKeyHarvester()}). This is done in the
+     * background, because the key files might have to be read.
+     */
+    private void harvestKeys() {
+        final KeyHarvester harvester = Common.getKeyHarvester();
+        final String[] lines = mLines;
+        mHarvester.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    harvester.harvest(lines);
+                } catch (OutOfMemoryError e) {
+                    // Error. Too many keys (out of memory).
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(DumpEditorActivity.this,
+                                    R.string.info_to_many_keys,
+                                    Toast.LENGTH_LONG).show();
+                        }
+                    });
+                }
+            }
+        });
+    }
+
     /**
      * Check all blocks if they contain valid data. If all blocks are O.K.
      * {@link #mLines} will be updated.
@@ -146,6 +146,16 @@ public class MainActivity extends Activity {
                 return;
             }
 
+            // Create cache directory.
+            path = new File(Environment.getExternalStoragePublicDirectory(
+                    Common.HOME_DIR) + Common.CACHE_DIR);
+            if (path.exists() == false && !path.mkdirs()) {
+                // Could not create directory.
+                Log.e(LOG_TAG, "Error while crating '" + Common.HOME_DIR
+                        + Common.CACHE_DIR + "' directory.");
+                return;
+            }
+
             // Create tmp directory.
             path = new File(Environment.getExternalStoragePublicDirectory(
                     Common.HOME_DIR) + Common.TMP_DIR);
@@ -248,10 +258,15 @@ public class MainActivity extends Activity {
         menu.setHeaderTitle(R.string.dialog_tools_menu_title);
         menu.setHeaderIcon(android.R.drawable.ic_menu_preferences);
         inflater.inflate(R.menu.tools, menu);
-        // Enable/Disable tag info tool depending on NFC availability.
-        menu.findItem(R.id.menuMainTagInfo).setEnabled(
-                Common.getNfcAdapter() != null
-                && Common.getNfcAdapter().isEnabled());
+        // Enable/Disable tag info tool, quick dump and clone dump
+        // depending on NFC availability.
+        boolean nfc = Common.getNfcAdapter() != null
+                && Common.getNfcAdapter().isEnabled();
+        menu.findItem(R.id.menuMainTagInfo).setEnabled(nfc);
+        menu.findItem(R.id.menuMainQuickDump).setEnabled(nfc);
+        menu.findItem(R.id.menuMainMassClone).setEnabled(nfc);
+        menu.findItem(R.id.menuMainReKey).setEnabled(nfc);
+        menu.findItem(R.id.menuMainCloneTag).setEnabled(nfc);
     }
 
     /**
@@ -450,6 +465,22 @@ public class MainActivity extends Activity {
             intent = new Intent(this, AccessConditionTool.class);
             startActivity(intent);
             return true;
+        case R.id.menuMainQuickDump:
+            intent = new Intent(this, QuickDumpActivity.class);
+            startActivity(intent);
+            return true;
+        case R.id.menuMainMassClone:
+            intent = new Intent(this, MassCloneActivity.class);
+            startActivity(intent);
+            return true;
+        case R.id.menuMainReKey:
+            intent = new Intent(this, ReKeyActivity.class);
+            startActivity(intent);
+            return true;
+        case R.id.menuMainCloneTag:
+            intent = new Intent(this, CloneTagActivity.class);
+            startActivity(intent);
+            return true;
         default:
             return super.onContextItemSelected(item);
         }
@@ -0,0 +1,774 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool.Activities;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.nfc.tech.MifareClassic;
+import android.os.Bundle;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+import android.view.WindowManager;
+import android.widget.TextView;
+import android.widget.Toast;
+import de.syss.MifareClassicTool.Common;
+import de.syss.MifareClassicTool.DumpTemplate;
+import de.syss.MifareClassicTool.KeyDictionary;
+import de.syss.MifareClassicTool.MCReader;
+import de.syss.MifareClassicTool.R;
+import de.syss.MifareClassicTool.WriteJournal;
+import de.syss.MifareClassicTool.WritePlan;
+
+/**
+ * Write (clone) the same dump to many blank tags in a row.
+ * There are no dialogs after the dump was chosen. For every new tag
+ * the keys are only searched among the default keys, the dump is written
+ * with a {@link WritePlan} and the tag is read again (with the new keys
+ * from the dump) to verify the data.<br /><br />
+ * The write information
+ * (see {@link MCReader#isWritableOnPositions(HashMap, SparseArray)})
+ * is only checked for the first tag. All following tags are expected to
+ * have the same Access Conditions (e.g. a batch of blank tags). The write
+ * plan is reused as long as the tags have the same keys.
+ * The manufacturer block will never be written.<br /><br />
+ * If the dump is a {@link DumpTemplate}, every tag gets its own dump
+ * (e.g. with a serial number). The dumps of the next tags are rendered
+ * in the background, so the NFC thread only writes. The result of every
+ * tag is logged in {@link Common#LOGS_DIR}. The number of the next tag
+ * (and therefore the row of the CSV file) is taken from this log, so a
+ * batch can be continued later on.
+ */
+public class MassCloneActivity extends BasicActivity {
+
+    private static final String LOG_TAG =
+            MassCloneActivity.class.getSimpleName();
+    private final static int FILE_CHOOSER_DUMP_FILE = 1;
+    private final static int FILE_CHOOSER_CSV_FILE = 2;
+    /**
+     * Number of tags that are rendered in advance.
+     */
+    private final static int RENDER_AHEAD = 4;
+    /**
+     * Time in seconds to wait for a rendered tag.
+     */
+    private final static int RENDER_TIMEOUT = 5;
+
+    /**
+     * Keys of blank tags.
+     */
+    private final static byte[][] DEFAULT_KEYS = new byte[][] {
+        MifareClassic.KEY_DEFAULT,
+        MifareClassic.KEY_MIFARE_APPLICATION_DIRECTORY,
+        MifareClassic.KEY_NFC_FORUM };
+
+    private Handler mHandler = new Handler();
+    private TextView mStatus;
+    private TextView mCloned;
+    private TextView mFailed;
+    private TextView mRate;
+    private TextView mLatency;
+    private TextView mLastTag;
+    private HashMap<Integer, HashMap<Integer, byte[]>> mDump;
+    private BitSet mSectors;
+    private int mLastSector;
+    private KeyDictionary mDefaultKeys;
+    private WriteJournal mJournal;
+    private HashMap<Integer, HashMap<Integer, Integer>> mWriteOnPos;
+    private WritePlan mPlan;
+    private SparseArray<byte[][]> mPlanKeyMap;
+    private HashMap<Integer, HashMap<Integer, byte[]>> mPlanDump;
+    private DumpTemplate mTemplate;
+    private String[] mCsvRows;
+    private File mResultsLog;
+    private ExecutorService mRenderer;
+    private LinkedBlockingDeque<RenderedTag> mRendered =
+            new LinkedBlockingDeque<RenderedTag>();
+    private long mNextRenderNumber;
+    private boolean mIsWriting;
+    private int mClonedCount;
+    private int mFailedCount;
+    private long mStartTime = -1;
+
+    /**
+     * The dump of a single tag rendered from a {@link DumpTemplate}.
+     */
+    private static class RenderedTag {
+        private final long mNumber;
+        private final HashMap<Integer, HashMap<Integer, byte[]>> mDump;
+
+        private RenderedTag(long number,
+                HashMap<Integer, HashMap<Integer, byte[]>> dump) {
+            mNumber = number;
+            mDump = dump;
+        }
+    }
+
+    /**
+     * Check for external storage, initialize the default keys and
+     * show the {@link FileChooserActivity} to choose the dump.
+     */
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_mass_clone);
+        mStatus = (TextView) findViewById(R.id.textViewMassCloneStatus);
+        mCloned = (TextView) findViewById(R.id.textViewMassCloneCloned);
+        mFailed = (TextView) findViewById(R.id.textViewMassCloneFailed);
+        mRate = (TextView) findViewById(R.id.textViewMassCloneRate);
+        mLatency = (TextView) findViewById(R.id.textViewMassCloneLatency);
+        mLastTag = (TextView) findViewById(R.id.textViewMassCloneLastTag);
+        updateCounters(-1);
+
+        if (!Common.isExternalStorageWritableErrorToast(this)) {
+            finish();
+            return;
+        }
+
+        // Don't turn screen of while writing tags.
+        getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+        long[] keys = new long[DEFAULT_KEYS.length];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = KeyDictionary.toLong(DEFAULT_KEYS[i]);
+        }
+        mDefaultKeys = new KeyDictionary(keys, keys.length);
+        mJournal = new WriteJournal(new File(
+                Environment.getExternalStoragePublicDirectory(
+                Common.HOME_DIR) + Common.WRITE_JOURNALS_DIR));
+
+        Intent intent = new Intent(this, FileChooserActivity.class);
+        intent.putExtra(FileChooserActivity.EXTRA_DIR,
+                Environment.getExternalStoragePublicDirectory(
+                        Common.HOME_DIR) + Common.DUMPS_DIR);
+        intent.putExtra(FileChooserActivity.EXTRA_TITLE,
+                getString(R.string.text_open_dump_title));
+        intent.putExtra(FileChooserActivity.EXTRA_CHOOSER_TEXT,
+                getString(R.string.text_choose_dump_to_write));
+        intent.putExtra(FileChooserActivity.EXTRA_BUTTON_TEXT,
+                getString(R.string.menu_mass_clone));
+        startActivityForResult(intent, FILE_CHOOSER_DUMP_FILE);
+    }
+
+    /**
+     * Stop rendering the dumps of the next tags.
+     */
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mRenderer != null) {
+            mRenderer.shutdownNow();
+        }
+    }
+
+    /**
+     * Read the chosen dump (see {@link #prepareDump(HashMap)}). If the dump
+     * is a {@link DumpTemplate} using CSV placeholders, the CSV file will be
+     * chosen next. After this, every new tag will be cloned
+     * (see {@link #onNewIntent(Intent)}).
+     */
+    @Override
+    public void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+
+        if (resultCode != Activity.RESULT_OK) {
+            // Error.
+            finish();
+            return;
+        }
+        File file = new File(data.getStringExtra(
+                FileChooserActivity.EXTRA_CHOSEN_FILE));
+        String[] lines = Common.readFileLineByLine(file, false, this);
+        if (lines == null) {
+            // Error.
+            finish();
+            return;
+        }
+        switch(requestCode) {
+        case FILE_CHOOSER_DUMP_FILE:
+            if (DumpTemplate.isTemplate(lines)) {
+                mTemplate = new DumpTemplate(lines);
+                mResultsLog = new File(
+                        Environment.getExternalStoragePublicDirectory(
+                        Common.HOME_DIR) + Common.LOGS_DIR,
+                        file.getName() + ".log");
+                if (mTemplate.usesCsv()) {
+                    Intent intent = new Intent(this, FileChooserActivity.class);
+                    intent.putExtra(FileChooserActivity.EXTRA_DIR,
+                            Environment.getExternalStoragePublicDirectory(
+                                    Common.HOME_DIR).getPath());
+                    intent.putExtra(FileChooserActivity.EXTRA_TITLE,
+                            getString(R.string.text_mass_clone_choose_csv));
+                    intent.putExtra(FileChooserActivity.EXTRA_CHOOSER_TEXT,
+                            getString(R.string.text_mass_clone_choose_csv));
+                    intent.putExtra(FileChooserActivity.EXTRA_BUTTON_TEXT,
+                            getString(R.string.menu_mass_clone));
+                    startActivityForResult(intent, FILE_CHOOSER_CSV_FILE);
+                } else {
+                    startRendering();
+                }
+                return;
+            }
+            HashMap<Integer, HashMap<Integer, byte[]>> dump =
+                    prepareDump(Common.dumpLinesToBlocks(lines));
+            if (dump == null) {
+                // Error. Invalid dump.
+                Toast.makeText(this, R.string.info_nothing_to_write,
+                        Toast.LENGTH_LONG).show();
+                finish();
+                return;
+            }
+            setDump(dump);
+            break;
+        case FILE_CHOOSER_CSV_FILE:
+            mCsvRows = lines;
+            startRendering();
+            break;
+        }
+    }
+
+    /**
+     * Remove the manufacturer block and sectors without known data
+     * from a dump.
+     * @param dump The dump (see {@link Common#dumpLinesToBlocks(String[])}).
+     * @return The dump or "null" if nothing remains to be written.
+     */
+    private static HashMap<Integer, HashMap<Integer, byte[]>> prepareDump(
+            HashMap<Integer, HashMap<Integer, byte[]>> dump) {
+        if (dump == null) {
+            return null;
+        }
+        // Never write the manufacturer block.
+        if (dump.get(0) != null) {
+            dump.get(0).remove(0);
+        }
+        // Skip sectors without known data.
+        Iterator<Integer> it = dump.keySet().iterator();
+        while (it.hasNext()) {
+            if (dump.get(it.next()).size() == 0) {
+                it.remove();
+            }
+        }
+        if (dump.size() == 0) {
+            return null;
+        }
+        return dump;
+    }
+
+    /**
+     * Set the dump that will be written (or the dump of the first tag
+     * if a template is used) and wait for tags.
+     * @param dump The dump (see {@link #prepareDump(HashMap)}).
+     */
+    private void setDump(HashMap<Integer, HashMap<Integer, byte[]>> dump) {
+        mDump = dump;
+        // Only the sectors of the dump will be mapped.
+        mSectors = new BitSet();
+        for (int sector : mDump.keySet()) {
+            mSectors.set(sector);
+        }
+        mLastSector = mSectors.length() - 1;
+        mStatus.setText(R.string.text_mass_clone_wait_for_tag);
+    }
+
+    /**
+     * Render the dump of the first tag and start rendering the dumps of
+     * the following tags in the background. The number of the first tag
+     * is taken from the results log (see {@link #readNextNumber()}).
+     */
+    private void startRendering() {
+        mNextRenderNumber = readNextNumber();
+        RenderedTag first = render(mNextRenderNumber++);
+        if (first == null) {
+            // Error. Invalid template or no more CSV rows.
+            Toast.makeText(this, R.string.text_mass_clone_no_more_data,
+                    Toast.LENGTH_LONG).show();
+            finish();
+            return;
+        }
+        mRendered.offerLast(first);
+        setDump(first.mDump);
+        mRenderer = Executors.newSingleThreadExecutor();
+        for (int i = 1; i < RENDER_AHEAD; i++) {
+            scheduleRender();
+        }
+    }
+
+    /**
+     * Render the dump of the next tag in the background. The result will
+     * be added to {@link #mRendered}.
+     */
+    private void scheduleRender() {
+        final long number = mNextRenderNumber++;
+        mRenderer.execute(new Runnable() {
+            @Override
+            public void run() {
+                RenderedTag tag = render(number);
+                if (tag != null) {
+                    mRendered.offerLast(tag);
+                }
+            }
+        });
+    }
+
+    /**
+     * Render the dump of a tag from the template.
+     * @param number The number of the tag (and its row of the CSV file).
+     * @return The rendered dump or "null" if the template is invalid
+     * or there are no more CSV rows.
+     */
+    private RenderedTag render(long number) {
+        String[] row = null;
+        if (mTemplate.usesCsv()) {
+            if (mCsvRows == null || number >= mCsvRows.length) {
+                return null;
+            }
+            row = mCsvRows[(int) number].split(",");
+        }
+        HashMap<Integer, HashMap<Integer, byte[]>> dump =
+                prepareDump(mTemplate.render(number, row));
+        if (dump == null) {
+            return null;
+        }
+        return new RenderedTag(number, dump);
+    }
+
+    /**
+     * Get the number of the next tag from the results log. This is the
+     * number following the highest number of a successfully written tag.
+     * @return The number of the next tag (0 if there is no log).
+     */
+    private long readNextNumber() {
+        long next = 0;
+        if (!mResultsLog.exists()) {
+            return next;
+        }
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new FileReader(mResultsLog));
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] fields = line.split(" ");
+                try {
+                    if (fields.length == 4 && fields[2].equals("0")) {
+                        next = Math.max(next, Long.parseLong(fields[0]) + 1);
+                    }
+                } catch (NumberFormatException e) {
+                    Log.d(LOG_TAG, "Invalid line in results log.");
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while reading results log.", e);
+        } finally {
+            if (br != null) {
+                try {
+                    br.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error while closing file.", e);
+                }
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Append the result of a tag to the results log
+     * (format: "number UID result time").
+     * @param number The number of the tag.
+     * @param uid The UID of the tag.
+     * @param result The result (see {@link #writeAndVerify(MCReader,
+     * String, HashMap)}).
+     */
+    private void logResult(long number, String uid, int result) {
+        File dir = mResultsLog.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.e(LOG_TAG, "Error while creating log directory.");
+            return;
+        }
+        BufferedWriter bw = null;
+        try {
+            bw = new BufferedWriter(new FileWriter(mResultsLog, true));
+            bw.write(number + " " + uid + " " + result + " "
+                    + System.currentTimeMillis());
+            bw.newLine();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while writing to results log.", e);
+        } finally {
+            if (bw != null) {
+                try {
+                    bw.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error while closing file.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Clone the dump to every new tag (if there is not already a tag being
+     * written). Before the dump was chosen, new Intents will
+     * be handled like in every other Activity.
+     * @see BasicActivity#onNewIntent(Intent)
+     */
+    @Override
+    public void onNewIntent(Intent intent) {
+        if (mDump == null) {
+            super.onNewIntent(intent);
+            return;
+        }
+        if (mIsWriting) {
+            // Still writing the last tag.
+            return;
+        }
+        long start = SystemClock.elapsedRealtime();
+        int typeCheck = Common.treatAsNewTag(intent, this, false);
+        MCReader reader = null;
+        if (typeCheck == 0) {
+            reader = Common.checkForTagAndCreateReader(this);
+        }
+        if (reader != null) {
+            cloneTag(reader, start);
+        } else {
+            mFailedCount++;
+            updateCounters(-1);
+        }
+    }
+
+    /**
+     * Start a worker thread that clones the dump (or the next rendered dump)
+     * to the tag (see {@link #writeAndVerify(MCReader, String, HashMap)})
+     * and reports the result and the time it took. A rendered dump
+     * that could not be written will be used for the next tag.
+     * @param reader A connected {@link MCReader}.
+     * @param start The time the tag was discovered
+     * ({@link SystemClock#elapsedRealtime()}).
+     */
+    private void cloneTag(final MCReader reader, final long start) {
+        mIsWriting = true;
+        if (mStartTime == -1) {
+            mStartTime = start;
+        }
+        final String uid = Common.byte2HexString(Common.getUID());
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                RenderedTag tag = null;
+                int result;
+                if (mTemplate != null) {
+                    try {
+                        tag = mRendered.pollFirst(
+                                RENDER_TIMEOUT, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Log.d(LOG_TAG, "Interrupted while waiting "
+                                + "for rendered tag.");
+                    }
+                }
+                if (mTemplate != null && tag == null) {
+                    // No more data.
+                    result = 5;
+                } else {
+                    result = writeAndVerify(reader, uid,
+                            (tag != null) ? tag.mDump : mDump);
+                }
+                reader.close();
+                final long latency = SystemClock.elapsedRealtime() - start;
+                final String name = (tag != null)
+                        ? uid + " #" + tag.mNumber : uid;
+                if (tag != null) {
+                    logResult(tag.mNumber, uid, result);
+                    if (result == 0) {
+                        scheduleRender();
+                    } else {
+                        // Use this dump again for the next tag.
+                        mRendered.offerFirst(tag);
+                    }
+                }
+                final int finalResult = result;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        int text = R.string.text_mass_clone_ok;
+                        switch (finalResult) {
+                        case 0:
+                            mClonedCount++;
+                            break;
+                        case 1:
+                            text = R.string.text_mass_clone_keys_not_found;
+                            break;
+                        case 2:
+                            text = R.string.text_mass_clone_not_writable;
+                            break;
+                        case 3:
+                            text = R.string.text_mass_clone_write_error;
+                            break;
+                        case 4:
+                            text = R.string.text_mass_clone_verify_error;
+                            break;
+                        default:
+                            text = R.string.text_mass_clone_no_more_data;
+                        }
+                        if (finalResult != 0) {
+                            mFailedCount++;
+                        }
+                        mLastTag.setText(getString(
+                                R.string.text_mass_clone_last_tag) + " "
+                                + name + " (" + getString(text) + ")");
+                        updateCounters(latency);
+                        mIsWriting = false;
+                    }
+                });
+            }
+        }).start();
+    }
+
+    /**
+     * Clone a dump to a tag. The keys of the tag are searched among
+     * the default keys (the keys of the last tag first). The write plan
+     * (and the check if the dump is writable) is created for the first
+     * tag and reused as long as the keys and the dump are the same.
+     * @param reader A connected {@link MCReader}.
+     * @param uid The UID of the tag.
+     * @param dump The dump to write. It must have the same blocks as
+     * {@link #mDump}.
+     * @return The return codes are:<br />
+     * <ul>
+     * <li>0 - Everything went fine.</li>
+     * <li>1 - Keys of a sector not found.</li>
+     * <li>2 - Dump is not (completely) writable with the found keys.</li>
+     * <li>3 - Error while writing.</li>
+     * <li>4 - Verification failed.</li>
+     * <li>5 - No more data (only used by
+     * {@link #cloneTag(MCReader, long)}).</li>
+     * </ul>
+     */
+    private int writeAndVerify(MCReader reader, String uid,
+            HashMap<Integer, HashMap<Integer, byte[]>> dump) {
+        // Probe the default keys.
+        reader.setKeyDictionary(mDefaultKeys);
+        reader.setCandidateKeyMap(mPlanKeyMap);
+        if (!reader.setMappingSectors(mSectors)) {
+            return 1;
+        }
+        int status;
+        do {
+            status = reader.buildNextKeyMapPart();
+        } while (status != -1 && status < mLastSector);
+        SparseArray<byte[][]> keyMap = reader.getKeyMap();
+        if (status == -1 || keyMap == null) {
+            return 1;
+        }
+        for (int sector : mDump.keySet()) {
+            if (keyMap.get(sector) == null) {
+                return 1;
+            }
+        }
+
+        // Check if the dump is writable (again if the keys are not
+        // the same as before, because the Access Conditions and the
+        // keys of the tag decide with which key a block is written).
+        boolean sameKeys = mPlanKeyMap != null
+                && isSameKeyMap(keyMap, mPlanKeyMap);
+        if (mWriteOnPos == null || !sameKeys) {
+            HashMap<Integer, int[]> pos =
+                    new HashMap<Integer, int[]>(mDump.size());
+            for (int sector : mDump.keySet()) {
+                int i = 0;
+                int[] blocks = new int[mDump.get(sector).size()];
+                for (int block : mDump.get(sector).keySet()) {
+                    blocks[i++] = block;
+                }
+                pos.put(sector, blocks);
+            }
+            HashMap<Integer, HashMap<Integer, Integer>> writeOnPos =
+                    reader.isWritableOnPositions(pos, keyMap);
+            if (!isFullyWritable(writeOnPos, keyMap)) {
+                return 2;
+            }
+            mWriteOnPos = writeOnPos;
+            // The write plan belongs to the old keys.
+            mPlan = null;
+        }
+        // Create the write plan (if the keys or the dump
+        // are not the same as before).
+        if (mPlan == null || dump != mPlanDump || !sameKeys) {
+            mPlan = new WritePlan(mWriteOnPos, dump, keyMap);
+            mPlanKeyMap = keyMap;
+            mPlanDump = dump;
+        }
+
+        // Write.
+        if (mPlan.execute(reader, mJournal, uid) != 0) {
+            return 3;
+        }
+        return verify(reader, keyMap, dump) ? 0 : 4;
+    }
+
+    /**
+     * Read the tag with the keys of the dump and compare the data.
+     * Keys of sectors without a sector trailer in the dump are taken
+     * from the key map of the tag. Of the sector trailers only the
+     * Access Conditions are compared (a successful authentication
+     * already proves the keys).
+     * @param reader A connected {@link MCReader}.
+     * @param keyMap The key map of the tag (before writing).
+     * @param dump The dump that was written.
+     * @return True if all blocks of the dump are on the tag.
+     * False otherwise.
+     */
+    private boolean verify(MCReader reader, SparseArray<byte[][]> keyMap,
+            HashMap<Integer, HashMap<Integer, byte[]>> dump) {
+        SparseArray<byte[][]> newKeyMap = new SparseArray<byte[][]>();
+        for (int sector : dump.keySet()) {
+            int trailer = reader.getBlockCountInSector(sector) - 1;
+            byte[] data = dump.get(sector).get(trailer);
+            if (data != null) {
+                newKeyMap.put(sector, new byte[][] {
+                        Arrays.copyOfRange(data, 0, 6),
+                        Arrays.copyOfRange(data, 10, 16) });
+            } else {
+                newKeyMap.put(sector, keyMap.get(sector));
+            }
+        }
+        SparseArray<String[]> tagData = reader.readAsMuchAsPossible(newKeyMap);
+        if (tagData == null) {
+            return false;
+        }
+        for (int sector : dump.keySet()) {
+            String[] current = tagData.get(sector);
+            if (current == null) {
+                return false;
+            }
+            int trailer = current.length - 1;
+            for (int block : dump.get(sector).keySet()) {
+                String expected = Common.byte2HexString(
+                        dump.get(sector).get(block));
+                if (block == trailer) {
+                    expected = expected.substring(12, 20);
+                    if (!current[block].substring(12, 20).equals(expected)) {
+                        return false;
+                    }
+                } else if (!current[block].equals(expected)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if all blocks can be written with the known keys.
+     * Sector trailers with read-only keys or Access Conditions
+     * (write information 4 - 6) are not accepted.
+     * @param writeOnPos The write information
+     * (see {@link MCReader#isWritableOnPositions(HashMap, SparseArray)}).
+     * @param keyMap The key map of the tag.
+     * @return True if all blocks of {@link #mDump} are writable.
+     * False otherwise.
+     */
+    private boolean isFullyWritable(
+            HashMap<Integer, HashMap<Integer, Integer>> writeOnPos,
+            SparseArray<byte[][]> keyMap) {
+        if (writeOnPos == null) {
+            return false;
+        }
+        for (int sector : mDump.keySet()) {
+            HashMap<Integer, Integer> blocks = writeOnPos.get(sector);
+            byte[][] keys = keyMap.get(sector);
+            if (blocks == null) {
+                return false;
+            }
+            for (int block : mDump.get(sector).keySet()) {
+                Integer writeInfo = blocks.get(block);
+                if (writeInfo == null) {
+                    return false;
+                }
+                boolean writable = (writeInfo == 1 && keys[0] != null)
+                        || (writeInfo == 2 && keys[1] != null)
+                        || (writeInfo == 3
+                                && (keys[0] != null || keys[1] != null));
+                if (!writable) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compare two key maps.
+     * @param a First key map.
+     * @param b Second key map.
+     * @return True if both key maps contain the same keys
+     * for the same sectors. False otherwise.
+     */
+    private static boolean isSameKeyMap(SparseArray<byte[][]> a,
+            SparseArray<byte[][]> b) {
+        if (a == null || b == null || a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            byte[][] keysB = b.get(a.keyAt(i));
+            if (keysB == null || !Arrays.equals(a.valueAt(i)[0], keysB[0])
+                    || !Arrays.equals(a.valueAt(i)[1], keysB[1])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Update the number of cloned and failed tags, the
+     * tags per minute rate and the time of the last tag.
+     * @param latency The time the last tag took in ms
+     * or -1 if unknown.
+     */
+    private void updateCounters(long latency) {
+        mCloned.setText(getString(R.string.text_mass_clone_cloned)
+                + " " + mClonedCount);
+        mFailed.setText(getString(R.string.text_mass_clone_failed)
+                + " " + mFailedCount);
+        double rate = 0;
+        if (mStartTime != -1 && mClonedCount > 0) {
+            long elapsed = SystemClock.elapsedRealtime() - mStartTime;
+            rate = mClonedCount / (Math.max(elapsed, 1) / 60000.0);
+        }
+        mRate.setText(getString(R.string.text_mass_clone_rate)
+                + " " + String.format("%.1f", rate));
+        if (latency != -1) {
+            mLatency.setText(getString(R.string.text_mass_clone_latency)
+                    + " " + latency);
+        }
+    }
+}
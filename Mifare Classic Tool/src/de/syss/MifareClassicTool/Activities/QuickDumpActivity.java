@@ -0,0 +1,369 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool.Activities;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.text.format.Time;
+import android.util.Log;
+import android.util.SparseArray;
+import android.view.WindowManager;
+import android.widget.TextView;
+import android.widget.Toast;
+import de.syss.MifareClassicTool.Common;
+import de.syss.MifareClassicTool.KeyDictionary;
+import de.syss.MifareClassicTool.KeyHarvester;
+import de.syss.MifareClassicTool.KeyStatistics;
+import de.syss.MifareClassicTool.MCReader;
+import de.syss.MifareClassicTool.R;
+
+/**
+ * Read (dump) many tags in a row. The keys of the first tag are mapped
+ * with the {@link CreateKeyMapActivity}. This key map is then used for
+ * all following tags. Only the keys that are not valid for a tag will be
+ * searched in the chosen key files again
+ * (see {@link MCReader#setCandidateKeyMap(SparseArray)}).
+ * The dumps are saved automatically (UID and time stamp as file name) to
+ * {@link Common#DUMPS_DIR} by a background writer.
+ */
+public class QuickDumpActivity extends BasicActivity {
+
+    private static final String LOG_TAG =
+            QuickDumpActivity.class.getSimpleName();
+    private final static int KEY_MAP_CREATOR = 1;
+
+    private Handler mHandler = new Handler();
+    private ExecutorService mWriter;
+    private TextView mStatus;
+    private TextView mDumped;
+    private TextView mFailed;
+    private TextView mRate;
+    private TextView mLastTag;
+    private SparseArray<byte[][]> mCandidateKeyMap;
+    private SparseArray<byte[][]> mSeedKeyMap;
+    private KeyDictionary mKeyDictionary;
+    private KeyStatistics mKeyStatistics;
+    private KeyHarvester mKeyHarvester;
+    private int mFirstSector;
+    private int mLastSector;
+    private boolean mIsReading;
+    private int mDumpedCount;
+    private int mFailedCount;
+    private long mStartTime = -1;
+
+    /**
+     * Check for external storage, initialize the background writer
+     * and show the {@link CreateKeyMapActivity} to map the first tag.
+     */
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_quick_dump);
+        mStatus = (TextView) findViewById(R.id.textViewQuickDumpStatus);
+        mDumped = (TextView) findViewById(R.id.textViewQuickDumpDumped);
+        mFailed = (TextView) findViewById(R.id.textViewQuickDumpFailed);
+        mRate = (TextView) findViewById(R.id.textViewQuickDumpRate);
+        mLastTag = (TextView) findViewById(R.id.textViewQuickDumpLastTag);
+        updateCounters();
+
+        if (!Common.isExternalStorageWritableErrorToast(this)) {
+            finish();
+            return;
+        }
+
+        // Don't turn screen of while reading tags.
+        getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+        mWriter = Executors.newSingleThreadExecutor();
+
+        Intent intent = new Intent(this, CreateKeyMapActivity.class);
+        intent.putExtra(CreateKeyMapActivity.EXTRA_KEYS_DIR,
+                Environment.getExternalStoragePublicDirectory(
+                        Common.HOME_DIR) + Common.KEYS_DIR);
+        intent.putExtra(CreateKeyMapActivity.EXTRA_BUTTON_TEXT,
+                getString(R.string.action_create_key_map_and_quick_dump));
+        startActivityForResult(intent, KEY_MAP_CREATOR);
+    }
+
+    /**
+     * Save the key hit statistics (see {@link KeyStatistics#save()})
+     * using the background writer. They are only kept in memory while
+     * dumping tags.
+     */
+    @Override
+    public void onPause() {
+        super.onPause();
+        if (mKeyStatistics != null && mWriter != null) {
+            final KeyStatistics statistics = mKeyStatistics;
+            mWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    statistics.save();
+                }
+            });
+        }
+    }
+
+    /**
+     * Stop the background writer. Dumps that are already queued
+     * will still be saved.
+     */
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mWriter != null) {
+            mWriter.shutdown();
+        }
+    }
+
+    /**
+     * Checks the result code of the key mapping process. If the process
+     * was successful, the key map of the first tag will be used as
+     * candidate keys for all following tags and the first
+     * tag will be dumped ({@link #dumpTag(MCReader)}).
+     */
+    @Override
+    public void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+
+        switch(requestCode) {
+        case KEY_MAP_CREATOR:
+            if (resultCode != Activity.RESULT_OK) {
+                // Error.
+                if (resultCode == 4) {
+                    Toast.makeText(this, R.string.info_no_key_found,
+                            Toast.LENGTH_LONG).show();
+                }
+                finish();
+                return;
+            }
+            // Load the key files (for the keys not found in the key map).
+            String[] paths = data.getStringArrayExtra(
+                    CreateKeyMapActivity.EXTRA_KEY_FILES);
+            File[] keyFiles = new File[paths.length];
+            for (int i = 0; i < paths.length; i++) {
+                keyFiles[i] = new File(paths[i]);
+            }
+            try {
+                mKeyDictionary = MCReader.loadKeyFiles(keyFiles);
+            } catch (OutOfMemoryError e) {
+                // Error. Too many keys (out of memory).
+                // Only the keys of the key map will be used.
+                Toast.makeText(this, R.string.info_to_many_keys,
+                        Toast.LENGTH_LONG).show();
+            }
+            // Check the keys that were found most often first.
+            mKeyStatistics = new KeyStatistics(new File(
+                    Environment.getExternalStoragePublicDirectory(
+                    Common.HOME_DIR) + Common.KEY_STATISTICS_FILE));
+            mKeyStatistics.rank(mKeyDictionary);
+            mKeyHarvester = Common.getKeyHarvester();
+            // Use the key map of the first tag as candidate keys.
+            // Keys that are not in the key files will not be searched
+            // again. Sectors with keys that were not found for other
+            // reasons (mapping stopped, time budget used up) only get
+            // their found keys as seeds, so the missing keys
+            // are still searched.
+            mFirstSector = Common.getKeyMapRangeFrom();
+            mLastSector = Common.getKeyMapRangeTo();
+            SparseArray<byte[][]> keyMap = Common.getKeyMap();
+            boolean[] exhaustedKeys = data.getBooleanArrayExtra(
+                    CreateKeyMapActivity.EXTRA_EXHAUSTED_KEYS);
+            mCandidateKeyMap = new SparseArray<byte[][]>();
+            mSeedKeyMap = new SparseArray<byte[][]>();
+            for (int i = mFirstSector; i <= mLastSector; i++) {
+                byte[][] keys = keyMap.get(i);
+                if (keys == null) {
+                    keys = new byte[2][];
+                }
+                boolean complete = true;
+                for (int j = 0; j < 2; j++) {
+                    if (keys[j] == null && (exhaustedKeys == null
+                            || i * 2 + j >= exhaustedKeys.length
+                            || !exhaustedKeys[i * 2 + j])) {
+                        complete = false;
+                    }
+                }
+                if (complete) {
+                    mCandidateKeyMap.put(i, keys);
+                } else if (keys[0] != null || keys[1] != null) {
+                    mSeedKeyMap.put(i, keys);
+                }
+            }
+            mStatus.setText(R.string.text_quick_dump_wait_for_tag);
+            // Dump the first tag.
+            MCReader reader = Common.checkForTagAndCreateReader(this);
+            if (reader != null) {
+                dumpTag(reader);
+            }
+            break;
+        }
+    }
+
+    /**
+     * Dump every new tag (if there is not already a tag being dumped).
+     * Before the key map of the first tag was created, new Intents will
+     * be handled like in every other Activity.
+     * @see BasicActivity#onNewIntent(Intent)
+     */
+    @Override
+    public void onNewIntent(Intent intent) {
+        if (mCandidateKeyMap == null) {
+            super.onNewIntent(intent);
+            return;
+        }
+        if (mIsReading) {
+            // Still reading the last tag.
+            return;
+        }
+        int typeCheck = Common.treatAsNewTag(intent, this, false);
+        MCReader reader = null;
+        if (typeCheck == 0) {
+            reader = Common.checkForTagAndCreateReader(this);
+        }
+        if (reader != null) {
+            dumpTag(reader);
+        } else {
+            mFailedCount++;
+            updateCounters();
+        }
+    }
+
+    /**
+     * Start a worker thread that maps the keys of the tag (using the
+     * key map of the first tag as candidates) and reads the tag at the
+     * same time. The dump is handed over to the background writer.
+     * @param reader A connected {@link MCReader}.
+     */
+    private void dumpTag(final MCReader reader) {
+        mIsReading = true;
+        if (mStartTime == -1) {
+            mStartTime = SystemClock.elapsedRealtime();
+        }
+        final String uid = Common.byte2HexString(Common.getUID());
+        mLastTag.setText(getString(R.string.text_quick_dump_last_tag)
+                + " " + uid);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                reader.setKeyDictionary(mKeyDictionary);
+                reader.setCandidateKeyMap(mCandidateKeyMap);
+                reader.setSeedKeyMap(mSeedKeyMap);
+                reader.setReadWhileMapping(true);
+                reader.setMappingRange(mFirstSector, mLastSector);
+                int status;
+                do {
+                    status = reader.buildNextKeyMapPart();
+                } while (status != -1 && status < mLastSector);
+                SparseArray<String[]> rawDump = reader.getRawDump();
+                mKeyStatistics.add(reader.getKeyMap());
+                reader.close();
+
+                final boolean success = rawDump != null && rawDump.size() > 0;
+                if (success) {
+                    saveDump(uid, Common.rawDumpToLines(
+                            rawDump, mFirstSector, mLastSector));
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (success) {
+                            mDumpedCount++;
+                        } else {
+                            mFailedCount++;
+                        }
+                        updateCounters();
+                        mIsReading = false;
+                    }
+                });
+            }
+        }).start();
+    }
+
+    /**
+     * Save a dump to {@link Common#DUMPS_DIR} using the background writer.
+     * The file name is the UID followed by the date and time
+     * (with milliseconds, so dumps of the same tag do not overwrite
+     * each other).
+     * New keys of the dump are added to the harvested key file
+     * (see {@link KeyHarvester}).
+     * @param uid The UID of the tag.
+     * @param lines The lines of the dump
+     * (see {@link Common#rawDumpToLines(SparseArray, int, int)}).
+     */
+    private void saveDump(String uid, final String[] lines) {
+        long now = System.currentTimeMillis();
+        Time today = new Time(Time.getCurrentTimezone());
+        today.set(now);
+        final File file = new File(
+                Environment.getExternalStoragePublicDirectory(
+                Common.HOME_DIR) + Common.DUMPS_DIR,
+                uid + "-" + today.format("%Y-%m-%d-%H-%M-%S")
+                + String.format("-%03d", now % 1000));
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (Common.saveFile(file, lines)) {
+                    // Add new keys to the harvested key file.
+                    try {
+                        mKeyHarvester.harvest(lines);
+                    } catch (OutOfMemoryError e) {
+                        Log.e(LOG_TAG, "Too many keys to harvest.");
+                    }
+                } else {
+                    Log.e(LOG_TAG, "Error while saving dump "
+                            + file.getName() + ".");
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mDumpedCount--;
+                            mFailedCount++;
+                            updateCounters();
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Update the number of dumped and failed tags and the
+     * tags per minute rate.
+     */
+    private void updateCounters() {
+        mDumped.setText(getString(R.string.text_quick_dump_dumped)
+                + " " + mDumpedCount);
+        mFailed.setText(getString(R.string.text_quick_dump_failed)
+                + " " + mFailedCount);
+        double rate = 0;
+        if (mStartTime != -1 && mDumpedCount > 0) {
+            long elapsed = SystemClock.elapsedRealtime() - mStartTime;
+            rate = mDumpedCount / (Math.max(elapsed, 1) / 60000.0);
+        }
+        mRate.setText(getString(R.string.text_quick_dump_rate)
+                + " " + String.format("%.1f", rate));
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool.Activities;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.WindowManager;
+import android.widget.TextView;
+import android.widget.Toast;
+import de.syss.MifareClassicTool.Common;
+import de.syss.MifareClassicTool.KeySchedule;
+import de.syss.MifareClassicTool.MCReader;
+import de.syss.MifareClassicTool.R;
+
+/**
+ * Change the keys of many tags in a row according to a
+ * {@link KeySchedule}. There are no dialogs after the schedule was chosen.
+ * For every new tag only the sector trailers of the scheduled sectors are
+ * rewritten (see {@link MCReader#changeKeys(int, byte[][], byte[][])}),
+ * the Access Conditions stay the same. A tag that already has the new keys
+ * (e.g. it was removed after writing and is presented again) counts as
+ * re-keyed (result 6). The result of every tag is appended
+ * to a report in {@link Common#LOGS_DIR}
+ * (format: "UID result sector:code sector:code ... time").
+ */
+public class ReKeyActivity extends BasicActivity {
+
+    private static final String LOG_TAG =
+            ReKeyActivity.class.getSimpleName();
+    private final static int FILE_CHOOSER_SCHEDULE_FILE = 1;
+
+    private Handler mHandler = new Handler();
+    private TextView mStatus;
+    private TextView mReKeyed;
+    private TextView mFailed;
+    private TextView mRate;
+    private TextView mLastTag;
+    private KeySchedule mSchedule;
+    private File mReport;
+    private boolean mIsWriting;
+    private int mReKeyedCount;
+    private int mFailedCount;
+    private long mStartTime = -1;
+
+    /**
+     * Check for external storage and show the {@link FileChooserActivity}
+     * to choose the key schedule.
+     */
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_re_key);
+        mStatus = (TextView) findViewById(R.id.textViewReKeyStatus);
+        mReKeyed = (TextView) findViewById(R.id.textViewReKeyDone);
+        mFailed = (TextView) findViewById(R.id.textViewReKeyFailed);
+        mRate = (TextView) findViewById(R.id.textViewReKeyRate);
+        mLastTag = (TextView) findViewById(R.id.textViewReKeyLastTag);
+        updateCounters();
+
+        if (!Common.isExternalStorageWritableErrorToast(this)) {
+            finish();
+            return;
+        }
+
+        // Don't turn screen of while writing tags.
+        getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+        Intent intent = new Intent(this, FileChooserActivity.class);
+        intent.putExtra(FileChooserActivity.EXTRA_DIR,
+                Environment.getExternalStoragePublicDirectory(
+                        Common.HOME_DIR) + Common.KEYS_DIR);
+        intent.putExtra(FileChooserActivity.EXTRA_TITLE,
+                getString(R.string.text_re_key_choose_schedule));
+        intent.putExtra(FileChooserActivity.EXTRA_CHOOSER_TEXT,
+                getString(R.string.text_re_key_choose_schedule));
+        intent.putExtra(FileChooserActivity.EXTRA_BUTTON_TEXT,
+                getString(R.string.menu_re_key));
+        startActivityForResult(intent, FILE_CHOOSER_SCHEDULE_FILE);
+    }
+
+    /**
+     * Read the chosen key schedule. After this, the keys of every
+     * new tag will be changed (see {@link #onNewIntent(Intent)}).
+     */
+    @Override
+    public void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+
+        if (requestCode != FILE_CHOOSER_SCHEDULE_FILE
+                || resultCode != Activity.RESULT_OK) {
+            // Error.
+            finish();
+            return;
+        }
+        File file = new File(data.getStringExtra(
+                FileChooserActivity.EXTRA_CHOSEN_FILE));
+        String[] lines = Common.readFileLineByLine(file, false, this);
+        if (lines != null) {
+            mSchedule = KeySchedule.parse(lines);
+        }
+        if (mSchedule == null) {
+            // Error. Invalid schedule.
+            Toast.makeText(this, R.string.info_invalid_key_schedule,
+                    Toast.LENGTH_LONG).show();
+            finish();
+            return;
+        }
+        mReport = new File(Environment.getExternalStoragePublicDirectory(
+                Common.HOME_DIR) + Common.LOGS_DIR, file.getName() + ".log");
+        mStatus.setText(R.string.text_re_key_wait_for_tag);
+    }
+
+    /**
+     * Change the keys of every new tag (if there is not already a tag
+     * being written). Before the schedule was chosen, new Intents will
+     * be handled like in every other Activity.
+     * @see BasicActivity#onNewIntent(Intent)
+     */
+    @Override
+    public void onNewIntent(Intent intent) {
+        if (mSchedule == null) {
+            super.onNewIntent(intent);
+            return;
+        }
+        if (mIsWriting) {
+            // Still writing the last tag.
+            return;
+        }
+        long start = SystemClock.elapsedRealtime();
+        int typeCheck = Common.treatAsNewTag(intent, this, false);
+        MCReader reader = null;
+        if (typeCheck == 0) {
+            reader = Common.checkForTagAndCreateReader(this);
+        }
+        if (reader != null) {
+            reKeyTag(reader, start);
+        } else {
+            mFailedCount++;
+            updateCounters();
+        }
+    }
+
+    /**
+     * Start a worker thread that changes the keys of all scheduled sectors
+     * of the tag, appends the result to the report and shows it.
+     * @param reader A connected {@link MCReader}.
+     * @param start The time the tag was discovered
+     * ({@link SystemClock#elapsedRealtime()}).
+     */
+    private void reKeyTag(final MCReader reader, final long start) {
+        mIsWriting = true;
+        if (mStartTime == -1) {
+            mStartTime = start;
+        }
+        final String uid = Common.byte2HexString(Common.getUID());
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                StringBuilder sectors = new StringBuilder();
+                int result = 0;
+                boolean alreadyReKeyed = false;
+                for (int sector : mSchedule.getSectors(
+                        reader.getSectorCount())) {
+                    int code = reader.changeKeys(sector,
+                            mSchedule.getOldKeys(sector),
+                            mSchedule.getNewKeys(sector));
+                    sectors.append(" " + sector + ":" + code);
+                    if (code == 6) {
+                        // Already re-keyed (e.g. tag removed after
+                        // writing and presented again).
+                        alreadyReKeyed = true;
+                    } else if (code != 0) {
+                        result = code;
+                        if (code == 4) {
+                            // Tag lost? Stop here.
+                            break;
+                        }
+                    }
+                }
+                if (result == 0 && alreadyReKeyed) {
+                    result = 6;
+                }
+                reader.close();
+                appendToReport(uid + " " + result + sectors + " "
+                        + System.currentTimeMillis());
+                final int finalResult = result;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        int text;
+                        switch (finalResult) {
+                        case 0:
+                            mReKeyedCount++;
+                            text = R.string.text_mass_clone_ok;
+                            break;
+                        case 1:
+                            text = R.string.text_re_key_old_keys_invalid;
+                            break;
+                        case 2:
+                            text = R.string.text_re_key_ac_invalid;
+                            break;
+                        case 3:
+                            text = R.string.text_mass_clone_not_writable;
+                            break;
+                        case 4:
+                            text = R.string.text_mass_clone_write_error;
+                            break;
+                        case 6:
+                            mReKeyedCount++;
+                            text = R.string.text_re_key_already_done;
+                            break;
+                        default:
+                            text = R.string.text_mass_clone_verify_error;
+                        }
+                        if (finalResult != 0 && finalResult != 6) {
+                            mFailedCount++;
+                        }
+                        mLastTag.setText(getString(
+                                R.string.text_mass_clone_last_tag) + " "
+                                + uid + " (" + getString(text) + ")");
+                        updateCounters();
+                        mIsWriting = false;
+                    }
+                });
+            }
+        }).start();
+    }
+
+    /**
+     * Append a line to the report of this schedule.
+     * @param line The line.
+     */
+    private void appendToReport(String line) {
+        File dir = mReport.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.e(LOG_TAG, "Error while creating log directory.");
+            return;
+        }
+        BufferedWriter bw = null;
+        try {
+            bw = new BufferedWriter(new FileWriter(mReport, true));
+            bw.write(line);
+            bw.newLine();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while writing to report.", e);
+        } finally {
+            if (bw != null) {
+                try {
+                    bw.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error while closing file.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Update the number of re-keyed and failed tags and the
+     * tags per minute rate.
+     */
+    private void updateCounters() {
+        mReKeyed.setText(getString(R.string.text_re_key_done)
+                + " " + mReKeyedCount);
+        mFailed.setText(getString(R.string.text_mass_clone_failed)
+                + " " + mFailedCount);
+        double rate = 0;
+        if (mStartTime != -1 && mReKeyedCount > 0) {
+            long elapsed = SystemClock.elapsedRealtime() - mStartTime;
+            rate = mReKeyedCount / (Math.max(elapsed, 1) / 60000.0);
+        }
+        mRate.setText(getString(R.string.text_mass_clone_rate)
+                + " " + String.format("%.1f", rate));
+    }
+}
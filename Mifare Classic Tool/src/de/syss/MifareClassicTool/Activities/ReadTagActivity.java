@@ -18,20 +18,33 @@
 
 package de.syss.MifareClassicTool.Activities;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
 import android.app.Activity;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
+import android.text.TextUtils;
 import android.util.SparseArray;
 import android.widget.Toast;
 import de.syss.MifareClassicTool.Common;
+import de.syss.MifareClassicTool.KeyDictionary;
+import de.syss.MifareClassicTool.KeyMapCache;
+import de.syss.MifareClassicTool.KeyStatistics;
+import de.syss.MifareClassicTool.KeyTier;
+import de.syss.MifareClassicTool.KeyTierSettings;
 import de.syss.MifareClassicTool.MCReader;
 import de.syss.MifareClassicTool.R;
 
 /**
  * Create a key map with the {@link CreateKeyMapActivity} and then
- * read the tag.
+ * read the tag. If there is a cached key map for the tag
+ * (see {@link KeyMapCache}), the tag will be read without
+ * creating a new key map.
  * @author Gerhard Klostermeier
  */
 public class ReadTagActivity extends Activity {
@@ -42,8 +55,9 @@ public class ReadTagActivity extends Activity {
     private SparseArray<String[]> mRawDump;
 
     /**
-     * Check for external storage, create {@link Common#KEYS_DIR} (if it
-     * not already exists) and show the {@link CreateKeyMapActivity}.
+     * Check for external storage and try to read the tag with its
+     * cached key map ({@link #quickRead()}). If this is not possible,
+     * show the {@link CreateKeyMapActivity}.
      */
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -56,19 +70,31 @@ public class ReadTagActivity extends Activity {
             return;
         }
 
+        if (!quickRead()) {
+            startKeyMapCreator();
+        }
+    }
+
+    /**
+     * Show the {@link CreateKeyMapActivity}. Its result will be handled
+     * by {@link #onActivityResult(int, int, Intent)}.
+     */
+    private void startKeyMapCreator() {
         Intent intent = new Intent(this, CreateKeyMapActivity.class);
         intent.putExtra(CreateKeyMapActivity.EXTRA_KEYS_DIR,
                 Environment.getExternalStoragePublicDirectory(
                         Common.HOME_DIR) + Common.KEYS_DIR);
         intent.putExtra(CreateKeyMapActivity.EXTRA_BUTTON_TEXT,
                 getString(R.string.action_create_key_map_and_read));
+        intent.putExtra(CreateKeyMapActivity.EXTRA_READ_TAG, true);
         startActivityForResult(intent, KEY_MAP_CREATOR);
     }
 
     /**
      * Checks the result code of the key mapping process. If the process
-     * was successful the {@link #readTag()}
-     * method will be called.
+     * was successful, the tag was already read while mapping and
+     * {@link #createTagDump(SparseArray)} will be called. (If there is no
+     * tag data, {@link #readTag()} will be called.)
      */
     @Override
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
@@ -83,6 +109,9 @@ public class ReadTagActivity extends Activity {
                             Toast.LENGTH_LONG).show();
                 }
                 finish();
+            } else if (Common.getRawDump() != null) {
+                // Tag was read while mapping.
+                createTagDump(Common.getRawDump());
             } else {
                 // Read Tag.
                 readTag();
@@ -91,6 +120,212 @@ public class ReadTagActivity extends Activity {
         }
     }
 
+    /**
+     * Try to read the tag with its cached key map (see {@link KeyMapCache}).
+     * This is only done if the cached key map covers all sectors of the tag.
+     * A worker thread checks the cached keys (one authentication per key)
+     * and reads the tag at the same time. If a key is not valid anymore,
+     * only the sectors with invalid keys are mapped again with the key
+     * files of the last mapping (see {@link #remapSectors(MCReader, BitSet,
+     * SparseArray, SparseArray)}). The sectors that were already read are
+     * kept. Then {@link #createTagDump(SparseArray)} will be called.
+     * Only if there are no key files of the last mapping (or on error),
+     * the {@link CreateKeyMapActivity} will be shown.
+     * @return True if the quick read was started. False if there is
+     * no (complete) cached key map for the tag.
+     */
+    private boolean quickRead() {
+        if (Common.getTag() == null) {
+            return false;
+        }
+        KeyMapCache cache = new KeyMapCache(new File(
+                Environment.getExternalStoragePublicDirectory(
+                Common.HOME_DIR) + Common.KEY_MAPS_DIR));
+        final SparseArray<byte[][]> cachedKeyMap = cache.get(
+                KeyMapCache.getTagId(Common.getTag()), null);
+        if (cachedKeyMap == null) {
+            return false;
+        }
+        final MCReader reader = Common.checkForTagAndCreateReader(this);
+        if (reader == null) {
+            return false;
+        }
+        final int lastSector = reader.getSectorCount() - 1;
+        if (cachedKeyMap.size() != reader.getSectorCount()) {
+            reader.close();
+            return false;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // Check the cached keys (and read the tag).
+                reader.setCandidateKeyMap(cachedKeyMap);
+                reader.setReadWhileMapping(true);
+                reader.setMappingRange(0, lastSector);
+                int status;
+                do {
+                    status = reader.buildNextKeyMapPart();
+                } while (status != -1 && status < lastSector);
+                boolean valid = status != -1;
+                SparseArray<byte[][]> keyMap = reader.getKeyMap();
+                SparseArray<String[]> rawDump = reader.getRawDump();
+                BitSet invalidSectors = new BitSet();
+                for (int i = 0; valid && i < cachedKeyMap.size(); i++) {
+                    byte[][] cached = cachedKeyMap.valueAt(i);
+                    byte[][] keys = keyMap.get(cachedKeyMap.keyAt(i));
+                    for (int j = 0; j < 2; j++) {
+                        if (cached[j] != null
+                                && (keys == null || keys[j] == null)) {
+                            // Cached key is not valid anymore.
+                            invalidSectors.set(cachedKeyMap.keyAt(i));
+                        }
+                    }
+                }
+                if (valid && !invalidSectors.isEmpty()) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(ReadTagActivity.this,
+                                    R.string.info_remapping_invalid_keys,
+                                    Toast.LENGTH_SHORT).show();
+                        }
+                    });
+                    valid = remapSectors(reader, invalidSectors,
+                            keyMap, rawDump);
+                }
+                if (valid && keyMap.size() > 0) {
+                    Common.setKeyMap(keyMap);
+                    Common.setKeyMapRange(0, lastSector);
+                    mRawDump = rawDump;
+                } else {
+                    valid = false;
+                }
+                reader.close();
+
+                final boolean readWithCachedKeys = valid;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (readWithCachedKeys) {
+                            createTagDump(mRawDump);
+                        } else {
+                            startKeyMapCreator();
+                        }
+                    }
+                });
+            }
+        }).start();
+        return true;
+    }
+
+    /**
+     * Map (and read) some sectors again with the key files of the last
+     * mapping (see {@link KeyTierSettings}), without showing the
+     * {@link CreateKeyMapActivity}. The keys of these sectors that are
+     * still valid are used as seed keys. The results are merged into
+     * the given key map and tag data, complete sectors are added to the
+     * {@link KeyMapCache} and the found keys to the
+     * {@link KeyStatistics}. This must be called in a worker thread.
+     * @param reader A connected {@link MCReader}.
+     * @param sectors The sectors to map again.
+     * @param keyMap The key map the results will be merged into.
+     * @param rawDump The tag data the results will be merged into.
+     * @return True if the sectors were mapped. False if there are no key
+     * files of the last mapping or on error (e.g. tag lost).
+     */
+    private boolean remapSectors(MCReader reader, BitSet sectors,
+            SparseArray<byte[][]> keyMap, SparseArray<String[]> rawDump) {
+        File home = Environment.getExternalStoragePublicDirectory(
+                Common.HOME_DIR);
+        KeyTierSettings settings = new KeyTierSettings(
+                new File(home + Common.KEY_TIERS_FILE));
+        List<File> keyFiles = settings.getCheckedFiles(
+                new File(home + Common.KEYS_DIR));
+        if (keyFiles.size() == 0) {
+            return false;
+        }
+        // Every key file is a tier with the budget of the last mapping.
+        ArrayList<KeyTier> tiers = new ArrayList<KeyTier>(keyFiles.size());
+        try {
+            for (File keyFile : keyFiles) {
+                KeyDictionary dictionary = MCReader.loadKeyFiles(
+                        new File[] {keyFile});
+                if (dictionary == null) {
+                    dictionary = new KeyDictionary(new long[0], 0);
+                }
+                KeyTierSettings.Tier tier = settings.getTier(
+                        keyFile.getName());
+                tiers.add(new KeyTier(dictionary, tier.getMaxKeys(),
+                        tier.getMaxSeconds() * 1000L));
+            }
+        } catch (OutOfMemoryError e) {
+            // Too many keys. Let the user choose other key files.
+            return false;
+        }
+        reader.setKeyTiers(tiers);
+        KeyStatistics statistics = new KeyStatistics(
+                new File(home + Common.KEY_STATISTICS_FILE));
+        if (!settings.isUserOrder()) {
+            reader.orderKeyTiers(statistics);
+        }
+        reader.rankKeys(statistics);
+        // Keys that are still valid are seeds. There are no candidates,
+        // because the cached keys were just checked.
+        SparseArray<byte[][]> seeds = new SparseArray<byte[][]>();
+        for (int i = sectors.nextSetBit(0); i != -1;
+                i = sectors.nextSetBit(i + 1)) {
+            if (keyMap.get(i) != null) {
+                seeds.put(i, keyMap.get(i));
+            }
+        }
+        reader.setCandidateKeyMap(null);
+        reader.setSeedKeyMap(seeds);
+        reader.setReadWhileMapping(true);
+        if (!reader.setMappingSectors(sectors)) {
+            return false;
+        }
+        while (!reader.isKeyMapComplete()) {
+            if (reader.buildNextKeyMapStep() == -1) {
+                // Error (e.g. tag lost).
+                return false;
+            }
+        }
+
+        // Merge the results and cache the complete sectors.
+        File[] files = keyFiles.toArray(new File[keyFiles.size()]);
+        String dictionaryId = KeyDictionary.getId(files);
+        String tagId = KeyMapCache.getTagId(Common.getTag());
+        KeyMapCache cache = new KeyMapCache(
+                new File(home + Common.KEY_MAPS_DIR));
+        SparseArray<byte[][]> remapped = reader.getKeyMap();
+        SparseArray<String[]> reread = reader.getRawDump();
+        for (int i = sectors.nextSetBit(0); i != -1;
+                i = sectors.nextSetBit(i + 1)) {
+            byte[][] keys = remapped.get(i);
+            if (keys != null) {
+                keyMap.put(i, keys);
+            } else {
+                keyMap.remove(i);
+            }
+            if (reread != null && reread.get(i) != null) {
+                rawDump.put(i, reread.get(i));
+            }
+            boolean[] exhausted = reader.getExhaustedKeys(i);
+            boolean complete = true;
+            for (int j = 0; j < 2; j++) {
+                if ((keys == null || keys[j] == null) && !exhausted[j]) {
+                    complete = false;
+                }
+            }
+            if (complete) {
+                cache.put(tagId, i, keys, dictionaryId);
+            }
+        }
+        statistics.add(remapped);
+        statistics.save();
+        return true;
+    }
+
     /**
      * Triggered by {@link #onActivityResult(int, int, Intent)}
      * this method starts a worker thread that first reads the tag and then
@@ -130,26 +365,13 @@ public class ReadTagActivity extends Activity {
      * @see DumpEditorActivity
      */
     private void createTagDump(SparseArray<String[]> rawDump) {
-        String dump = "";
-        String s = System.getProperty("line.separator");
         if (rawDump != null) {
             if (rawDump.size() != 0) {
-                for (int i = Common.getKeyMapRangeFrom();
-                        i <= Common.getKeyMapRangeTo(); i++) {
-                    String[] val = rawDump.get(i);
-                    // Mark headers (sectors) with "+".
-                    dump += "+Sector: " + i + s;
-                    if (val != null ) {
-                        for (int j = 0; j < val.length; j++) {
-                            dump += val[j] + s;
-                        }
-                    } else {
-                        // Mark sector as not readable ("*").
-                        dump += "*No keys found or dead sector" + s;
-                    }
-                }
-                // UGLY: remove last "\n".
-                dump = dump.substring(0, dump.length() -1);
+                String[] lines = Common.rawDumpToLines(rawDump,
+                        Common.getKeyMapRangeFrom(),
+                        Common.getKeyMapRangeTo());
+                String dump = TextUtils.join(
+                        System.getProperty("line.separator"), lines);
                 // Show Dump Editor Activity.
                 Intent intent = new Intent(this,
                         DumpEditorActivity.class);;
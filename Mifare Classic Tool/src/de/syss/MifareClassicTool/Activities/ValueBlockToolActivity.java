@@ -19,7 +19,6 @@
 package de.syss.MifareClassicTool.Activities;
 
 import java.nio.ByteBuffer;
-import java.util.Locale;
 
 import android.os.Bundle;
 import android.view.View;
@@ -112,18 +111,8 @@ public class ValueBlockToolActivity extends BasicActivity {
             Toast.makeText(this, message, Toast.LENGTH_LONG).show();
             return;
         }
-        // Int. -> reverse -> byte array -> hex string.
-        String vb = Common.byte2HexString(ByteBuffer.allocate(4).putInt(
-                Integer.reverseBytes(vbAsInt)).array());
-        // Int. -> invert -> reverse -> byte array -> hex string.
-        String vbInverted = Common.byte2HexString(ByteBuffer.allocate(4).putInt(
-                Integer.reverseBytes(~vbAsInt)).array());
-        String addr = addrText;
-        String addrInverted = Integer.toHexString(
-                ~Integer.parseInt(addr, 16)).toUpperCase(
-                        Locale.getDefault()).substring(6, 8);
-        mVB.setText(vb + vbInverted + vb
-                + addr + addrInverted + addr + addrInverted);
+        mVB.setText(Common.encodeValueBlock(vbAsInt,
+                Integer.parseInt(addrText, 16)));
 
     }
 
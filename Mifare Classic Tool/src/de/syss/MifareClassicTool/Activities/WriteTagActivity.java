@@ -49,6 +49,8 @@ import android.widget.Toast;
 import de.syss.MifareClassicTool.Common;
 import de.syss.MifareClassicTool.MCReader;
 import de.syss.MifareClassicTool.R;
+import de.syss.MifareClassicTool.WriteJournal;
+import de.syss.MifareClassicTool.WritePlan;
 
 /**
  * Write data to tag. The user can choose to write
@@ -70,6 +72,9 @@ public class WriteTagActivity extends BasicActivity {
     private ArrayList<View> mWriteModeLayouts;
     private CheckBox mWriteManufBlock;
     private CheckBox mEnableStaticAC;
+    private CheckBox mWriteOnlyChangesDump;
+    private CheckBox mWriteOnlyChangesFactoryFormat;
+    private boolean mWriteOnlyChanges;
     private HashMap<Integer, HashMap<Integer, byte[]>> mDumpWithPos;
 
 
@@ -91,6 +96,10 @@ public class WriteTagActivity extends BasicActivity {
                 R.id.checkBoxWriteTagDumpStaticAC);
         mWriteManufBlock = (CheckBox) findViewById(
                 R.id.checkBoxWriteTagDumpWriteManuf);
+        mWriteOnlyChangesDump = (CheckBox) findViewById(
+                R.id.checkBoxWriteTagDumpOnlyChanges);
+        mWriteOnlyChangesFactoryFormat = (CheckBox) findViewById(
+                R.id.checkBoxWriteTagFactoryFormatOnlyChanges);
 
         mWriteModeLayouts = new ArrayList<View>();
         mWriteModeLayouts.add(findViewById(R.id.LayoutWriteTagWriteBlock));
@@ -101,6 +110,8 @@ public class WriteTagActivity extends BasicActivity {
         if (savedInstanceState != null) {
             mWriteManufBlock.setChecked(
                     savedInstanceState.getBoolean("write_manuf_block", false));
+            mWriteOnlyChanges = savedInstanceState.getBoolean(
+                    "write_only_changes", false);
             Serializable s = savedInstanceState
                     .getSerializable("dump_with_pos");
             if (s instanceof HashMap<?, ?>) {
@@ -110,12 +121,14 @@ public class WriteTagActivity extends BasicActivity {
     }
 
     /**
-     * Save {@link #mWriteManufBlock} state and {@link #mDumpWithPos}.
+     * Save {@link #mWriteManufBlock} state, {@link #mWriteOnlyChanges}
+     * and {@link #mDumpWithPos}.
      */
     @Override
     public void onSaveInstanceState (Bundle outState) {
         super.onSaveInstanceState(outState);
         outState.putBoolean("write_manuf_block", mWriteManufBlock.isChecked());
+        outState.putBoolean("write_only_changes", mWriteOnlyChanges);
         outState.putSerializable("dump_with_pos", mDumpWithPos);
     }
 
@@ -442,6 +455,7 @@ public class WriteTagActivity extends BasicActivity {
                 return;
             }
         }
+        mWriteOnlyChanges = mWriteOnlyChangesDump.isChecked();
         // Show file chooser (chose dump).
         Intent intent = new Intent(this, FileChooserActivity.class);
         intent.putExtra(FileChooserActivity.EXTRA_DIR,
@@ -464,7 +478,13 @@ public class WriteTagActivity extends BasicActivity {
      * If the "use static Access Condition" option is enabled, all the ACs
      * will be replaced by the static ones.
      * After all this, {@link CreateKeyMapActivity} is called to create
-     * a key map for the present tag.
+     * a key map for the present tag. The keys from the sector trailers
+     * of the dump are tried first (see
+     * {@link CreateKeyMapActivity#EXTRA_SEED_KEYS}), so the key files
+     * are only needed for sectors these keys do not work for
+     * (e.g. if the dump is written back to the original tag).
+     * Only the keys needed to write the blocks of the dump are searched
+     * (see {@link CreateKeyMapActivity#EXTRA_MAPPING_GOAL}).
      * @param pathToDump path and filename of the dump
      * (selected by {@link FileChooserActivity}).
      */
@@ -505,16 +525,49 @@ public class WriteTagActivity extends BasicActivity {
                 block++;
             }
         }
+        // Use the keys of the dump as seed keys.
+        SparseArray<byte[][]> dumpKeys = Common.getKeysFromDump(dump);
+        String[] seedKeys = new String[
+                Collections.max(mDumpWithPos.keySet()) + 1];
+        for (int i = 0; i < dumpKeys.size(); i++) {
+            int seedSector = dumpKeys.keyAt(i);
+            byte[][] keys = dumpKeys.valueAt(i);
+            if (seedSector < seedKeys.length) {
+                seedKeys[seedSector] = ((keys[0] != null)
+                        ? Common.byte2HexString(keys[0]) : MCReader.NO_KEY)
+                        + ((keys[1] != null)
+                        ? Common.byte2HexString(keys[1]) : MCReader.NO_KEY);
+            }
+        }
         // Show key map creator.
         Intent intent = new Intent(this, CreateKeyMapActivity.class);
         intent.putExtra(CreateKeyMapActivity.EXTRA_KEYS_DIR,
                 Environment.getExternalStoragePublicDirectory(Common.HOME_DIR)
                 + Common.KEYS_DIR);
         intent.putExtra(CreateKeyMapActivity.EXTRA_SECTOR_CHOOSER, false);
-        intent.putExtra(CreateKeyMapActivity.EXTRA_SECTOR_CHOOSER_FROM,
-                (int) Collections.min(mDumpWithPos.keySet()));
-        intent.putExtra(CreateKeyMapActivity.EXTRA_SECTOR_CHOOSER_TO,
-                (int) Collections.max(mDumpWithPos.keySet()));
+        intent.putExtra(CreateKeyMapActivity.EXTRA_SEED_KEYS, seedKeys);
+        // Only search the keys that are needed to write the dump.
+        HashMap<Integer, int[]> dumpPos =
+                new HashMap<Integer, int[]>(mDumpWithPos.size());
+        for (int dumpSector : mDumpWithPos.keySet()) {
+            int i = 0;
+            int[] blocks = new int[mDumpWithPos.get(dumpSector).size()];
+            for (int dumpBlock : mDumpWithPos.get(dumpSector).keySet()) {
+                blocks[i++] = dumpBlock;
+            }
+            dumpPos.put(dumpSector, blocks);
+        }
+        intent.putExtra(CreateKeyMapActivity.EXTRA_MAPPING_GOAL,
+                MCReader.MappingGoal.WriteBlocks.name());
+        intent.putExtra(CreateKeyMapActivity.EXTRA_MAPPING_GOAL_BLOCKS,
+                dumpPos);
+        // Only map the sectors of the dump.
+        int[] sectors = new int[mDumpWithPos.size()];
+        int i = 0;
+        for (int dumpSector : mDumpWithPos.keySet()) {
+            sectors[i++] = dumpSector;
+        }
+        intent.putExtra(CreateKeyMapActivity.EXTRA_SECTORS, sectors);
         intent.putExtra(CreateKeyMapActivity.EXTRA_BUTTON_TEXT,
                 getString(R.string.action_create_key_map_and_write_dump));
         startActivityForResult(intent, KMC_WRTIE_DUMP);
@@ -529,12 +582,14 @@ public class WriteTagActivity extends BasicActivity {
      * are read-only (write check).<br />
      * If some of these checks "fail", the user will get a report dialog
      * with the two options to cancel the whole write process or to
-     * write as much as possible(call {@link #writeDump(HashMap,
-     * SparseArray)}).
+     * write as much as possible(call {@link #writeDump(WritePlan)}).
+     * If only changes should be written, all blocks that are already on
+     * the tag will be removed from {@link #mDumpWithPos} before these checks
+     * (see {@link #removeUnchangedBlocks(MCReader, SparseArray)}).
      * @see MCReader#isWritableOnPositions(HashMap, SparseArray)
      * @see Common#getOperationInfoForBlock(byte, byte,
      * byte, de.syss.MifareClassicTool.Common.Operations, boolean, boolean)
-     * @see #writeDump(HashMap, SparseArray)
+     * @see #writeDump(WritePlan)
      */
     private void checkTag() {
         // Create reader.
@@ -557,6 +612,11 @@ public class WriteTagActivity extends BasicActivity {
         // Reformat for reader.isWritabeOnPosition(...).
         final SparseArray<byte[][]> keyMap  =
                 Common.getKeyMap();
+        // Use the Access Conditions read while creating the key map.
+        reader.setACCache(Common.getACCache());
+        if (mWriteOnlyChanges) {
+            removeUnchangedBlocks(reader, keyMap);
+        }
         HashMap<Integer, int[]> dataPos =
                 new HashMap<Integer, int[]>(mDumpWithPos.size());
         for (int sector : mDumpWithPos.keySet()) {
@@ -650,10 +710,8 @@ public class WriteTagActivity extends BasicActivity {
                     break;
                 case 3:
                     // No Problem. Both keys have write privileges.
-                    // Set to key A or B depending on which one is available.
-                    writeOnPosSafe.get(sector).put(
-                            block, (keys[0] != null) ? 1 : 2);
-                    isSafeForWriting = false; // Already added.
+                    // The write plan will use the key that is
+                    // available (and needed anyway).
                     break;
                 case 4:
                     if (keys[0] == null) {
@@ -735,7 +793,8 @@ public class WriteTagActivity extends BasicActivity {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
                         // Skip not writable blocks and start writing.
-                        writeDump(writeOnPosSafe, keyMap);
+                        writeDump(new WritePlan(
+                                writeOnPosSafe, mDumpWithPos, keyMap));
                     }
                 })
                 .setNegativeButton(R.string.action_cancel_all,
@@ -748,8 +807,48 @@ public class WriteTagActivity extends BasicActivity {
                 .show();
         } else {
             // Write.
-            writeDump(writeOnPosSafe, keyMap);
+            writeDump(new WritePlan(writeOnPosSafe, mDumpWithPos, keyMap));
+        }
+    }
+
+    /**
+     * Read the tag (with all keys of the key map) and remove all
+     * blocks from {@link #mDumpWithPos} that already contain the same data.
+     * Blocks that could not be read will not be removed.
+     * Sectors without any remaining block will be removed completely.
+     * @param reader A connected {@link MCReader}.
+     * @param keyMap A key map generated by {@link CreateKeyMapActivity}.
+     */
+    private void removeUnchangedBlocks(MCReader reader,
+            SparseArray<byte[][]> keyMap) {
+        SparseArray<String[]> tagData = reader.readAsMuchAsPossible(keyMap);
+        if (tagData == null) {
+            // Error. Tag removed. Keep all blocks.
+            return;
+        }
+        // Copy instead of modifying the blocks of mDumpWithPos because some
+        // sectors may share the same map (see createFactoryFormatedDump()).
+        HashMap<Integer, HashMap<Integer, byte[]>> changed =
+                new HashMap<Integer, HashMap<Integer,byte[]>>(
+                        mDumpWithPos.size());
+        for (int sector : mDumpWithPos.keySet()) {
+            String[] current = tagData.get(sector);
+            HashMap<Integer, byte[]> blocks = new HashMap<Integer, byte[]>();
+            for (int block : mDumpWithPos.get(sector).keySet()) {
+                byte[] data = mDumpWithPos.get(sector).get(block);
+                if (current != null && block < current.length
+                        && current[block].equals(
+                                Common.byte2HexString(data))) {
+                    // Block is already on the tag.
+                    continue;
+                }
+                blocks.put(block, data);
+            }
+            if (blocks.size() > 0) {
+                changed.put(sector, blocks);
+            }
         }
+        mDumpWithPos = changed;
     }
 
     /**
@@ -773,20 +872,17 @@ public class WriteTagActivity extends BasicActivity {
     /**
      * This method is triggered by {@link #checkTag()} and writes a dump
      * to a tag.
-     * @param writeOnPos A map within a map (all with type = Integer).
-     * The key of the outer map is the sector number and the value is another
-     * map with key = block number and value = write information. The write
-     * information must be filtered (by {@link #checkTag()}) return values
-     * of {@link MCReader#isWritableOnPositions(HashMap, SparseArray)}.<br />
+     * @param plan The write plan created from the write information
+     * filtered by {@link #checkTag()} (return values
+     * of {@link MCReader#isWritableOnPositions(HashMap, SparseArray)}).
+     * The blocks are written sector by sector with as few
+     * authentications as possible.<br />
      * Attention: This method does not any checking. The position and write
      * information must be checked by {@link #checkTag()}.
-     * @param keyMap A key map generated by {@link CreateKeyMapActivity}.
      */
-    private void writeDump(
-            final HashMap<Integer, HashMap<Integer, Integer>> writeOnPos,
-            final SparseArray<byte[][]> keyMap) {
+    private void writeDump(final WritePlan plan) {
         // Check for write data.
-        if (writeOnPos.size() == 0) {
+        if (plan.getSteps().size() == 0) {
             // Nothing to write. Exit.
             Toast.makeText(this, R.string.info_nothing_to_write,
                     Toast.LENGTH_LONG).show();
@@ -798,6 +894,12 @@ public class WriteTagActivity extends BasicActivity {
         if (reader == null) {
             return;
         }
+        // Log the written blocks. If the tag gets lost, writing will
+        // resume on the next try with the same tag and dump.
+        final String uid = Common.byte2HexString(Common.getUID());
+        final WriteJournal journal = new WriteJournal(new File(
+                Environment.getExternalStoragePublicDirectory(
+                Common.HOME_DIR) + Common.WRITE_JOURNALS_DIR));
 
         // Display don't remove warning.
         LinearLayout ll = new LinearLayout(this);
@@ -825,40 +927,19 @@ public class WriteTagActivity extends BasicActivity {
             @Override
             public void run() {
                 // Write dump to tag.
-                for (int sector : writeOnPos.keySet()) {
-                    byte[][] keys = keyMap.get(sector);
-                    for (int block : writeOnPos.get(sector).keySet()) {
-                        // Select key with write privileges.
-                        byte writeKey[] = null;
-                        boolean useAsKeyB = true;
-                        int wi = writeOnPos.get(sector).get(block);
-                        if (wi == 1 || wi == 4) {
-                            writeKey = keys[0]; // Write with key A.
-                            useAsKeyB = false;
-                        } else if (wi == 2 || wi == 5 || wi == 6) {
-                            writeKey = keys[1]; // Write with key B.
+                int result = plan.execute(reader, journal, uid);
+                if (result != 0) {
+                    // Error. Some error while writing.
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(a, R.string.info_write_error,
+                                    Toast.LENGTH_LONG).show();
                         }
-
-                        // Write block.
-                        int result = reader.writeBlock(sector, block,
-                                mDumpWithPos.get(sector).get(block),
-                                writeKey, useAsKeyB);
-
-                        if (result != 0) {
-                            // Error. Some error while writing.
-                            handler.post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    Toast.makeText(a,
-                                            R.string.info_write_error,
-                                            Toast.LENGTH_LONG).show();
-                                }
-                            });
-                            reader.close();
-                            warning.cancel();
-                            return;
-                        }
-                    }
+                    });
+                    reader.close();
+                    warning.cancel();
+                    return;
                 }
                 // Finished writing.
                 reader.close();
@@ -882,6 +963,7 @@ public class WriteTagActivity extends BasicActivity {
      * @see CreateKeyMapActivity
      */
     public void onFactoryFormat(View view) {
+        mWriteOnlyChanges = mWriteOnlyChangesFactoryFormat.isChecked();
         // Show key map creator.
         Intent intent = new Intent(this, CreateKeyMapActivity.class);
         intent.putExtra(CreateKeyMapActivity.EXTRA_KEYS_DIR,
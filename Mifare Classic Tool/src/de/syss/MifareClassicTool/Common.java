@@ -24,8 +24,10 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 
 import android.annotation.SuppressLint;
 import android.app.Activity;
@@ -76,6 +78,68 @@ public class Common {
      */
     public static final String TMP_DIR = "/tmp";
 
+    /**
+     * The directory name of the folder where files are stored that
+     * can be recreated at any time (e.g. compiled key files).
+     * (sub directory of {@link #HOME_DIR}.)
+     */
+    public static final String CACHE_DIR = "/cache";
+
+    /**
+     * The directory name of the folder where logs (e.g. the results of
+     * personalizing tags with a {@link DumpTemplate}) are stored.
+     * (sub directory of {@link #HOME_DIR}.)
+     */
+    public static final String LOGS_DIR = "/logs";
+
+    /**
+     * The directory name of the folder where the key maps of tags
+     * are cached (see {@link KeyMapCache}).
+     * (sub directory of {@link #HOME_DIR}.)
+     */
+    public static final String KEY_MAPS_DIR = CACHE_DIR + "/key-maps";
+
+    /**
+     * The directory name of the folder where the journals of
+     * interrupted writes are stored (see {@link WriteJournal}).
+     * (sub directory of {@link #HOME_DIR}.)
+     */
+    public static final String WRITE_JOURNALS_DIR =
+            CACHE_DIR + "/write-journals";
+
+    /**
+     * The file in which the key hit statistics are stored
+     * (see {@link KeyStatistics}). Unlike the files in {@link #CACHE_DIR}
+     * it can not be recreated.
+     * (in {@link #HOME_DIR}.)
+     */
+    public static final String KEY_STATISTICS_FILE = "/key-statistics.txt";
+
+    /**
+     * The file in which the order, the checked state and the budgets of
+     * the key files of the last key mapping are stored
+     * (see {@link KeyTierSettings}).
+     * (in {@link #HOME_DIR}.)
+     */
+    public static final String KEY_TIERS_FILE = "/key-tiers.txt";
+
+    /**
+     * The file in which the time of the last harvest of the dumps
+     * directory is stored (see {@link KeyHarvester}).
+     * (in {@link #HOME_DIR}.)
+     */
+    public static final String LAST_HARVEST_FILE =
+            CACHE_DIR + "/last-key-harvest.txt";
+
+    /**
+     * The file in which the trained model of the {@link KeyPredictor}
+     * is stored. It is updated together with the harvested keys
+     * (see {@link KeyHarvester}).
+     * (in {@link #HOME_DIR}.)
+     */
+    public static final String KEY_PREDICTOR_FILE =
+            CACHE_DIR + "/key-predictor.txt";
+
     /**
      * This file contains some standard Mifare keys.
      * <ul>
@@ -87,6 +151,13 @@ public class Common {
      */
     public static final String STD_KEYS = "std.keys";
 
+    /**
+     * This file contains the keys found in dumps that were not in any
+     * other key file (see {@link KeyHarvester}). It is updated
+     * automatically.
+     */
+    public static final String HARVESTED_KEYS = "harvested.keys";
+
     /**
      * Some classical Mifare keys retrieved by a quick google search
      * ("mifare standard keys").
@@ -130,6 +201,22 @@ public class Common {
      */
     private static SparseArray<byte[][]> mKeyMap = null;
 
+    /**
+     * Just a global storage to save the tag data read by
+     * {@link Activities.CreateKeyMapActivity} while creating a key map.
+     * @see Activities.CreateKeyMapActivity#EXTRA_READ_TAG
+     * @see MCReader#getRawDump()
+     */
+    private static SparseArray<String[]> mRawDump = null;
+
+    /**
+     * Just a global storage to save the Access Conditions decoded by
+     * {@link Activities.CreateKeyMapActivity} while creating a key map.
+     * It will be cleared if a tag with a different UID is detected.
+     * @see MCReader#getACCache()
+     */
+    private static SparseArray<byte[][]> mACCache = null;
+
     /**
      * Global storage for the point where
      * {@link Activities.CreateKeyMapActivity} started to create a key map.
@@ -148,6 +235,11 @@ public class Common {
 
     private static NfcAdapter mNfcAdapter;
 
+    /**
+     * The App wide key harvester (see {@link #getKeyHarvester()}).
+     */
+    private static KeyHarvester mKeyHarvester = null;
+
 // ############################################################################
 
     /**
@@ -268,6 +360,148 @@ public class Common {
         return noError;
     }
 
+    /**
+     * Convert a tag dump (like {@link MCReader#readAsMuchAsPossible()}
+     * returns) into the lines of a dump file (format: headers (sectors)
+     * marked with "+", errors marked with "*").
+     * @param rawDump The tag dump.
+     * @param firstSector The first sector of the dump.
+     * @param lastSector The last sector of the dump.
+     * @return The lines of the dump.
+     */
+    public static String[] rawDumpToLines(SparseArray<String[]> rawDump,
+            int firstSector, int lastSector) {
+        ArrayList<String> lines = new ArrayList<String>();
+        for (int i = firstSector; i <= lastSector; i++) {
+            String[] val = rawDump.get(i);
+            // Mark headers (sectors) with "+".
+            lines.add("+Sector: " + i);
+            if (val != null ) {
+                for (int j = 0; j < val.length; j++) {
+                    lines.add(val[j]);
+                }
+            } else {
+                // Mark sector as not readable ("*").
+                lines.add("*No keys found or dead sector");
+            }
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     * Convert the lines of a dump file into blocks with their positions.
+     * Blocks containing unknown data ("-") and error lines ("*")
+     * will be skipped.
+     * @param lines The lines of the dump file
+     * (see {@link #rawDumpToLines(SparseArray, int, int)}).
+     * @return A map with key = sector and value = map with key = block
+     * and value = 16 byte of data. "null" if the dump is invalid.
+     */
+    public static HashMap<Integer, HashMap<Integer, byte[]>> dumpLinesToBlocks(
+            String[] lines) {
+        HashMap<Integer, HashMap<Integer, byte[]>> ret =
+                new HashMap<Integer, HashMap<Integer, byte[]>>();
+        HashMap<Integer, byte[]> sector = null;
+        int block = 0;
+        for (String line : lines) {
+            if (line.startsWith("+")) {
+                String[] tmp = line.split(": ");
+                try {
+                    sector = new HashMap<Integer, byte[]>();
+                    ret.put(Integer.parseInt(tmp[tmp.length-1]), sector);
+                } catch (NumberFormatException e) {
+                    Log.e(LOG_TAG, "Invalid sector header in dump.");
+                    return null;
+                }
+                block = 0;
+            } else if (line.startsWith("*")) {
+                continue;
+            } else if (sector != null) {
+                if (line.length() == 32 && line.matches("[0-9A-Fa-f]+")) {
+                    sector.put(block, hexStringToByteArray(line));
+                }
+                block++;
+            }
+        }
+        if (ret.size() == 0) {
+            return null;
+        }
+        return ret;
+    }
+
+    /**
+     * Convert a tag dump (like {@link MCReader#readAsMuchAsPossible()}
+     * returns it) into blocks with their positions, without the detour
+     * over the lines of a dump file. Blocks with unknown data
+     * (e.g. {@link MCReader#NO_DATA} or sector trailers with an
+     * unknown key) will be skipped.
+     * @param rawDump A tag dump like {@link MCReader#readAsMuchAsPossible()}
+     * returns.
+     * @return A map like {@link #dumpLinesToBlocks(String[])} returns it.
+     * "null" if there are no known blocks.
+     */
+    public static HashMap<Integer, HashMap<Integer, byte[]>> rawDumpToBlocks(
+            SparseArray<String[]> rawDump) {
+        HashMap<Integer, HashMap<Integer, byte[]>> ret =
+                new HashMap<Integer, HashMap<Integer, byte[]>>();
+        for (int i = 0; i < rawDump.size(); i++) {
+            String[] blocks = rawDump.valueAt(i);
+            HashMap<Integer, byte[]> sector = new HashMap<Integer, byte[]>();
+            for (int j = 0; j < blocks.length; j++) {
+                if (blocks[j] != null && !blocks[j].contains("-")) {
+                    sector.put(j, hexStringToByteArray(blocks[j]));
+                }
+            }
+            if (sector.size() > 0) {
+                ret.put(rawDump.keyAt(i), sector);
+            }
+        }
+        if (ret.size() == 0) {
+            return null;
+        }
+        return ret;
+    }
+
+    /**
+     * Get the keys from the sector trailers of a dump file. These keys
+     * are the best guess for a tag to which the dump was or will be
+     * written (e.g. the original tag).
+     * @param lines The lines of the dump file
+     * (see {@link #rawDumpToLines(SparseArray, int, int)}).
+     * @return Keys (A and B) mapped to a sector (like
+     * {@link MCReader#getKeyMap()}). Unknown keys are "null". Sectors
+     * without a known key are not in the map.
+     */
+    public static SparseArray<byte[][]> getKeysFromDump(String[] lines) {
+        SparseArray<byte[][]> ret = new SparseArray<byte[][]>();
+        int sector = -1;
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i].startsWith("+")) {
+                String[] tmp = lines[i].split(": ");
+                try {
+                    sector = Integer.parseInt(tmp[tmp.length-1]);
+                } catch (NumberFormatException e) {
+                    sector = -1;
+                }
+            } else if (sector != -1 && lines[i].length() == 32
+                    && (i+1 == lines.length || lines[i+1].startsWith("+"))) {
+                // Sector trailer.
+                byte[][] keys = new byte[2][];
+                String[] hexKeys = new String[] {
+                        lines[i].substring(0, 12), lines[i].substring(20) };
+                for (int j = 0; j < 2; j++) {
+                    if (hexKeys[j].matches("[0-9A-Fa-f]{12}")) {
+                        keys[j] = hexStringToByteArray(hexKeys[j]);
+                    }
+                }
+                if (keys[0] != null || keys[1] != null) {
+                    ret.put(sector, keys);
+                }
+            }
+        }
+        return ret;
+    }
+
     /**
      * Enables the NFC foreground dispatch system for the given Activity.
      * @param targetActivity The Activity that is in foreground and wants to
@@ -322,18 +556,39 @@ public class Common {
      * @see #checkMifareClassicSupport(Tag, Context)
      */
     public static int treatAsNewTag(Intent intent, Context context) {
+        return treatAsNewTag(intent, context, true);
+    }
+
+    /**
+     * Like {@link #treatAsNewTag(Intent, Context)}, but the Toast
+     * message with the UID can be disabled (e.g. if many tags are
+     * read in a row).
+     * @param intent The Intent which should be checked for a new Tag.
+     * @param context The Context in which the Toast will be shown.
+     * @param showToast If true, a Toast message with the UID will be shown.
+     * @return See {@link #treatAsNewTag(Intent, Context)}.
+     * @see #treatAsNewTag(Intent, Context)
+     */
+    public static int treatAsNewTag(Intent intent, Context context,
+            boolean showToast) {
         // Check if Intent has a NFC Tag.
         if (NfcAdapter.ACTION_TECH_DISCOVERED.equals(intent.getAction())) {
             Tag tag = intent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
             mTag = tag;
+            if (mUID == null || !Arrays.equals(mUID, tag.getId())) {
+                // The cached Access Conditions belong to another tag.
+                mACCache = null;
+            }
             mUID = tag.getId();
 
-            // Show Toast message with UID.
-            String id = context.getResources().getString(
-                    R.string.info_new_tag_found) + " (UID: ";
-            id += byte2HexString(tag.getId());
-            id += ")";
-            Toast.makeText(context, id, Toast.LENGTH_LONG).show();
+            if (showToast) {
+                // Show Toast message with UID.
+                String id = context.getResources().getString(
+                        R.string.info_new_tag_found) + " (UID: ";
+                id += byte2HexString(tag.getId());
+                id += ")";
+                Toast.makeText(context, id, Toast.LENGTH_LONG).show();
+            }
             return checkMifareClassicSupport(tag, context);
         }
         return -4;
@@ -589,9 +844,9 @@ public class Common {
      */
     public static boolean isKeyBReadable(byte c1, byte c2, byte c3) {
         if (c1 == 0
-                && (c2 == 0 && c3 == 0)
+                && ((c2 == 0 && c3 == 0)
                 || (c2 == 1 && c3 == 0)
-                || (c2 == 0 && c3 == 1)) {
+                || (c2 == 0 && c3 == 1))) {
             return true;
         }
         return false;
@@ -741,6 +996,39 @@ public class Common {
         return false;
     }
 
+    /**
+     * Encode an integer and an address into a value block
+     * (see {@link #isValueBlock(String)}).
+     * @param value The value.
+     * @param addr The address (one byte, 0 - 255).
+     * @return The value block as hex string.
+     */
+    public static String encodeValueBlock(int value, int addr) {
+        // Int. -> reverse -> byte array -> hex string.
+        String vb = byte2HexString(ByteBuffer.allocate(4).putInt(
+                Integer.reverseBytes(value)).array());
+        // Int. -> invert -> reverse -> byte array -> hex string.
+        String vbInverted = byte2HexString(ByteBuffer.allocate(4).putInt(
+                Integer.reverseBytes(~value)).array());
+        String a = byte2HexString(new byte[] {(byte) addr});
+        String aInverted = byte2HexString(new byte[] {(byte) ~addr});
+        return vb + vbInverted + vb + a + aInverted + a + aInverted;
+    }
+
+    /**
+     * Decode the value of a value block
+     * (see {@link #isValueBlock(String)}).
+     * @param block The 16 byte of the block.
+     * @return The value or "null" if the block is not a value block.
+     */
+    public static Integer decodeValueBlock(byte[] block) {
+        if (block == null || !isValueBlock(byte2HexString(block))) {
+            return null;
+        }
+        // Bytes -> Int. -> reverse.
+        return Integer.reverseBytes(ByteBuffer.wrap(block, 0, 4).getInt());
+    }
+
     /**
      * Reverse a byte Array (e.g. Little Endian -> Big Endian).
      * Hmpf! Java has no Array.reverse(). And I don't want to use
@@ -908,6 +1196,25 @@ public class Common {
         mNfcAdapter = nfcAdapter;
     }
 
+    /**
+     * Get the App wide key harvester. All writers of the harvested key
+     * file share it, so the known keys are only loaded once and appending
+     * keys from different threads does not create duplicates.
+     * @return The key harvester for {@link #KEYS_DIR} and
+     * {@link #DUMPS_DIR}.
+     * @see KeyHarvester
+     */
+    public static synchronized KeyHarvester getKeyHarvester() {
+        if (mKeyHarvester == null) {
+            File home = Environment.getExternalStoragePublicDirectory(
+                    HOME_DIR);
+            mKeyHarvester = new KeyHarvester(new File(home + KEYS_DIR),
+                    new File(home + LAST_HARVEST_FILE),
+                    new File(home + KEY_PREDICTOR_FILE));
+        }
+        return mKeyHarvester;
+    }
+
     /**
      * Get the key map generated by {@link Activities.CreateKeyMapActivity}.
      * @return A key map (see {@link MCReader#getKeyMap()}).
@@ -952,6 +1259,42 @@ public class Common {
         mKeyMap = value;
     }
 
+    /**
+     * Get the tag data read by {@link Activities.CreateKeyMapActivity}
+     * while creating the key map.
+     * @return The tag data (see {@link MCReader#getRawDump()}) or "null"
+     * if the tag was not read while creating the key map.
+     */
+    public static SparseArray<String[]> getRawDump() {
+        return mRawDump;
+    }
+
+    /**
+     * Set the tag data read while creating the key map.
+     * @param value The tag data (see {@link MCReader#getRawDump()}).
+     */
+    public static void setRawDump(SparseArray<String[]> value) {
+        mRawDump = value;
+    }
+
+    /**
+     * Get the Access Conditions decoded while creating the key map.
+     * @return The Access Condition cache (see {@link MCReader#getACCache()})
+     * or "null" if there is none for the current tag.
+     */
+    public static SparseArray<byte[][]> getACCache() {
+        return mACCache;
+    }
+
+    /**
+     * Set the Access Conditions decoded while creating the key map.
+     * @param value The Access Condition cache
+     * (see {@link MCReader#getACCache()}).
+     */
+    public static void setACCache(SparseArray<byte[][]> value) {
+        mACCache = value;
+    }
+
     /**
      * Get the UID of the current tag.
      * @return The UID of the current tag.
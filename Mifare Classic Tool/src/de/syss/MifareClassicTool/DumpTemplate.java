@@ -0,0 +1,190 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.util.Log;
+
+/**
+ * A dump with placeholders, which is rendered into a different dump
+ * for every tag (e.g. to write a serial number to each tag).
+ * A template is a normal dump file in which some blocks contain
+ * placeholders instead of (or in between) hex data:
+ * <ul>
+ * <li>{counter:N} or {counter:N:START} - The number of the tag
+ * (see {@link #render(long, String[])}) plus START (default 0) as N byte
+ * big endian hex (e.g. "{counter:4:1000}").</li>
+ * <li>{value:ADDR} or {value:ADDR:START} - The whole block is a value
+ * block containing the number of the tag plus START with the address
+ * ADDR (one byte hex) (see {@link Common#encodeValueBlock(int, int)}).</li>
+ * <li>{csv:I} - The hex data of column I (starting at 0) of the tag's row
+ * of a CSV file (separated by ",").</li>
+ * </ul>
+ * Every block must be exactly 16 byte (32 hex chars) after rendering.
+ */
+public class DumpTemplate {
+
+    private static final String LOG_TAG = DumpTemplate.class.getSimpleName();
+    private static final Pattern PLACEHOLDER = Pattern.compile(
+            "\\{(counter|value|csv):([^}]*)\\}");
+
+    private final HashMap<Integer, HashMap<Integer, String>> mBlocks =
+            new HashMap<Integer, HashMap<Integer, String>>();
+    private boolean mUsesCsv;
+
+    /**
+     * Create a template from the lines of a template file.
+     * Blocks with unknown data ("-") will be skipped like in normal dumps.
+     * @param lines The lines of the template file.
+     */
+    public DumpTemplate(String[] lines) {
+        HashMap<Integer, String> sector = null;
+        int block = 0;
+        for (String line : lines) {
+            if (line.startsWith("+")) {
+                String[] tmp = line.split(": ");
+                try {
+                    sector = new HashMap<Integer, String>();
+                    mBlocks.put(Integer.parseInt(tmp[tmp.length-1]), sector);
+                } catch (NumberFormatException e) {
+                    Log.e(LOG_TAG, "Invalid sector header in template.");
+                    sector = null;
+                }
+                block = 0;
+            } else if (line.startsWith("*") || sector == null) {
+                continue;
+            } else {
+                if (line.contains("{")) {
+                    sector.put(block, line);
+                    mUsesCsv |= line.contains("{csv:");
+                } else if (!line.contains("-")) {
+                    sector.put(block, line);
+                }
+                block++;
+            }
+        }
+    }
+
+    /**
+     * Check if the lines of a dump file contain placeholders.
+     * @param lines The lines of the dump file.
+     * @return True if the dump is a template. False otherwise.
+     */
+    public static boolean isTemplate(String[] lines) {
+        for (String line : lines) {
+            if (!line.startsWith("+") && PLACEHOLDER.matcher(line).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check if the template contains CSV placeholders.
+     * @return True if {@link #render(long, String[])} needs a CSV row.
+     */
+    public boolean usesCsv() {
+        return mUsesCsv;
+    }
+
+    /**
+     * Render the template for a tag.
+     * @param number The number of the tag (starting at 0). This is the
+     * value of the counter placeholders (plus their start value).
+     * @param csvRow The columns of the tag's row in the CSV file or
+     * "null" if the template does not use CSV placeholders.
+     * @return The dump of the tag (key = sector, value = map with
+     * key = block and value = 16 byte of data) like
+     * {@link Common#dumpLinesToBlocks(String[])} returns it.
+     * "null" if a placeholder is invalid or a block has not 16 byte
+     * after rendering.
+     */
+    public HashMap<Integer, HashMap<Integer, byte[]>> render(long number,
+            String[] csvRow) {
+        HashMap<Integer, HashMap<Integer, byte[]>> ret =
+                new HashMap<Integer, HashMap<Integer, byte[]>>(mBlocks.size());
+        for (int sector : mBlocks.keySet()) {
+            HashMap<Integer, String> blocks = mBlocks.get(sector);
+            HashMap<Integer, byte[]> rendered =
+                    new HashMap<Integer, byte[]>(blocks.size());
+            for (int block : blocks.keySet()) {
+                String data = renderBlock(blocks.get(block), number, csvRow);
+                if (data == null || data.length() != 32
+                        || !data.matches("[0-9A-Fa-f]+")) {
+                    Log.e(LOG_TAG, "Invalid block " + block + " of sector "
+                            + sector + " for tag " + number + ".");
+                    return null;
+                }
+                rendered.put(block, Common.hexStringToByteArray(data));
+            }
+            ret.put(sector, rendered);
+        }
+        return ret;
+    }
+
+    /**
+     * Replace all placeholders of a block.
+     * @param block The block (hex data and placeholders).
+     * @param number The number of the tag.
+     * @param csvRow The CSV row of the tag or "null".
+     * @return The rendered block or "null" if a placeholder is invalid.
+     */
+    private static String renderBlock(String block, long number,
+            String[] csvRow) {
+        Matcher m = PLACEHOLDER.matcher(block);
+        StringBuffer sb = new StringBuffer();
+        while (m.find()) {
+            String[] args = m.group(2).split(":");
+            String value;
+            try {
+                if (m.group(1).equals("counter")) {
+                    int length = Integer.parseInt(args[0]);
+                    if (length < 1 || length > 8) {
+                        return null;
+                    }
+                    long counter = number + ((args.length > 1)
+                            ? Long.parseLong(args[1]) : 0);
+                    value = String.format("%016X", counter)
+                            .substring(16 - 2 * length);
+                } else if (m.group(1).equals("value")) {
+                    int addr = Integer.parseInt(args[0], 16);
+                    long counter = number + ((args.length > 1)
+                            ? Long.parseLong(args[1]) : 0);
+                    value = Common.encodeValueBlock((int) counter, addr);
+                } else {
+                    int column = Integer.parseInt(args[0]);
+                    if (csvRow == null || column >= csvRow.length) {
+                        return null;
+                    }
+                    value = csvRow[column].trim().toUpperCase(
+                            Locale.getDefault());
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            m.appendReplacement(sb, Matcher.quoteReplacement(value));
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
+}
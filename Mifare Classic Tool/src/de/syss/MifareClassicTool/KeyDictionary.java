@@ -0,0 +1,865 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import android.util.Log;
+
+/**
+ * An ordered, duplicate free set of Mifare Classic keys.
+ * Every key (6 byte) is packed into the lower 48 bits of a long, so
+ * the dictionary has no per key object overhead.
+ * The order of the keys is the order in which they were added. Keys can
+ * be moved to the front of this order ({@link #moveToFront(int)}) in O(1).
+ * Walking through the dictionary is done by index (see
+ * {@link #getFirstIndex()} and {@link #getNextIndex(int)}) and
+ * does not allocate any objects.<br /><br />
+ * Large key files should be compiled into the binary format of this class
+ * (see {@link #getCompiled(File[], File)}). A compiled dictionary is
+ * memory-mapped and therefore needs (nearly) no heap. The format is:
+ * <ul>
+ * <li>Header: magic ("MCTD"), version, key count, source file count,
+ * offset of the keys, offset of the sorted index (all int).</li>
+ * <li>Source file table: path (UTF), last modified (long) and
+ * length (long) of every key file the dictionary was compiled from.</li>
+ * <li>Keys: all keys (long) in the order of the key files.</li>
+ * <li>Sorted index: the indices of the keys (int) sorted by key value.</li>
+ * </ul>
+ */
+public class KeyDictionary {
+
+    /**
+     * Length of a Mifare Classic key in byte.
+     */
+    public static final int KEY_LENGTH = 6;
+
+    /**
+     * File extension of compiled dictionaries.
+     */
+    public static final String COMPILED_FILE_EXTENSION = ".dict";
+
+    private static final String LOG_TAG = KeyDictionary.class.getSimpleName();
+    private static final int MAGIC = 0x4D435444; // "MCTD"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+
+    /**
+     * Keys in the order they were added (without duplicates).
+     */
+    private final LongBuffer mKeys;
+    /**
+     * Indices of {@link #mKeys} sorted by key value (for lookups).
+     */
+    private final IntBuffer mSorted;
+    private final int mSize;
+
+    // Keys moved to the front. This is a double linked list of nodes.
+    // Each node references a key (index of mKeys). The table maps
+    // key indices to nodes (open addressing, node + 1, 0 = empty).
+    private int[] mFrontIndex = new int[16];
+    private int[] mFrontPrev = new int[16];
+    private int[] mFrontNext = new int[16];
+    private int mFrontSize = 0;
+    private int mFrontHead = -1;
+    private int[] mFrontTable = new int[32];
+
+    /**
+     * Create a dictionary from packed keys (see {@link #toLong(byte[])}).
+     * Duplicates will be removed. Only the first occurrence of a key
+     * will be kept.
+     * @param keys Packed keys. The array will not be modified.
+     * @param count Number of keys to use from the array (starting at 0).
+     */
+    public KeyDictionary(long[] keys, int count) {
+        int[] sorted = createSortedIndex(keys, count);
+        // Mark duplicates (all but the first occurrence).
+        BitSet duplicates = new BitSet(count);
+        int duplicateCount = 0;
+        for (int i = 1; i < count; i++) {
+            if (keys[sorted[i]] == keys[sorted[i-1]]) {
+                duplicates.set(sorted[i]);
+                duplicateCount++;
+            }
+        }
+        if (duplicateCount > 0) {
+            // Remove duplicates.
+            mSize = count - duplicateCount;
+            long[] uniqueKeys = new long[mSize];
+            int j = 0;
+            for (int i = 0; i < count; i++) {
+                if (!duplicates.get(i)) {
+                    uniqueKeys[j++] = keys[i];
+                }
+            }
+            mKeys = LongBuffer.wrap(uniqueKeys);
+            mSorted = IntBuffer.wrap(createSortedIndex(uniqueKeys, mSize));
+        } else {
+            mSize = count;
+            mKeys = LongBuffer.wrap(copyOf(keys, count));
+            mSorted = IntBuffer.wrap(sorted);
+        }
+    }
+
+    /**
+     * Create a dictionary from already deduplicated keys and
+     * their sorted index (e.g. from a compiled dictionary).
+     * @param keys Keys without duplicates.
+     * @param sorted Indices of the keys sorted by key value.
+     * @param size Number of keys.
+     */
+    private KeyDictionary(LongBuffer keys, IntBuffer sorted, int size) {
+        mKeys = keys;
+        mSorted = sorted;
+        mSize = size;
+    }
+
+    /**
+     * Get the number of (unique) keys in this dictionary.
+     * @return Number of keys.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Get the key with the given index as packed key.
+     * @param index Index of the key.
+     * @return The key packed into a long (see {@link #toLong(byte[])}).
+     */
+    public long getKey(int index) {
+        return mKeys.get(index);
+    }
+
+    /**
+     * Get the key with the given index as byte array.
+     * @param index Index of the key.
+     * @param dest Array (at least 6 byte) in which the key will be stored.
+     * This makes it possible to reuse the array while walking through
+     * the dictionary.
+     */
+    public void getKey(int index, byte[] dest) {
+        toByteArray(mKeys.get(index), dest);
+    }
+
+    /**
+     * Find the index of a key.
+     * @param key The key packed into a long (see {@link #toLong(byte[])}).
+     * @return The index of the key or -1 if the key is not in
+     * this dictionary.
+     */
+    public int indexOf(long key) {
+        int low = 0;
+        int high = mSize - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midKey = mKeys.get(mSorted.get(mid));
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mSorted.get(mid);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the index of the first key in the current order.
+     * @return Index of the first key or -1 if the dictionary is empty.
+     * @see #getNextIndex(int)
+     */
+    public int getFirstIndex() {
+        if (mFrontHead != -1) {
+            return mFrontIndex[mFrontHead];
+        }
+        return nextNotInFront(0);
+    }
+
+    /**
+     * Get the index of the key that follows the given one in the current
+     * order. The order must not be changed (by {@link #moveToFront(int)})
+     * while walking through the dictionary.
+     * @param index Index of the current key.
+     * @return Index of the next key or -1 if there is no next key.
+     * @see #getFirstIndex()
+     */
+    public int getNextIndex(int index) {
+        int node = findFrontNode(index);
+        if (node != -1) {
+            int next = mFrontNext[node];
+            if (next != -1) {
+                return mFrontIndex[next];
+            }
+            return nextNotInFront(0);
+        }
+        return nextNotInFront(index + 1);
+    }
+
+    /**
+     * Get the indices of all keys in the current order (see
+     * {@link #getFirstIndex()}). The result is a copy, so the order can
+     * be changed (by {@link #moveToFront(int)}) while walking through it.
+     * @return The indices of all keys in the current order.
+     */
+    public int[] getOrder() {
+        int[] order = new int[mSize];
+        int pos = 0;
+        for (int i = getFirstIndex(); i != -1; i = getNextIndex(i)) {
+            order[pos++] = i;
+        }
+        return order;
+    }
+
+    /**
+     * Move a key to the front of the current order.
+     * @param index Index of the key.
+     */
+    public void moveToFront(int index) {
+        if (index < 0 || index >= mSize) {
+            return;
+        }
+        int node = findFrontNode(index);
+        if (node == mFrontHead && node != -1) {
+            // Already in front.
+            return;
+        }
+        if (node == -1) {
+            node = addFrontNode(index);
+        } else {
+            // Unlink node.
+            int prev = mFrontPrev[node];
+            int next = mFrontNext[node];
+            mFrontNext[prev] = next;
+            if (next != -1) {
+                mFrontPrev[next] = prev;
+            }
+        }
+        // Link node as head.
+        mFrontPrev[node] = -1;
+        mFrontNext[node] = mFrontHead;
+        if (mFrontHead != -1) {
+            mFrontPrev[mFrontHead] = node;
+        }
+        mFrontHead = node;
+    }
+
+    /**
+     * Get a dictionary for the given key files. The key files will be
+     * compiled into a binary dictionary that is stored in the cache
+     * directory. The compiled dictionary will only be rebuilt if one of
+     * the key files has changed (last modified, length) or if
+     * another set of key files is used. When a dictionary is compiled,
+     * stale compiled dictionaries are removed from the cache directory
+     * (see {@link #removeStale(File)}).
+     * If one of the key files is not readable, the keys are not compiled
+     * (a compiled dictionary would look up to date without its keys).
+     * @param keyFiles One or more key files (see
+     * {@link #readKeyFiles(File[])}).
+     * @param cacheDir Directory in which the compiled dictionary is stored.
+     * @return A memory-mapped dictionary or "null" on error.
+     * @throws OutOfMemoryError If there are too many keys to compile them.
+     * @see #readKeyFiles(File[])
+     */
+    public static KeyDictionary getCompiled(File[] keyFiles, File cacheDir) {
+        File compiled = new File(cacheDir, getCompiledFileName(keyFiles));
+        if (!isUpToDate(compiled, keyFiles)) {
+            for (File file : keyFiles) {
+                if (!file.canRead()) {
+                    return readKeyFiles(keyFiles);
+                }
+            }
+            KeyDictionary dict = readKeyFiles(keyFiles);
+            if (dict == null || !dict.saveCompiled(compiled, keyFiles)) {
+                // Error. Use the not compiled dictionary (if there is one).
+                return dict;
+            }
+            removeStale(cacheDir);
+        }
+        KeyDictionary dict = loadCompiled(compiled);
+        if (dict == null) {
+            // Error (e.g. a broken compiled dictionary).
+            compiled.delete();
+            return readKeyFiles(keyFiles);
+        }
+        return dict;
+    }
+
+    /**
+     * Remove the compiled dictionaries (and unfinished temporary files)
+     * whose key files do not exist anymore or have changed.
+     * @param cacheDir Directory with the compiled dictionaries.
+     */
+    private static void removeStale(File cacheDir) {
+        File[] files = cacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            boolean stale = false;
+            if (name.endsWith(COMPILED_FILE_EXTENSION + ".tmp")) {
+                stale = true;
+            } else if (name.endsWith(COMPILED_FILE_EXTENSION)) {
+                File[] keyFiles = readSourceFiles(file);
+                stale = keyFiles == null || !isUpToDate(file, keyFiles);
+            }
+            if (stale && !file.delete()) {
+                Log.d(LOG_TAG, "Could not remove stale dictionary "
+                        + file.getPath() + ".");
+            }
+        }
+    }
+
+    /**
+     * Read (and deduplicate) keys from key files.
+     * These files are simple text files with one key
+     * per line. Empty lines and lines STARTING with "#"
+     * will not be interpreted.
+     * Key files that can not be read are skipped.
+     * @param keyFiles One or more key files.
+     * @return A dictionary (in heap) with all the keys or "null" if there
+     * were no keys.
+     * @throws OutOfMemoryError If there are too many keys.
+     */
+    public static KeyDictionary readKeyFiles(File[] keyFiles) {
+        long[] keys = new long[256];
+        int count = 0;
+        for (File file : keyFiles) {
+            BufferedReader br = null;
+            try {
+                br = new BufferedReader(new FileReader(file));
+                String line;
+                while ((line = br.readLine()) != null) {
+                    long key = parseKey(line);
+                    if (key == -1) {
+                        continue;
+                    }
+                    if (count == keys.length) {
+                        keys = copyOf(keys, keys.length * 2);
+                    }
+                    keys[count++] = key;
+                }
+            } catch (IOException e) {
+                // Use the keys of the other files.
+                Log.e(LOG_TAG, "Error while reading from file "
+                        + file.getPath() + ". Skipping it.", e);
+            } finally {
+                if (br != null) {
+                    try {
+                        br.close();
+                    } catch (IOException e) {
+                        Log.e(LOG_TAG, "Error while closing file.", e);
+                    }
+                }
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+        return new KeyDictionary(keys, count);
+    }
+
+    /**
+     * Map a compiled dictionary into memory. The header is checked
+     * against the file length, so a truncated file is not used.
+     * @param compiled The compiled dictionary
+     * (see {@link #getCompiled(File[], File)}).
+     * @return The dictionary or "null" on error.
+     */
+    public static KeyDictionary loadCompiled(File compiled) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(compiled, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                Log.e(LOG_TAG, "Not a compiled dictionary: "
+                        + compiled.getPath());
+                return null;
+            }
+            int size = buffer.getInt(8);
+            int keysOffset = buffer.getInt(16);
+            int sortedOffset = buffer.getInt(20);
+            if (size < 0 || keysOffset < HEADER_SIZE || keysOffset % 8 != 0
+                    || sortedOffset < keysOffset + size * 8L
+                    || sortedOffset + size * 4L > channel.size()) {
+                Log.e(LOG_TAG, "Invalid compiled dictionary: "
+                        + compiled.getPath());
+                return null;
+            }
+            buffer.position(keysOffset);
+            LongBuffer keys = buffer.slice().asLongBuffer();
+            buffer.position(sortedOffset);
+            IntBuffer sorted = buffer.slice().asIntBuffer();
+            return new KeyDictionary(keys, sorted, size);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while mapping compiled dictionary "
+                    + compiled.getPath() + ".", e);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error while closing file.", e);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Save this dictionary in the compiled (binary) format.
+     * The file will be written to a temporary file first and
+     * then renamed.
+     * @param compiled The file to write to.
+     * @param keyFiles The key files this dictionary was created from.
+     * They will be stored in the source file table.
+     * @return True if the dictionary was saved. False otherwise.
+     */
+    private boolean saveCompiled(File compiled, File[] keyFiles) {
+        File tmp = new File(compiled.getPath() + ".tmp");
+        DataOutputStream out = null;
+        boolean noError = true;
+        try {
+            // Calculate the size of the source file table.
+            ByteArrayOutputStream table = new ByteArrayOutputStream();
+            DataOutputStream tableOut = new DataOutputStream(table);
+            for (File file : keyFiles) {
+                tableOut.writeUTF(file.getAbsolutePath());
+                tableOut.writeLong(file.lastModified());
+                tableOut.writeLong(file.length());
+            }
+            tableOut.flush();
+            int keysOffset = HEADER_SIZE + table.size();
+            // Align keys to 8 byte.
+            int padding = (8 - keysOffset % 8) % 8;
+            keysOffset += padding;
+            int sortedOffset = keysOffset + mSize * 8;
+
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp), 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mSize);
+            out.writeInt(keyFiles.length);
+            out.writeInt(keysOffset);
+            out.writeInt(sortedOffset);
+            table.writeTo(out);
+            for (int i = 0; i < padding; i++) {
+                out.writeByte(0);
+            }
+            for (int i = 0; i < mSize; i++) {
+                out.writeLong(mKeys.get(i));
+            }
+            for (int i = 0; i < mSize; i++) {
+                out.writeInt(mSorted.get(i));
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while writing compiled dictionary "
+                    + tmp.getPath() + ".", e);
+            noError = false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error while closing file.", e);
+                    noError = false;
+                }
+            }
+        }
+        if (noError) {
+            compiled.delete();
+            noError = tmp.renameTo(compiled);
+        }
+        if (!noError) {
+            tmp.delete();
+        }
+        return noError;
+    }
+
+    /**
+     * Read the key files a compiled dictionary was built from
+     * (the source file table).
+     * @param compiled The compiled dictionary.
+     * @return The key files or "null" if the file is not a compiled
+     * dictionary or on error.
+     */
+    private static File[] readSourceFiles(File compiled) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(compiled));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            in.readInt(); // Key count.
+            int count = in.readInt();
+            in.readInt(); // Keys offset.
+            in.readInt(); // Sorted index offset.
+            if (count < 0) {
+                return null;
+            }
+            ArrayList<File> ret = new ArrayList<File>();
+            for (int i = 0; i < count; i++) {
+                ret.add(new File(in.readUTF()));
+                in.readLong(); // Last modified.
+                in.readLong(); // Length.
+            }
+            return ret.toArray(new File[ret.size()]);
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "Error while reading compiled dictionary.");
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error while closing file.", e);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check if a compiled dictionary was built from the given key files
+     * and if none of them has changed since then.
+     * @param compiled The compiled dictionary.
+     * @param keyFiles The key files.
+     * @return True if the compiled dictionary is up to date.
+     * False otherwise.
+     */
+    private static boolean isUpToDate(File compiled, File[] keyFiles) {
+        if (!compiled.exists()) {
+            return false;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(compiled));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            in.readInt(); // Key count.
+            if (in.readInt() != keyFiles.length) {
+                return false;
+            }
+            in.readInt(); // Keys offset.
+            in.readInt(); // Sorted index offset.
+            for (File file : keyFiles) {
+                if (!in.readUTF().equals(file.getAbsolutePath())
+                        || in.readLong() != file.lastModified()
+                        || in.readLong() != file.length()) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "Error while checking compiled dictionary.");
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error while closing file.", e);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get an ID of a set of key files. The ID changes if another set of
+     * key files is used or if one of them has changed (last modified,
+     * length). The order of the key files does not matter.
+     * @param keyFiles The key files.
+     * @return The ID (hex string, 16 chars).
+     */
+    public static String getId(File[] keyFiles) {
+        String[] files = new String[keyFiles.length];
+        for (int i = 0; i < keyFiles.length; i++) {
+            files[i] = keyFiles[i].getAbsolutePath() + ":"
+                    + keyFiles[i].lastModified() + ":" + keyFiles[i].length();
+        }
+        Arrays.sort(files);
+        // 64 bit FNV-1a hash.
+        long hash = 0xCBF29CE484222325L;
+        for (String file : files) {
+            for (int i = 0; i < file.length(); i++) {
+                hash ^= file.charAt(i);
+                hash *= 0x100000001B3L;
+            }
+            hash ^= '\n';
+            hash *= 0x100000001B3L;
+        }
+        return String.format("%016X", hash);
+    }
+
+    /**
+     * Get the file name of the compiled dictionary for a set of key files.
+     * @param keyFiles The key files.
+     * @return File name (hash of the key file paths).
+     */
+    private static String getCompiledFileName(File[] keyFiles) {
+        String[] paths = new String[keyFiles.length];
+        for (int i = 0; i < keyFiles.length; i++) {
+            paths[i] = keyFiles[i].getAbsolutePath();
+        }
+        return String.format("%08X", Arrays.hashCode(paths))
+                + COMPILED_FILE_EXTENSION;
+    }
+
+    /**
+     * Get the next key index (starting at "from") that was not moved
+     * to the front.
+     * @param from Index to start searching from.
+     * @return Key index or -1 if there are no more keys.
+     */
+    private int nextNotInFront(int from) {
+        for (int i = from; i < mSize; i++) {
+            if (mFrontSize == 0 || findFrontNode(i) == -1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find the front list node of a key.
+     * @param index Index of the key.
+     * @return The node or -1 if the key was never moved to the front.
+     */
+    private int findFrontNode(int index) {
+        if (mFrontSize == 0) {
+            return -1;
+        }
+        int mask = mFrontTable.length - 1;
+        int slot = hash(index) & mask;
+        while (mFrontTable[slot] != 0) {
+            int node = mFrontTable[slot] - 1;
+            if (mFrontIndex[node] == index) {
+                return node;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Create a new (unlinked) front list node for a key.
+     * @param index Index of the key.
+     * @return The new node.
+     */
+    private int addFrontNode(int index) {
+        if (mFrontSize == mFrontIndex.length) {
+            int newLength = mFrontIndex.length * 2;
+            mFrontIndex = copyOf(mFrontIndex, newLength);
+            mFrontPrev = copyOf(mFrontPrev, newLength);
+            mFrontNext = copyOf(mFrontNext, newLength);
+        }
+        int node = mFrontSize++;
+        mFrontIndex[node] = index;
+        if (mFrontSize * 2 > mFrontTable.length) {
+            // Grow and rehash table.
+            mFrontTable = new int[mFrontTable.length * 2];
+            for (int i = 0; i < mFrontSize; i++) {
+                putFrontNode(i);
+            }
+        } else {
+            putFrontNode(node);
+        }
+        return node;
+    }
+
+    /**
+     * Add a node to the front list table.
+     * @param node The node.
+     */
+    private void putFrontNode(int node) {
+        int mask = mFrontTable.length - 1;
+        int slot = hash(mFrontIndex[node]) & mask;
+        while (mFrontTable[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        mFrontTable[slot] = node + 1;
+    }
+
+    /**
+     * Spread the bits of an index for the front list table.
+     * @param index The index.
+     * @return Hash value.
+     */
+    private static int hash(int index) {
+        int h = index * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Create an array of indices of the given keys sorted by key value
+     * (and by index for equal keys).
+     * @param keys Packed keys.
+     * @param count Number of keys to use.
+     * @return Sorted indices.
+     */
+    private static int[] createSortedIndex(long[] keys, int count) {
+        int[] sorted = new int[count];
+        for (int i = 0; i < count; i++) {
+            sorted[i] = i;
+        }
+        // Heap sort (in-place, no recursion).
+        for (int i = count / 2 - 1; i >= 0; i--) {
+            siftDown(keys, sorted, i, count);
+        }
+        for (int end = count - 1; end > 0; end--) {
+            int tmp = sorted[0];
+            sorted[0] = sorted[end];
+            sorted[end] = tmp;
+            siftDown(keys, sorted, 0, end);
+        }
+        return sorted;
+    }
+
+    /**
+     * Helper function for the heap sort of
+     * {@link #createSortedIndex(long[], int)}.
+     */
+    private static void siftDown(long[] keys, int[] sorted, int root,
+            int end) {
+        while (root * 2 + 1 < end) {
+            int child = root * 2 + 1;
+            if (child + 1 < end
+                    && isLess(keys, sorted[child], sorted[child + 1])) {
+                child++;
+            }
+            if (isLess(keys, sorted[root], sorted[child])) {
+                int tmp = sorted[root];
+                sorted[root] = sorted[child];
+                sorted[child] = tmp;
+                root = child;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Compare two keys by value and (if equal) by index.
+     * @return True if the first key is less than the second.
+     */
+    private static boolean isLess(long[] keys, int a, int b) {
+        return keys[a] < keys[b] || (keys[a] == keys[b] && a < b);
+    }
+
+    private static long[] copyOf(long[] array, int length) {
+        long[] ret = new long[length];
+        System.arraycopy(array, 0, ret, 0, Math.min(array.length, length));
+        return ret;
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        int[] ret = new int[length];
+        System.arraycopy(array, 0, ret, 0, Math.min(array.length, length));
+        return ret;
+    }
+
+    /**
+     * Pack a Mifare Classic key (6 byte) into a long.
+     * @param key The key (6 byte).
+     * @return The key as long (lower 48 bit).
+     */
+    public static long toLong(byte[] key) {
+        long ret = 0;
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            ret = (ret << 8) | (key[i] & 0xFF);
+        }
+        return ret;
+    }
+
+    /**
+     * Unpack a key that was packed by {@link #toLong(byte[])}.
+     * @param key The packed key.
+     * @param dest Array (at least 6 byte) in which the key will be stored.
+     */
+    public static void toByteArray(long key, byte[] dest) {
+        for (int i = KEY_LENGTH - 1; i >= 0; i--) {
+            dest[i] = (byte) key;
+            key >>>= 8;
+        }
+    }
+
+    /**
+     * Unpack a key that was packed by {@link #toLong(byte[])}.
+     * @param key The packed key.
+     * @return The key (6 byte).
+     */
+    public static byte[] toByteArray(long key) {
+        byte[] ret = new byte[KEY_LENGTH];
+        toByteArray(key, ret);
+        return ret;
+    }
+
+    /**
+     * Parse a line of a key file. A valid line contains exactly one key
+     * as hex string (12 chars, only [0-9A-Fa-f]).
+     * @param line The line to parse.
+     * @return The key packed into a long or -1 if the line
+     * is not a valid key.
+     */
+    public static long parseKey(String line) {
+        if (line == null || line.length() != KEY_LENGTH * 2) {
+            return -1;
+        }
+        long ret = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            int digit;
+            if (c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else if (c >= 'A' && c <= 'F') {
+                digit = c - 'A' + 10;
+            } else if (c >= 'a' && c <= 'f') {
+                digit = c - 'a' + 10;
+            } else {
+                // Not an ASCII hex digit (Character.digit() would
+                // also accept e.g. full-width digits).
+                return -1;
+            }
+            ret = (ret << 4) | digit;
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * Harvest the keys of dumps (the keys of the sector trailers, see
+ * {@link Common#getKeysFromDump(String[])}) into a key file
+ * ({@link Common#HARVESTED_KEYS} in the key directory). Only keys that are
+ * not already in one of the key files are added, so the next mapping can
+ * start with keys that were already found on other tags.
+ * The known keys are kept in a hash set of primitive longs
+ * (see {@link KeyDictionary#toLong(byte[])}), which is loaded from all
+ * key files on first use.
+ * The keys of every new dump of a directory are also learned by the
+ * {@link KeyPredictor}, whose model is stored next to the time of the
+ * last harvest (see {@link #harvestDir(File)}).
+ */
+public class KeyHarvester {
+
+    private static final String LOG_TAG = KeyHarvester.class.getSimpleName();
+
+    private final File mKeysDir;
+    private final File mFile;
+    private final File mLastHarvestFile;
+    private final File mPredictorFile;
+    // The known keys (open addressing, -1 = empty slot). Keys only use
+    // the lower 48 bits, so -1 is never a key.
+    private long[] mTable;
+    private int mCount;
+    // The state (names, last modified, length) of the key files the
+    // known keys were loaded from (see getKeyFilesState()).
+    private long mKeyFilesState;
+
+    /**
+     * Initialize a key harvester.
+     * @param keysDir The directory with the key files
+     * (e.g. {@link Common#KEYS_DIR}). The harvested key file
+     * will be created there.
+     * @param lastHarvestFile The file in which the time of the last
+     * harvest of a directory is stored (e.g.
+     * {@link Common#LAST_HARVEST_FILE}). If it is lost, all dumps
+     * will be harvested again.
+     * @param predictorFile The file in which the trained model of the
+     * {@link KeyPredictor} is stored (e.g.
+     * {@link Common#KEY_PREDICTOR_FILE}).
+     */
+    public KeyHarvester(File keysDir, File lastHarvestFile,
+            File predictorFile) {
+        mKeysDir = keysDir;
+        mFile = new File(keysDir, Common.HARVESTED_KEYS);
+        mLastHarvestFile = lastHarvestFile;
+        mPredictorFile = predictorFile;
+    }
+
+    /**
+     * Harvest the keys of all dumps in a directory that have changed
+     * since the last harvest of a directory (see
+     * {@link #KeyHarvester(File, File, File)}). The keys of these dumps
+     * are also added to the model of the {@link KeyPredictor}. If there
+     * is no model (or no time of the last harvest), it will be trained
+     * with all dumps of the directory.
+     * @param dumpsDir The directory with the dump files
+     * (e.g. {@link Common#DUMPS_DIR}).
+     * @return The number of new keys or -1 on error.
+     * @throws OutOfMemoryError If there are too many keys in the key files.
+     */
+    public synchronized int harvestDir(File dumpsDir) {
+        File[] files = dumpsDir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        long lastHarvest = readLastHarvest();
+        long now = System.currentTimeMillis();
+        // Without the time of the last harvest, the model can not tell
+        // which dumps it already knows. Train it from scratch.
+        KeyPredictor predictor = null;
+        if (lastHarvest != 0) {
+            predictor = KeyPredictor.load(mPredictorFile);
+        }
+        boolean learnAll = predictor == null;
+        if (learnAll) {
+            predictor = new KeyPredictor();
+        }
+        int dumpCount = predictor.getDumpCount();
+        ArrayList<Long> newKeys = new ArrayList<Long>();
+        for (File file : files) {
+            boolean isNew = file.lastModified() >= lastHarvest;
+            if (!file.isFile() || (!isNew && !learnAll)) {
+                continue;
+            }
+            String[] lines = readLines(file);
+            if (lines != null) {
+                SparseArray<byte[][]> keyMap = Common.getKeysFromDump(lines);
+                if (isNew) {
+                    collectNewKeys(keyMap, newKeys);
+                }
+                predictor.addDump(keyMap);
+            }
+        }
+        if (!appendKeys(newKeys)) {
+            return -1;
+        }
+        if (predictor.getDumpCount() != dumpCount || learnAll) {
+            predictor.save(mPredictorFile);
+        }
+        // Remember the time of this harvest (even if there were no
+        // new keys).
+        File dir = mLastHarvestFile.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            Log.e(LOG_TAG, "Error while creating directory.");
+        } else {
+            Common.saveFile(mLastHarvestFile,
+                    new String[] {String.valueOf(now)});
+        }
+        return newKeys.size();
+    }
+
+    /**
+     * Harvest the keys of a dump (e.g. one that was just saved).
+     * The {@link KeyPredictor} learns the dump with the next harvest
+     * of the dumps directory (see {@link #harvestDir(File)}), so it is
+     * not counted twice.
+     * @param lines The lines of the dump.
+     * @return The number of new keys or -1 on error.
+     * @throws OutOfMemoryError If there are too many keys in the key files.
+     */
+    public synchronized int harvest(String[] lines) {
+        ArrayList<Long> newKeys = new ArrayList<Long>();
+        collectNewKeys(Common.getKeysFromDump(lines), newKeys);
+        if (!appendKeys(newKeys)) {
+            return -1;
+        }
+        return newKeys.size();
+    }
+
+    /**
+     * Add all keys of a key map that are not known yet to the known keys
+     * and to a list.
+     * @param keyMap The keys (like {@link MCReader#getKeyMap()}).
+     * @param newKeys The new keys will be added here.
+     */
+    private void collectNewKeys(SparseArray<byte[][]> keyMap,
+            ArrayList<Long> newKeys) {
+        if (keyMap.size() == 0) {
+            return;
+        }
+        if (mTable == null || mKeyFilesState != getKeyFilesState()) {
+            try {
+                loadKnownKeys();
+            } catch (OutOfMemoryError e) {
+                // Do not use a partially loaded set of known keys.
+                mTable = null;
+                throw e;
+            }
+        }
+        for (int i = 0; i < keyMap.size(); i++) {
+            for (byte[] key : keyMap.valueAt(i)) {
+                if (key != null) {
+                    long packed = KeyDictionary.toLong(key);
+                    if (add(packed)) {
+                        newKeys.add(packed);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Load the keys of all key files into the hash set
+     * of known keys.
+     */
+    private void loadKnownKeys() {
+        mTable = new long[1024];
+        Arrays.fill(mTable, -1);
+        mCount = 0;
+        mKeyFilesState = getKeyFilesState();
+        File[] keyFiles = mKeysDir.listFiles();
+        if (keyFiles == null) {
+            return;
+        }
+        for (File keyFile : keyFiles) {
+            if (!keyFile.isFile()) {
+                continue;
+            }
+            BufferedReader br = null;
+            try {
+                br = new BufferedReader(new FileReader(keyFile));
+                String line;
+                while ((line = br.readLine()) != null) {
+                    long key = KeyDictionary.parseKey(line);
+                    if (key != -1) {
+                        add(key);
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error while reading from file "
+                        + keyFile.getPath() + ".", e);
+            } finally {
+                if (br != null) {
+                    try {
+                        br.close();
+                    } catch (IOException e) {
+                        Log.e(LOG_TAG, "Error while closing file.", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the state of the key files (a hash of their names, last
+     * modified dates and lengths). It changes if a key file is added,
+     * removed or changed.
+     * @return The state of the key files.
+     */
+    private long getKeyFilesState() {
+        File[] keyFiles = mKeysDir.listFiles();
+        if (keyFiles == null) {
+            return 0;
+        }
+        long state = 0;
+        for (File keyFile : keyFiles) {
+            state += keyFile.getName().hashCode() * 31L
+                    + keyFile.lastModified() * 17L + keyFile.length();
+        }
+        return state;
+    }
+
+    /**
+     * Add a key to the hash set of known keys.
+     * @param key The key (see {@link KeyDictionary#toLong(byte[])}).
+     * @return True if the key was added. False if it was already known.
+     */
+    private boolean add(long key) {
+        if (mCount * 2 >= mTable.length) {
+            // Keep the load factor below 0.5.
+            long[] old = mTable;
+            mTable = new long[old.length * 2];
+            Arrays.fill(mTable, -1);
+            mCount = 0;
+            for (long k : old) {
+                if (k != -1) {
+                    add(k);
+                }
+            }
+        }
+        int mask = mTable.length - 1;
+        int i = hash(key) & mask;
+        while (mTable[i] != -1) {
+            if (mTable[i] == key) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        mTable[i] = key;
+        mCount++;
+        return true;
+    }
+
+    /**
+     * Hash function for the hash set of known keys.
+     * @param key The key.
+     * @return The hash.
+     */
+    private static int hash(long key) {
+        int h = (int) (key ^ (key >>> 24));
+        return h * 0x9E3779B1;
+    }
+
+    /**
+     * Append keys to the harvested key file. The file will be created
+     * (with a comment) if it does not exist.
+     * @param keys The keys to append.
+     * @return True if writing was successful (or there was nothing to
+     * write). False otherwise.
+     */
+    private boolean appendKeys(ArrayList<Long> keys) {
+        if (keys.size() == 0) {
+            return true;
+        }
+        if (!mKeysDir.exists() && !mKeysDir.mkdirs()) {
+            Log.e(LOG_TAG, "Error while creating key directory.");
+            return false;
+        }
+        boolean exists = mFile.exists();
+        BufferedWriter bw = null;
+        boolean noError = true;
+        try {
+            bw = new BufferedWriter(new FileWriter(mFile, true));
+            if (!exists) {
+                bw.write("# Keys harvested from dumps (updated automatically).");
+                bw.newLine();
+            }
+            for (long key : keys) {
+                bw.write(Common.byte2HexString(
+                        KeyDictionary.toByteArray(key)));
+                bw.newLine();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while writing harvested keys.", e);
+            noError = false;
+        } finally {
+            if (bw != null) {
+                try {
+                    bw.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error while closing file.", e);
+                    noError = false;
+                }
+            }
+        }
+        if (noError) {
+            // The harvested key file was changed by this harvester.
+            mKeyFilesState = getKeyFilesState();
+        }
+        return noError;
+    }
+
+    /**
+     * Read the time of the last harvest of a directory
+     * from {@link #mLastHarvestFile}.
+     * @return The time in milliseconds since epoch or 0 if there
+     * was no harvest (or on error).
+     */
+    private long readLastHarvest() {
+        String[] lines = readLines(mLastHarvestFile);
+        if (lines == null || lines.length == 0) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(lines[0]);
+        } catch (NumberFormatException e) {
+            Log.d(LOG_TAG, "Invalid time of last harvest.");
+            return 0;
+        }
+    }
+
+    /**
+     * Read all lines of a dump file (without empty lines and comments).
+     * Unlike {@link Common#readFileLineByLine(File, boolean,
+     * android.content.Context)}, this does not show a Toast and can
+     * be used in a worker thread.
+     * @param file The dump file.
+     * @return The lines or "null" if the file does not exist
+     * or on error.
+     */
+    static String[] readLines(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        ArrayList<String> lines = new ArrayList<String>();
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (!line.equals("") && !line.startsWith("#")) {
+                    lines.add(line);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while reading from file "
+                    + file.getPath() + ".", e);
+            return null;
+        } finally {
+            if (br != null) {
+                try {
+                    br.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error while closing file.", e);
+                }
+            }
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import android.nfc.Tag;
+import android.nfc.tech.NfcA;
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * A persistent cache of key maps (see {@link MCReader#getKeyMap()}).
+ * There is one file per tag. Tags are identified by their UID, ATQA and SAK
+ * (see {@link #getTagId(Tag)}). Every line of such a file contains the
+ * result of mapping one sector:
+ * "sector key-A key-B dictionary-ID". Keys that could not be found are
+ * stored as {@link MCReader#NO_KEY}. The dictionary ID identifies the
+ * key files the sector was mapped with (see
+ * {@link KeyDictionary#getId(File[])}). New results are appended
+ * (the last line of a sector wins), so the cache can be extended
+ * sector by sector while mapping.<br /><br />
+ * A cached key map can be used as candidate keys for the next mapping
+ * of the same tag (see {@link MCReader#setCandidateKeyMap(SparseArray)}).
+ */
+public class KeyMapCache {
+
+    /**
+     * File extension of the cached key map files.
+     */
+    public static final String FILE_EXTENSION = ".map";
+
+    private static final String LOG_TAG = KeyMapCache.class.getSimpleName();
+
+    private final File mDir;
+    private String mTagId;
+    private SparseArray<byte[][]> mKeyMap;
+    private SparseArray<String> mDictionaryIds;
+
+    /**
+     * Initialize a key map cache.
+     * @param dir Directory in which the cached key maps are stored.
+     * It will be created on the first write.
+     */
+    public KeyMapCache(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Get the ID of a tag (UID, ATQA and SAK). This is the name under which
+     * the key map of the tag is cached.
+     * @param tag The tag.
+     * @return The ID of the tag ("UID-ATQA-SAK" as hex) or "null"
+     * if the tag is "null" or not NfcA.
+     */
+    public static String getTagId(Tag tag) {
+        if (tag == null) {
+            return null;
+        }
+        NfcA nfca = NfcA.get(tag);
+        if (nfca == null) {
+            return null;
+        }
+        return Common.byte2HexString(tag.getId()) + "-"
+                + Common.byte2HexString(nfca.getAtqa()) + "-"
+                + Common.byte2HexString(new byte[] {(byte)nfca.getSak()});
+    }
+
+    /**
+     * Get the cached key map of a tag.
+     * If a key of a sector could not be found while mapping, it is "null"
+     * in the returned key map. Sectors in which no key was found have an
+     * entry with both keys "null". Because a not found key depends on
+     * the used dictionary, sectors with a missing key will only be
+     * returned if they were mapped with the same key files (unchanged)
+     * as the current ones.
+     * @param tagId The ID of the tag (see {@link #getTagId(Tag)}).
+     * @param dictionaryId The ID of the current key files
+     * (see {@link KeyDictionary#getId(File[])}). Use "null" to get
+     * all sectors.
+     * @return The cached key map (like {@link MCReader#getKeyMap()}) or
+     * "null" if there is no cached key map for this tag.
+     * @see MCReader#setCandidateKeyMap(SparseArray)
+     */
+    public SparseArray<byte[][]> get(String tagId, String dictionaryId) {
+        if (tagId == null || !load(tagId)) {
+            return null;
+        }
+        SparseArray<byte[][]> ret = new SparseArray<byte[][]>();
+        for (int i = 0; i < mKeyMap.size(); i++) {
+            byte[][] keys = mKeyMap.valueAt(i);
+            boolean complete = keys[0] != null && keys[1] != null;
+            if (complete || dictionaryId == null
+                    || dictionaryId.equals(mDictionaryIds.valueAt(i))) {
+                ret.put(mKeyMap.keyAt(i), keys);
+            }
+        }
+        if (ret.size() == 0) {
+            return null;
+        }
+        return ret;
+    }
+
+    /**
+     * Add the mapping result of a sector to the cached key map of a tag.
+     * The result will only be written if it differs from the cached one.
+     * @param tagId The ID of the tag (see {@link #getTagId(Tag)}).
+     * @param sector The sector.
+     * @param keys The keys (A and B) found for this sector
+     * (like {@link MCReader#getKeyMap()}). A key or the whole array is
+     * "null" if it could not be found.
+     * @param dictionaryId The ID of the key files the sector was mapped
+     * with (see {@link KeyDictionary#getId(File[])}).
+     * @return True if the result was cached. False on error.
+     */
+    public boolean put(String tagId, int sector, byte[][] keys,
+            String dictionaryId) {
+        if (tagId == null || dictionaryId == null) {
+            return false;
+        }
+        byte[] keyA = (keys != null) ? keys[0] : null;
+        byte[] keyB = (keys != null) ? keys[1] : null;
+        load(tagId);
+        byte[][] cached = mKeyMap.get(sector);
+        if (cached != null && Arrays.equals(cached[0], keyA)
+                && Arrays.equals(cached[1], keyB)
+                && ((keyA != null && keyB != null)
+                        || dictionaryId.equals(mDictionaryIds.get(sector)))) {
+            // Nothing new.
+            return true;
+        }
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            Log.e(LOG_TAG, "Error while creating key map cache directory.");
+            return false;
+        }
+        String line = sector + " " + keyToString(keyA) + " "
+                + keyToString(keyB) + " " + dictionaryId;
+        boolean noError = writeLines(getFile(tagId),
+                new String[] {line}, true);
+        if (noError) {
+            mKeyMap.put(sector, new byte[][] {keyA, keyB});
+            mDictionaryIds.put(sector, dictionaryId);
+        }
+        return noError;
+    }
+
+    /**
+     * Load the cached key map of a tag into {@link #mKeyMap} and
+     * {@link #mDictionaryIds} (if it is not already loaded).
+     * If the file contains many outdated lines, it will be rewritten.
+     * @param tagId The ID of the tag.
+     * @return True if there is a cached key map for this tag.
+     * False otherwise.
+     */
+    private boolean load(String tagId) {
+        if (tagId.equals(mTagId)) {
+            return mKeyMap.size() > 0;
+        }
+        mTagId = tagId;
+        mKeyMap = new SparseArray<byte[][]>();
+        mDictionaryIds = new SparseArray<String>();
+        File file = getFile(tagId);
+        if (!file.exists()) {
+            return false;
+        }
+        int lineCount = 0;
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] fields = line.split(" ");
+                if (fields.length != 4) {
+                    continue;
+                }
+                try {
+                    int sector = Integer.parseInt(fields[0]);
+                    mKeyMap.put(sector, new byte[][] {
+                            stringToKey(fields[1]), stringToKey(fields[2])});
+                    mDictionaryIds.put(sector, fields[3]);
+                    lineCount++;
+                } catch (NumberFormatException e) {
+                    Log.d(LOG_TAG, "Invalid line in key map cache.");
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while reading from key map cache.", e);
+        } finally {
+            if (br != null) {
+                try {
+                    br.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error while closing file.", e);
+                }
+            }
+        }
+        if (lineCount > 2 * mKeyMap.size()) {
+            compact(file);
+        }
+        return mKeyMap.size() > 0;
+    }
+
+    /**
+     * Rewrite a cached key map file with only the current entries of
+     * {@link #mKeyMap} (one line per sector).
+     * @param file The file of the currently loaded key map.
+     */
+    private void compact(File file) {
+        String[] lines = new String[mKeyMap.size()];
+        for (int i = 0; i < mKeyMap.size(); i++) {
+            byte[][] keys = mKeyMap.valueAt(i);
+            lines[i] = mKeyMap.keyAt(i) + " " + keyToString(keys[0]) + " "
+                    + keyToString(keys[1]) + " " + mDictionaryIds.valueAt(i);
+        }
+        writeLines(file, lines, false);
+    }
+
+    /**
+     * Write lines to a cached key map file. Every line
+     * (including the last one) is terminated by a line separator.
+     * @param file The file to write to.
+     * @param lines The lines to write.
+     * @param append If true, the lines will be appended to the file.
+     * Otherwise the file will be overwritten.
+     * @return True if writing was successful. False otherwise.
+     */
+    private static boolean writeLines(File file, String[] lines,
+            boolean append) {
+        BufferedWriter bw = null;
+        boolean noError = true;
+        try {
+            bw = new BufferedWriter(new FileWriter(file, append));
+            for (String line : lines) {
+                bw.write(line);
+                bw.newLine();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while writing to key map cache.", e);
+            noError = false;
+        } finally {
+            if (bw != null) {
+                try {
+                    bw.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error while closing file.", e);
+                    noError = false;
+                }
+            }
+        }
+        return noError;
+    }
+
+    /**
+     * Get the file of a cached key map.
+     * @param tagId The ID of the tag.
+     * @return The file (it may not exist).
+     */
+    private File getFile(String tagId) {
+        return new File(mDir, tagId + FILE_EXTENSION);
+    }
+
+    /**
+     * Convert a key to a string.
+     * @param key The key or "null".
+     * @return The key as hex string or {@link MCReader#NO_KEY}.
+     */
+    private static String keyToString(byte[] key) {
+        if (key == null) {
+            return MCReader.NO_KEY;
+        }
+        return Common.byte2HexString(key);
+    }
+
+    /**
+     * Convert a string to a key.
+     * @param key The key as hex string or {@link MCReader#NO_KEY}.
+     * @return The key or "null" if the string is not a valid key.
+     */
+    private static byte[] stringToKey(String key) {
+        long packed = KeyDictionary.parseKey(key);
+        if (packed == -1) {
+            return null;
+        }
+        return KeyDictionary.toByteArray(packed);
+    }
+}
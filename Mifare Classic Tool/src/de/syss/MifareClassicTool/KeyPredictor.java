@@ -0,0 +1,454 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * Predict the keys of a sector from the keys of known dumps (the keys of
+ * the sector trailers). Card issuers tend to follow patterns, so the
+ * predictor learns three of them from the dumps:
+ * <ul>
+ * <li>Keys per sector index (e.g. a fixed key for sector 0).</li>
+ * <li>Key A of a sector implies key B of the same sector
+ * (and vice versa).</li>
+ * <li>A key of one sector implies a key of another sector
+ * (e.g. the same key in sector 1-15).</li>
+ * </ul>
+ * For a sector and the keys found so far, the predictor proposes
+ * a short list of candidate keys (see
+ * {@link #predict(int, boolean, SparseArray, byte[][], int)}).
+ * The trained model is stored in {@link Common#KEY_PREDICTOR_FILE}
+ * and updated by the {@link KeyHarvester} with every new dump, so it
+ * can be loaded at mapping time (see {@link #load(File)}).
+ * @see MCReader#setKeyPredictor(KeyPredictor)
+ */
+public class KeyPredictor {
+
+    private static final String LOG_TAG = KeyPredictor.class.getSimpleName();
+
+    /**
+     * The default number of predicted keys that are checked against
+     * a sector.
+     */
+    public static final int SHORTLIST_SIZE = 8;
+
+    // Weights of the patterns.
+    private static final int WEIGHT_SECTOR_INDEX = 1;
+    private static final int WEIGHT_OTHER_SECTOR = 2;
+    private static final int WEIGHT_SAME_SECTOR = 4;
+
+    // Key counts per sector and key type (index = sector * 2 + key type).
+    private final SparseArray<HashMap<Long, Integer>> mSectorKeys =
+            new SparseArray<HashMap<Long, Integer>>();
+    // Key counts (per key type) implied by the other key of the same sector.
+    private final ArrayList<HashMap<Long, HashMap<Long, Integer>>> mSameSector =
+            new ArrayList<HashMap<Long, HashMap<Long, Integer>>>(2);
+    // Key counts (per key type) implied by a key of another sector.
+    private final ArrayList<HashMap<Long, HashMap<Long, Integer>>> mOtherSector =
+            new ArrayList<HashMap<Long, HashMap<Long, Integer>>>(2);
+    private int mDumpCount;
+
+    /**
+     * Initialize an untrained predictor (see {@link #addDump(SparseArray)}).
+     */
+    KeyPredictor() {
+        for (int j = 0; j < 2; j++) {
+            mSameSector.add(new HashMap<Long, HashMap<Long, Integer>>());
+            mOtherSector.add(new HashMap<Long, HashMap<Long, Integer>>());
+        }
+    }
+
+    /**
+     * Train a predictor with all dumps of a directory
+     * (e.g. {@link Common#DUMPS_DIR}). Only the keys of the sector
+     * trailers are used (see {@link Common#getKeysFromDump(String[])}).
+     * This reads every dump, so it should be called in a worker thread
+     * and only if there is no stored model (see {@link #load(File)}).
+     * @param dumpsDir The directory with the dump files.
+     * @return The predictor or "null" if there are no dumps with keys.
+     */
+    public static KeyPredictor train(File dumpsDir) {
+        File[] files = dumpsDir.listFiles();
+        if (files == null) {
+            return null;
+        }
+        KeyPredictor predictor = new KeyPredictor();
+        for (File file : files) {
+            if (!file.isFile()) {
+                continue;
+            }
+            String[] lines = KeyHarvester.readLines(file);
+            if (lines != null) {
+                predictor.addDump(Common.getKeysFromDump(lines));
+            }
+        }
+        if (predictor.mDumpCount == 0) {
+            return null;
+        }
+        return predictor;
+    }
+
+    /**
+     * Load a predictor that was saved with {@link #save(File)}
+     * (e.g. {@link Common#KEY_PREDICTOR_FILE}). Invalid lines are
+     * ignored.
+     * @param file The file of the trained model.
+     * @return The predictor or "null" if the file does not exist,
+     * on error or if it was not trained with any dumps.
+     */
+    public static KeyPredictor load(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        KeyPredictor predictor = new KeyPredictor();
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = br.readLine()) != null) {
+                predictor.parseLine(line);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while reading key predictor.", e);
+            return null;
+        } finally {
+            if (br != null) {
+                try {
+                    br.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error while closing file.", e);
+                }
+            }
+        }
+        if (predictor.mDumpCount == 0) {
+            return null;
+        }
+        return predictor;
+    }
+
+    /**
+     * Save the trained model to a file (it will be written to a temporary
+     * file first, so an interrupted save does not destroy the model).
+     * The format is one count per line:
+     * <ul>
+     * <li>"D count": The number of dumps.</li>
+     * <li>"S index key count": A key per sector index
+     * (index = sector * 2 + key type).</li>
+     * <li>"A type key implied count": The implied key (of the given
+     * type) was used together with the key as other key of the
+     * same sector.</li>
+     * <li>"O type key implied count": The implied key (of the given
+     * type) was used together with the key in another sector.</li>
+     * </ul>
+     * @param file The file of the trained model
+     * (e.g. {@link Common#KEY_PREDICTOR_FILE}).
+     * @return True if saving was successful. False otherwise.
+     * @see #load(File)
+     */
+    public boolean save(File file) {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            Log.e(LOG_TAG, "Error while creating directory.");
+            return false;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        BufferedWriter bw = null;
+        boolean noError = true;
+        try {
+            bw = new BufferedWriter(new FileWriter(tmp, false));
+            bw.write("# Key predictor (updated automatically).");
+            bw.newLine();
+            bw.write("D " + mDumpCount);
+            bw.newLine();
+            for (int i = 0; i < mSectorKeys.size(); i++) {
+                writeCounts(bw, "S " + mSectorKeys.keyAt(i) + " ",
+                        mSectorKeys.valueAt(i));
+            }
+            for (int j = 0; j < 2; j++) {
+                for (Map.Entry<Long, HashMap<Long, Integer>> entry
+                        : mSameSector.get(j).entrySet()) {
+                    writeCounts(bw, "A " + j + " " + toHex(entry.getKey())
+                            + " ", entry.getValue());
+                }
+                for (Map.Entry<Long, HashMap<Long, Integer>> entry
+                        : mOtherSector.get(j).entrySet()) {
+                    writeCounts(bw, "O " + j + " " + toHex(entry.getKey())
+                            + " ", entry.getValue());
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while writing key predictor.", e);
+            noError = false;
+        } finally {
+            if (bw != null) {
+                try {
+                    bw.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error while closing file.", e);
+                    noError = false;
+                }
+            }
+        }
+        if (noError && !tmp.renameTo(file)) {
+            // Some file systems can not replace a file by renaming.
+            file.delete();
+            noError = tmp.renameTo(file);
+        }
+        if (!noError) {
+            tmp.delete();
+        }
+        return noError;
+    }
+
+    /**
+     * Learn the keys of one dump.
+     * @param keyMap The keys of the dump (like {@link MCReader#getKeyMap()}).
+     */
+    void addDump(SparseArray<byte[][]> keyMap) {
+        if (keyMap.size() == 0) {
+            return;
+        }
+        mDumpCount++;
+        for (int i = 0; i < keyMap.size(); i++) {
+            int sector = keyMap.keyAt(i);
+            byte[][] keys = keyMap.valueAt(i);
+            // All keys of the other sectors (without duplicates).
+            HashSet<Long> others = new HashSet<Long>();
+            for (int k = 0; k < keyMap.size(); k++) {
+                if (k == i) {
+                    continue;
+                }
+                for (byte[] key : keyMap.valueAt(k)) {
+                    if (key != null) {
+                        others.add(KeyDictionary.toLong(key));
+                    }
+                }
+            }
+            for (int j = 0; j < 2; j++) {
+                if (keys[j] == null) {
+                    continue;
+                }
+                long key = KeyDictionary.toLong(keys[j]);
+                HashMap<Long, Integer> counts = mSectorKeys.get(sector * 2 + j);
+                if (counts == null) {
+                    counts = new HashMap<Long, Integer>();
+                    mSectorKeys.put(sector * 2 + j, counts);
+                }
+                increment(counts, key);
+                if (keys[1-j] != null) {
+                    increment(getCounts(mSameSector.get(j),
+                            KeyDictionary.toLong(keys[1-j])), key);
+                }
+                for (long other : others) {
+                    increment(getCounts(mOtherSector.get(j), other), key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Predict the keys of a sector. The candidates are ranked by how
+     * often they occurred in the dumps for this sector index, together
+     * with the other key of this sector and together with the keys
+     * found for the other sectors.
+     * @param sectorIndex The sector.
+     * @param useAsKeyB If true, key B is predicted. Otherwise key A.
+     * @param keyMap The keys found so far (like {@link MCReader#getKeyMap()},
+     * may be "null").
+     * @param sectorKeys The keys (A/B) of this sector found so far
+     * (may be "null").
+     * @param max The maximum number of candidates.
+     * @return The candidates (best first). The list may be empty.
+     */
+    public List<byte[]> predict(int sectorIndex, boolean useAsKeyB,
+            SparseArray<byte[][]> keyMap, byte[][] sectorKeys, int max) {
+        int j = useAsKeyB ? 1 : 0;
+        final HashMap<Long, Integer> scores = new HashMap<Long, Integer>();
+        addScores(scores, mSectorKeys.get(sectorIndex * 2 + j),
+                WEIGHT_SECTOR_INDEX);
+        if (sectorKeys != null && sectorKeys[1-j] != null) {
+            addScores(scores, mSameSector.get(j).get(
+                    KeyDictionary.toLong(sectorKeys[1-j])),
+                    WEIGHT_SAME_SECTOR);
+        }
+        if (keyMap != null) {
+            HashSet<Long> others = new HashSet<Long>();
+            for (int i = 0; i < keyMap.size(); i++) {
+                if (keyMap.keyAt(i) == sectorIndex) {
+                    continue;
+                }
+                for (byte[] key : keyMap.valueAt(i)) {
+                    if (key != null) {
+                        others.add(KeyDictionary.toLong(key));
+                    }
+                }
+            }
+            for (long other : others) {
+                addScores(scores, mOtherSector.get(j).get(other),
+                        WEIGHT_OTHER_SECTOR);
+            }
+        }
+
+        ArrayList<Long> ranked = new ArrayList<Long>(scores.keySet());
+        Collections.sort(ranked, new Comparator<Long>() {
+            @Override
+            public int compare(Long lhs, Long rhs) {
+                return scores.get(rhs).compareTo(scores.get(lhs));
+            }
+        });
+        int size = Math.min(max, ranked.size());
+        List<byte[]> ret = new ArrayList<byte[]>(size);
+        for (int i = 0; i < size; i++) {
+            ret.add(KeyDictionary.toByteArray(ranked.get(i)));
+        }
+        return ret;
+    }
+
+    /**
+     * @return The number of dumps (with keys) the predictor
+     * was trained with.
+     */
+    public int getDumpCount() {
+        return mDumpCount;
+    }
+
+    /**
+     * Parse a line of a saved model (see {@link #save(File)}) and add
+     * its count.
+     * @param line The line. Comments and invalid lines are ignored.
+     */
+    private void parseLine(String line) {
+        String[] parts = line.split(" ");
+        try {
+            if (parts.length == 2 && parts[0].equals("D")) {
+                mDumpCount = Integer.parseInt(parts[1]);
+            } else if (parts.length == 4 && parts[0].equals("S")) {
+                int index = Integer.parseInt(parts[1]);
+                long key = KeyDictionary.parseKey(parts[2]);
+                if (key == -1 || index < 0) {
+                    return;
+                }
+                HashMap<Long, Integer> counts = mSectorKeys.get(index);
+                if (counts == null) {
+                    counts = new HashMap<Long, Integer>();
+                    mSectorKeys.put(index, counts);
+                }
+                counts.put(key, Integer.parseInt(parts[3]));
+            } else if (parts.length == 5 && (parts[0].equals("A")
+                    || parts[0].equals("O"))) {
+                int j = Integer.parseInt(parts[1]);
+                long key = KeyDictionary.parseKey(parts[2]);
+                long implied = KeyDictionary.parseKey(parts[3]);
+                if (key == -1 || implied == -1 || j < 0 || j > 1) {
+                    return;
+                }
+                HashMap<Long, HashMap<Long, Integer>> map =
+                        parts[0].equals("A") ? mSameSector.get(j)
+                        : mOtherSector.get(j);
+                getCounts(map, key).put(implied, Integer.parseInt(parts[4]));
+            }
+        } catch (NumberFormatException e) {
+            Log.d(LOG_TAG, "Invalid line in key predictor: " + line);
+        }
+    }
+
+    /**
+     * Write key counts as lines of a saved model (see {@link #save(File)}).
+     * @param bw The writer.
+     * @param prefix The beginning of every line.
+     * @param counts The key counts.
+     * @throws IOException If writing failed.
+     */
+    private static void writeCounts(BufferedWriter bw, String prefix,
+            HashMap<Long, Integer> counts) throws IOException {
+        for (Map.Entry<Long, Integer> entry : counts.entrySet()) {
+            bw.write(prefix + toHex(entry.getKey()) + " " + entry.getValue());
+            bw.newLine();
+        }
+    }
+
+    /**
+     * Convert a key to a hex string.
+     * @param key The key (see {@link KeyDictionary#toLong(byte[])}).
+     * @return The key as hex string.
+     */
+    private static String toHex(long key) {
+        return Common.byte2HexString(KeyDictionary.toByteArray(key));
+    }
+
+    /**
+     * Get the key counts implied by a key (create them if there are none).
+     * @param implied The implied key counts per key.
+     * @param key The key.
+     * @return The key counts implied by this key.
+     */
+    private static HashMap<Long, Integer> getCounts(
+            HashMap<Long, HashMap<Long, Integer>> implied, long key) {
+        HashMap<Long, Integer> counts = implied.get(key);
+        if (counts == null) {
+            counts = new HashMap<Long, Integer>();
+            implied.put(key, counts);
+        }
+        return counts;
+    }
+
+    /**
+     * Increment the count of a key.
+     * @param counts The key counts.
+     * @param key The key.
+     */
+    private static void increment(HashMap<Long, Integer> counts, long key) {
+        Integer count = counts.get(key);
+        counts.put(key, (count != null) ? count + 1 : 1);
+    }
+
+    /**
+     * Add weighted key counts to the scores of the candidates.
+     * @param scores The scores of the candidates.
+     * @param counts The key counts (may be "null").
+     * @param weight The weight of the counts.
+     */
+    private static void addScores(HashMap<Long, Integer> scores,
+            HashMap<Long, Integer> counts, int weight) {
+        if (counts == null) {
+            return;
+        }
+        for (Map.Entry<Long, Integer> entry : counts.entrySet()) {
+            Integer score = scores.get(entry.getKey());
+            scores.put(entry.getKey(), ((score != null) ? score : 0)
+                    + entry.getValue() * weight);
+        }
+    }
+}
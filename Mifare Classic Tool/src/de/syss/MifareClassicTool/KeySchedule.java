@@ -0,0 +1,144 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * A schedule for changing the keys of tags (old keys to new keys per
+ * sector). A schedule file has one line per sector:
+ * "sector old-key-A old-key-B new-key-A new-key-B" (separated by spaces).
+ * Instead of a sector number, "*" stands for all sectors without
+ * a line of their own. An unknown old key or a new key that should not be
+ * changed is {@link MCReader#NO_KEY}. Empty lines and lines
+ * starting with "#" will be ignored.
+ * @see MCReader#changeKeys(int, byte[][], byte[][])
+ */
+public class KeySchedule {
+
+    private static final String LOG_TAG = KeySchedule.class.getSimpleName();
+
+    private final SparseArray<byte[][][]> mSectors =
+            new SparseArray<byte[][][]>();
+    private byte[][][] mDefault;
+
+    private KeySchedule() {
+    }
+
+    /**
+     * Create a key schedule from the lines of a schedule file.
+     * @param lines The lines of the schedule file
+     * (see {@link Common#readFileLineByLine(java.io.File, boolean,
+     * android.content.Context)}).
+     * @return The key schedule or "null" if a line is invalid
+     * or the schedule is empty.
+     */
+    public static KeySchedule parse(String[] lines) {
+        KeySchedule schedule = new KeySchedule();
+        for (String line : lines) {
+            line = line.trim();
+            if (line.equals("") || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            if (fields.length != 5) {
+                Log.e(LOG_TAG, "Invalid line in key schedule: " + line);
+                return null;
+            }
+            byte[][][] keys = new byte[2][2][];
+            for (int i = 0; i < 4; i++) {
+                if (!fields[i+1].equals(MCReader.NO_KEY)) {
+                    if (!fields[i+1].matches("[0-9A-Fa-f]{12}")) {
+                        Log.e(LOG_TAG, "Invalid key in key schedule: "
+                                + line);
+                        return null;
+                    }
+                    keys[i/2][i%2] = Common.hexStringToByteArray(
+                            fields[i+1]);
+                }
+            }
+            if (fields[0].equals("*")) {
+                schedule.mDefault = keys;
+            } else {
+                try {
+                    schedule.mSectors.put(Integer.parseInt(fields[0]), keys);
+                } catch (NumberFormatException e) {
+                    Log.e(LOG_TAG, "Invalid sector in key schedule: "
+                            + line);
+                    return null;
+                }
+            }
+        }
+        if (schedule.mDefault == null && schedule.mSectors.size() == 0) {
+            return null;
+        }
+        return schedule;
+    }
+
+    /**
+     * Get the sectors that are changed by this schedule.
+     * @param sectorCount The number of sectors of the tag.
+     * @return The sectors (ascending).
+     */
+    public int[] getSectors(int sectorCount) {
+        int count = 0;
+        int[] sectors = new int[sectorCount];
+        for (int i = 0; i < sectorCount; i++) {
+            if (mDefault != null || mSectors.get(i) != null) {
+                sectors[count++] = i;
+            }
+        }
+        int[] ret = new int[count];
+        System.arraycopy(sectors, 0, ret, 0, count);
+        return ret;
+    }
+
+    /**
+     * Get the known old keys of a sector.
+     * @param sector The sector.
+     * @return Key A and key B ("null" if unknown) or "null" if the sector
+     * is not part of the schedule.
+     */
+    public byte[][] getOldKeys(int sector) {
+        byte[][][] keys = getKeys(sector);
+        return (keys != null) ? keys[0] : null;
+    }
+
+    /**
+     * Get the new keys of a sector.
+     * @param sector The sector.
+     * @return New key A and new key B ("null" if the key stays the same)
+     * or "null" if the sector is not part of the schedule.
+     */
+    public byte[][] getNewKeys(int sector) {
+        byte[][][] keys = getKeys(sector);
+        return (keys != null) ? keys[1] : null;
+    }
+
+    /**
+     * Get the old and new keys of a sector.
+     * @param sector The sector.
+     * @return {{old key A, old key B}, {new key A, new key B}} or "null".
+     */
+    private byte[][][] getKeys(int sector) {
+        byte[][][] keys = mSectors.get(sector);
+        return (keys != null) ? keys : mDefault;
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * Persistent hit statistics of keys. For every key that was found while
+ * mapping, the number of hits and the time it was last found are stored.
+ * The statistics are used to rank the keys of a dictionary before
+ * mapping (see {@link #rank(KeyDictionary)}), so the keys that are found
+ * most often are checked first.
+ * The statistics are stored in a text file with one line per key:
+ * "key last-seen hits" (e.g. "FFFFFFFFFFFF 1389000000000 15").
+ * The last seen time is in milliseconds since epoch.
+ * New hits are kept in memory until {@link #save()} is called, so many
+ * mappings in a row (e.g. Quick Dump) do not rewrite the file every time.
+ * The file is written to a temporary file first and then renamed, so a
+ * crash while saving does not lose the statistics.
+ * All methods are synchronized, so hits can be added by a worker thread
+ * while the statistics are saved by another.
+ * @see MCReader#rankKeys(KeyStatistics)
+ */
+public class KeyStatistics {
+
+    private static final String LOG_TAG =
+            KeyStatistics.class.getSimpleName();
+
+    private final File mFile;
+    private HashMap<Long, Entry> mEntries;
+    private boolean mChanged;
+
+    /**
+     * The statistics of one key.
+     */
+    private static class Entry {
+        private int mTotal;
+        private long mLastSeen;
+    }
+
+    /**
+     * Initialize the key statistics. The file will be read on first use.
+     * @param file The file in which the statistics are stored. It (and
+     * its directory) will be created on the first write.
+     */
+    public KeyStatistics(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Add the keys of a key map as hits (in memory, see {@link #save()}).
+     * @param keyMap The key map (like {@link MCReader#getKeyMap()}).
+     * Keys that are "null" will be ignored.
+     */
+    public synchronized void add(SparseArray<byte[][]> keyMap) {
+        if (keyMap == null || keyMap.size() == 0) {
+            return;
+        }
+        load();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < keyMap.size(); i++) {
+            byte[][] keys = keyMap.valueAt(i);
+            if (keys == null) {
+                continue;
+            }
+            for (int j = 0; j < 2; j++) {
+                if (keys[j] == null) {
+                    continue;
+                }
+                Long key = KeyDictionary.toLong(keys[j]);
+                Entry entry = mEntries.get(key);
+                if (entry == null) {
+                    entry = new Entry();
+                    mEntries.put(key, entry);
+                }
+                entry.mTotal++;
+                entry.mLastSeen = now;
+                mChanged = true;
+            }
+        }
+    }
+
+    /**
+     * Rank the keys of a dictionary by their hits. All keys with hits are
+     * moved to the front of the dictionary (see
+     * {@link KeyDictionary#moveToFront(int)}), the key with the most hits
+     * first. On the same number of hits, the key that was found more
+     * recently comes first. The order of all other keys is not changed.
+     * @param dictionary The dictionary (may be "null").
+     */
+    public synchronized void rank(KeyDictionary dictionary) {
+        if (dictionary == null) {
+            return;
+        }
+        load();
+        ArrayList<Map.Entry<Long, Entry>> ranked =
+                new ArrayList<Map.Entry<Long, Entry>>(mEntries.entrySet());
+        // Ascending, because the last key moved to the front
+        // will be the first one.
+        Collections.sort(ranked, new Comparator<Map.Entry<Long, Entry>>() {
+            @Override
+            public int compare(Map.Entry<Long, Entry> lhs,
+                    Map.Entry<Long, Entry> rhs) {
+                Entry l = lhs.getValue();
+                Entry r = rhs.getValue();
+                if (l.mTotal != r.mTotal) {
+                    return (l.mTotal < r.mTotal) ? -1 : 1;
+                }
+                if (l.mLastSeen != r.mLastSeen) {
+                    return (l.mLastSeen < r.mLastSeen) ? -1 : 1;
+                }
+                return 0;
+            }
+        });
+        for (Map.Entry<Long, Entry> entry : ranked) {
+            int index = dictionary.indexOf(entry.getKey());
+            if (index != -1) {
+                dictionary.moveToFront(index);
+            }
+        }
+    }
+
+    /**
+     * Get the number of hits of all keys of a dictionary (e.g. to compare
+     * key files, see {@link MCReader#orderKeyTiers(KeyStatistics)}).
+     * @param dictionary The dictionary.
+     * @return The number of hits.
+     */
+    public synchronized int getHits(KeyDictionary dictionary) {
+        load();
+        int hits = 0;
+        for (Map.Entry<Long, Entry> entry : mEntries.entrySet()) {
+            if (dictionary.indexOf(entry.getKey()) != -1) {
+                hits += entry.getValue().mTotal;
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Load the statistics from {@link #mFile} into {@link #mEntries}
+     * (if they are not already loaded). Invalid lines will be skipped.
+     */
+    private void load() {
+        if (mEntries != null) {
+            return;
+        }
+        mEntries = new HashMap<Long, Entry>();
+        if (!mFile.exists()) {
+            return;
+        }
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new FileReader(mFile));
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] fields = line.split(" ");
+                long key = (fields.length == 3)
+                        ? KeyDictionary.parseKey(fields[0]) : -1;
+                if (key == -1) {
+                    continue;
+                }
+                try {
+                    Entry entry = new Entry();
+                    entry.mLastSeen = Long.parseLong(fields[1]);
+                    entry.mTotal = Integer.parseInt(fields[2]);
+                    mEntries.put(key, entry);
+                } catch (NumberFormatException e) {
+                    Log.d(LOG_TAG, "Invalid line in key statistics.");
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while reading key statistics.", e);
+        } finally {
+            if (br != null) {
+                try {
+                    br.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error while closing file.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write all statistics to {@link #mFile} (one line per key) if there
+     * are new hits since the last save. The statistics are written to a
+     * temporary file first, which then replaces {@link #mFile}.
+     * @return True if writing was successful (or there was nothing to
+     * write). False otherwise.
+     */
+    public synchronized boolean save() {
+        if (!mChanged) {
+            return true;
+        }
+        File dir = mFile.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            Log.e(LOG_TAG, "Error while creating directory.");
+            return false;
+        }
+        File tmp = new File(mFile.getPath() + ".tmp");
+        BufferedWriter bw = null;
+        boolean noError = true;
+        try {
+            bw = new BufferedWriter(new FileWriter(tmp, false));
+            for (Map.Entry<Long, Entry> entry : mEntries.entrySet()) {
+                Entry e = entry.getValue();
+                bw.write(Common.byte2HexString(
+                        KeyDictionary.toByteArray(entry.getKey()))
+                        + " " + e.mLastSeen + " " + e.mTotal);
+                bw.newLine();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while writing key statistics.", e);
+            noError = false;
+        } finally {
+            if (bw != null) {
+                try {
+                    bw.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error while closing file.", e);
+                    noError = false;
+                }
+            }
+        }
+        if (noError && !tmp.renameTo(mFile)) {
+            // Some file systems can not replace a file by renaming.
+            mFile.delete();
+            noError = tmp.renameTo(mFile);
+        }
+        if (noError) {
+            mChanged = false;
+        } else {
+            tmp.delete();
+        }
+        return noError;
+    }
+}
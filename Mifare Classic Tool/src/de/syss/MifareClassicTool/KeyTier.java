@@ -0,0 +1,83 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import java.util.List;
+
+/**
+ * One tier of a tiered key search (e.g. a small list of well known keys
+ * first and a huge leaked dictionary last). A tier is only searched for
+ * sectors that still miss keys after all tiers before it. The time and
+ * the number of keys spent on a sector within a tier can be limited.
+ * @see MCReader#setKeyTiers(List)
+ */
+public class KeyTier {
+
+    private final KeyDictionary mDictionary;
+    private final int mMaxKeys;
+    private final long mMaxMillis;
+
+    /**
+     * Create a key tier.
+     * @param dictionary The keys of this tier.
+     * @param maxKeys The maximum number of keys checked against a sector
+     * in this tier (0 = no limit).
+     * @param maxMillis The maximum time (in milliseconds) spent on a
+     * sector in this tier (0 = no limit).
+     */
+    public KeyTier(KeyDictionary dictionary, int maxKeys, long maxMillis) {
+        mDictionary = dictionary;
+        mMaxKeys = maxKeys;
+        mMaxMillis = maxMillis;
+    }
+
+    /**
+     * @return The keys of this tier.
+     */
+    public KeyDictionary getDictionary() {
+        return mDictionary;
+    }
+
+    /**
+     * @return The maximum number of keys checked against a sector
+     * (0 = no limit).
+     */
+    public int getMaxKeys() {
+        return mMaxKeys;
+    }
+
+    /**
+     * @return The maximum time (in milliseconds) spent on a sector
+     * (0 = no limit).
+     */
+    public long getMaxMillis() {
+        return mMaxMillis;
+    }
+
+    /**
+     * Check if a sector has used up its budget in this tier.
+     * @param keys The number of keys checked against the sector.
+     * @param millis The time (in milliseconds) spent on the sector.
+     * @return True if one of the limits is reached. False otherwise.
+     */
+    public boolean isExhausted(int keys, long millis) {
+        return (mMaxKeys > 0 && keys >= mMaxKeys)
+                || (mMaxMillis > 0 && millis >= mMaxMillis);
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * The key files (tiers) of the last key mapping: their order, whether
+ * they were chosen and the budget of every tier (see {@link KeyTier}).
+ * The settings are stored in a file (e.g. {@link Common#KEY_TIERS_FILE})
+ * with one tier per line ("name", "checked", "max. keys" and
+ * "max. seconds", separated by tabs). If the user did not change the
+ * order, the tiers are ordered by size and hit rate
+ * (see {@link MCReader#orderKeyTiers(KeyStatistics)}) when mapping.
+ */
+public class KeyTierSettings {
+
+    private static final String LOG_TAG =
+            KeyTierSettings.class.getSimpleName();
+    private static final String USER_ORDER = "user-order";
+
+    private final File mFile;
+    private ArrayList<Tier> mTiers = new ArrayList<Tier>();
+    private boolean mIsUserOrder;
+
+    /**
+     * The settings of one key file (tier).
+     */
+    public static class Tier {
+        private final String mName;
+        private final boolean mChecked;
+        private final int mMaxKeys;
+        private final int mMaxSeconds;
+
+        /**
+         * Initialize the settings of a tier.
+         * @param name The name of the key file.
+         * @param checked True if the key file is used for mapping.
+         * @param maxKeys The maximum number of keys checked against
+         * a sector (0 = no limit).
+         * @param maxSeconds The maximum time (in seconds) spent on
+         * a sector (0 = no limit).
+         */
+        public Tier(String name, boolean checked, int maxKeys,
+                int maxSeconds) {
+            mName = name;
+            mChecked = checked;
+            mMaxKeys = Math.max(maxKeys, 0);
+            mMaxSeconds = Math.max(maxSeconds, 0);
+        }
+
+        /**
+         * @return The name of the key file.
+         */
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return True if the key file is used for mapping.
+         */
+        public boolean isChecked() {
+            return mChecked;
+        }
+
+        /**
+         * @return The maximum number of keys checked against a sector
+         * (0 = no limit).
+         */
+        public int getMaxKeys() {
+            return mMaxKeys;
+        }
+
+        /**
+         * @return The maximum time (in seconds) spent on a sector
+         * (0 = no limit).
+         */
+        public int getMaxSeconds() {
+            return mMaxSeconds;
+        }
+    }
+
+    /**
+     * Load the key tier settings from a file.
+     * @param file The file (e.g. {@link Common#KEY_TIERS_FILE}). If it
+     * does not exist, there are no settings.
+     */
+    public KeyTierSettings(File file) {
+        mFile = file;
+        load();
+    }
+
+    /**
+     * Get the settings of all key files in the order of the last mapping.
+     * Key files might have been removed since then.
+     * @return The settings of the key files.
+     */
+    public List<Tier> getTiers() {
+        return mTiers;
+    }
+
+    /**
+     * Get the settings of a key file.
+     * @param name The name of the key file.
+     * @return The settings or "null" if there are none.
+     */
+    public Tier getTier(String name) {
+        for (Tier tier : mTiers) {
+            if (tier.getName().equals(name)) {
+                return tier;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check if the user has ordered the key files.
+     * @return True if the order was chosen by the user. False if the
+     * default order (size and hit rate) should be used.
+     */
+    public boolean isUserOrder() {
+        return mIsUserOrder;
+    }
+
+    /**
+     * Replace the settings (they are not saved until {@link #save()}
+     * is called).
+     * @param tiers The settings of all key files in the order they
+     * should be used.
+     * @param isUserOrder True if the order was chosen by the user.
+     */
+    public void set(List<Tier> tiers, boolean isUserOrder) {
+        mTiers = new ArrayList<Tier>(tiers);
+        mIsUserOrder = isUserOrder;
+    }
+
+    /**
+     * Get the checked key files (in order) that still exist.
+     * @param keysDir The directory with the key files
+     * (e.g. {@link Common#KEYS_DIR}).
+     * @return The checked key files (the list may be empty).
+     */
+    public List<File> getCheckedFiles(File keysDir) {
+        ArrayList<File> ret = new ArrayList<File>();
+        for (Tier tier : mTiers) {
+            File file = new File(keysDir, tier.getName());
+            if (tier.isChecked() && file.isFile()) {
+                ret.add(file);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Load the settings from {@link #mFile}. Invalid lines are ignored.
+     */
+    private void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new FileReader(mFile));
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.equals(USER_ORDER)) {
+                    mIsUserOrder = true;
+                    continue;
+                }
+                String[] parts = line.split("\t");
+                if (parts.length != 4 || parts[0].equals("")) {
+                    continue;
+                }
+                try {
+                    mTiers.add(new Tier(parts[0],
+                            Boolean.parseBoolean(parts[1]),
+                            Integer.parseInt(parts[2]),
+                            Integer.parseInt(parts[3])));
+                } catch (NumberFormatException e) {
+                    Log.d(LOG_TAG, "Invalid key tier settings: " + line);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while reading key tier settings.", e);
+        } finally {
+            if (br != null) {
+                try {
+                    br.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error while closing file.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Save the settings to the file (it will be written to a temporary
+     * file first, so an interrupted save does not destroy the settings).
+     * @return True if saving was successful. False otherwise.
+     */
+    public boolean save() {
+        File dir = mFile.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            Log.e(LOG_TAG, "Error while creating directory.");
+            return false;
+        }
+        File tmp = new File(mFile.getPath() + ".tmp");
+        BufferedWriter bw = null;
+        boolean noError = true;
+        try {
+            bw = new BufferedWriter(new FileWriter(tmp, false));
+            if (mIsUserOrder) {
+                bw.write(USER_ORDER);
+                bw.newLine();
+            }
+            for (Tier tier : mTiers) {
+                bw.write(tier.getName() + "\t" + tier.isChecked() + "\t"
+                        + tier.getMaxKeys() + "\t" + tier.getMaxSeconds());
+                bw.newLine();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while writing key tier settings.", e);
+            noError = false;
+        } finally {
+            if (bw != null) {
+                try {
+                    bw.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error while closing file.", e);
+                    noError = false;
+                }
+            }
+        }
+        if (noError && !tmp.renameTo(mFile)) {
+            // Some file systems can not replace a file by renaming.
+            mFile.delete();
+            noError = tmp.renameTo(mFile);
+        }
+        if (!noError) {
+            tmp.delete();
+        }
+        return noError;
+    }
+}
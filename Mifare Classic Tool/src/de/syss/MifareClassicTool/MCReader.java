@@ -22,15 +22,21 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 
 import android.content.Context;
 import android.nfc.Tag;
 import android.nfc.TagLostException;
 import android.nfc.tech.MifareClassic;
+import android.os.Environment;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 import android.widget.Toast;
 
 /**
@@ -48,6 +54,19 @@ public class MCReader {
      * Placeholder for unreadable blocks.
      */
     public  static final String NO_DATA = "--------------------------------";
+    /**
+     * Number of dictionary keys checked in the first round of
+     * {@link #buildNextKeyMapStep()}.
+     */
+    private static final int FIRST_ROUND_KEY_COUNT = 16;
+
+    /**
+     * The goals of the key mapping
+     * (see {@link MCReader#setMappingGoal(MappingGoal, HashMap)}).
+     */
+    public enum MappingGoal {
+        ReadData, WriteBlocks, WriteTrailer
+    }
 
     private final Tag mTag;
     private final MifareClassic mMFC;
@@ -55,7 +74,55 @@ public class MCReader {
     private int mKeyMapStatus = 0;
     private int mLastSector = -1;
     private int mFirstSector = 0;
-    private ArrayList<byte[]> mKeysWithOrder;
+    private BitSet mMappingSectors;
+    // State of the breadth-first mapping (see buildNextKeyMapStep()):
+    // the keys (A/B) that are still searched per sector, the dictionary
+    // indices of all found keys (in order and as set) and how many of them
+    // were checked per sector, the order of the dictionary (taken when the
+    // tier started), the dictionary indices checked in earlier rounds,
+    // the positions (in this order) of the current round and the
+    // next sector of the round (-1 if all rounds are done).
+    private SparseArray<boolean[]> mRoundSearchKeys;
+    private ArrayList<Integer> mRoundFoundKeys;
+    private BitSet mRoundFoundSet;
+    private SparseIntArray mRoundFoundCursor;
+    private int[] mRoundOrder;
+    private BitSet mRoundChecked;
+    private int mRoundStart;
+    private int mRoundEnd;
+    private int mRoundSector = -1;
+    private int mRoundSectorsDone;
+    // The tiers of the breadth-first mapping, the current tier, the number
+    // of keys of all tiers before it, the keys checked and the time spent
+    // (ms) per sector in this tier, whether a sector used up a budget
+    // (and which sectors did), the tiers whose keys were checked against
+    // all sectors that still miss keys and the tier of every found key
+    // (A/B) per sector.
+    private List<KeyTier> mKeyTiers;
+    private ArrayList<KeyTier> mRoundTiers;
+    private ArrayList<KeyDictionary> mRoundDoneTiers;
+    private int mRoundTier;
+    private int mRoundTierOffset;
+    private SparseArray<long[]> mRoundBudget;
+    private boolean mRoundBudgetUsed;
+    private BitSet mRoundBudgetSectors;
+    private SparseArray<int[]> mRoundKeyTiers;
+    private KeyDictionary mKeyDictionary;
+    private SparseArray<byte[][]> mCandidateKeyMap;
+    private SparseArray<byte[][]> mSeedKeyMap;
+    private KeyPredictor mKeyPredictor;
+    private boolean mReadWhileMapping = false;
+    private SparseArray<String[]> mRawDump;
+    private MappingGoal mMappingGoal;
+    private HashMap<Integer, int[]> mGoalPositions;
+    // The sector, key and key type of the current authentication
+    // (see authenticate()). mAuthSector is -1 if there is none.
+    private int mAuthSector = -1;
+    private byte[] mAuthKey;
+    private boolean mAuthKeyB;
+    // Decoded Access Conditions (see Common.acBytesToACMatrix()) of every
+    // sector trailer that was read in this session.
+    private SparseArray<byte[][]> mACCache = new SparseArray<byte[][]>();
 
     /**
      * Initialize a Mifare Classic reader for the given tag.
@@ -107,25 +174,15 @@ public class MCReader {
             ret = new SparseArray<String[]>(keyMap.size());
             // For all entries in map do:
             for (int i = 0; i < keyMap.size(); i++) {
-                String[][] results = new String[2][];
+                String[] result;
                 try {
-                    if (keyMap.valueAt(i)[0] != null) {
-                        // Read with key A.
-                        results[0] = readSector(
-                                keyMap.keyAt(i), keyMap.valueAt(i)[0], false);
-                    }
-                    if (keyMap.valueAt(i)[1] != null) {
-                        // Read with key B.
-                        results[1] = readSector(
-                                keyMap.keyAt(i), keyMap.valueAt(i)[1], true);
-                    }
+                    result = readSector(keyMap.keyAt(i),
+                            keyMap.valueAt(i));
                 } catch (TagLostException e) {
                     return null;
                 }
-                // Merge results.
-                if (results[0] != null || results[1] != null) {
-                    ret.put(keyMap.keyAt(i), mergeSectorData(
-                            results[0], results[1]));
+                if (result != null) {
+                    ret.put(keyMap.keyAt(i), result);
                 }
             }
             return ret;
@@ -193,12 +250,14 @@ public class MCReader {
                     blocks.add(Common.byte2HexString(
                             mMFC.readBlock(i)));
                 } catch (TagLostException e) {
+                    invalidateAuthentication();
                     throw e;
                 } catch (IOException e) {
                     // Could not read block.
                     // (Maybe due to key/authentication method.)
                     Log.d(LOG_TAG, "Error while reading block "
                             + i + " from tag.");
+                    invalidateAuthentication();
                     blocks.add(NO_DATA);
                     if (!mMFC.isConnected()) {
                         throw new TagLostException(
@@ -237,6 +296,188 @@ public class MCReader {
         return ret;
     }
 
+    /**
+     * Read a sector with all known keys (A and B). Unlike reading the
+     * sector with every key and merging the results
+     * (see {@link #mergeSectorData(String[], String[])}), the sector trailer
+     * will be read first and its Access Conditions decide which
+     * key is used to read which block. Every block will be read (at most)
+     * once and only with a key that is allowed to read it. Therefore there
+     * are no failed reads (and no re-authentications caused by them) and
+     * the sector will only be authenticated with a second key if there
+     * are blocks that the first key can not read.
+     * If the Access Conditions are unknown (sector trailer not readable)
+     * or invalid, every block is read with the first key and
+     * with the second key only if this fails.
+     * @param sectorIndex Index of the sector to read.
+     * @param keys Key A and key B (like a value of {@link #getKeyMap()}).
+     * One of them may be "null".
+     * If the sector is already authenticated with one of the keys
+     * (see {@link #authenticate(int, byte[], boolean)}), this key will
+     * be used first (without a new authentication).
+     * @return Array of blocks like
+     * {@link #readSector(int, byte[], boolean)} returns it, with both keys
+     * merged into the sector trailer. "null" if the sector could not be
+     * authenticated with any of the keys or if no block (not even the
+     * sector trailer) could be read.
+     * @throws TagLostException When tag is lost.
+     */
+    private String[] readSector(int sectorIndex, byte[][] keys)
+            throws TagLostException {
+        int firstBlock = mMFC.sectorToBlock(sectorIndex);
+        int blockCount = mMFC.getBlockCountInSector(sectorIndex);
+        int trailer = blockCount - 1;
+        // Order of the keys. The already authenticated key first.
+        boolean isAuthenticatedWithKeyB = mAuthSector == sectorIndex
+                && mAuthKeyB;
+        int[] order = (isAuthenticatedWithKeyB || keys[0] == null)
+                ? new int[] {1, 0} : new int[] {0, 1};
+        boolean authenticated = false;
+
+        // Read the sector trailer (Access Conditions).
+        byte[] trailerData = null;
+        int trailerKey = -1;
+        for (int k : order) {
+            if (keys[k] == null
+                    || !authenticate(sectorIndex, keys[k], k == 1)) {
+                continue;
+            }
+            authenticated = true;
+            try {
+                trailerData = mMFC.readBlock(firstBlock + trailer);
+                trailerKey = k;
+                break;
+            } catch (TagLostException e) {
+                invalidateAuthentication();
+                throw e;
+            } catch (IOException e) {
+                Log.d(LOG_TAG, "Error while reading sector trailer of "
+                        + "sector " + sectorIndex + " from tag.");
+                invalidateAuthentication();
+                checkConnected();
+            }
+        }
+        if (!authenticated) {
+            return null;
+        }
+
+        // Plan which block is read with which key
+        // (0 = key A, 1 = key B, 2 = any key, -1 = not readable).
+        byte[][] acMatrix = null;
+        boolean isKeyBReadable = false;
+        if (trailerData != null) {
+            acMatrix = cacheAC(sectorIndex, trailerData);
+        }
+        if (acMatrix != null) {
+            isKeyBReadable = Common.isKeyBReadable(
+                    acMatrix[0][3], acMatrix[1][3], acMatrix[2][3]);
+        }
+        int[] plan = new int[trailer];
+        for (int i = 0; i < trailer; i++) {
+            if (acMatrix == null) {
+                plan[i] = 2;
+                continue;
+            }
+            // Sectors with 16 blocks: 5 blocks share the same ACs.
+            int acIndex = (blockCount == 16) ? i / 5 : i;
+            int op = Common.getOperationInfoForBlock(acMatrix[0][acIndex],
+                    acMatrix[1][acIndex], acMatrix[2][acIndex],
+                    Common.Operations.Read, false, isKeyBReadable);
+            switch (op) {
+            case 1:
+                plan[i] = (keys[0] != null) ? 0 : -1;
+                break;
+            case 2:
+                plan[i] = (keys[1] != null) ? 1 : -1;
+                break;
+            case 3:
+                plan[i] = 2;
+                break;
+            case 0:
+                plan[i] = -1;
+                break;
+            default:
+                // Error. Try all keys.
+                plan[i] = 2;
+            }
+        }
+
+        // Read the data blocks. First with the key of the current
+        // authentication, then (if needed) with the other one.
+        String[] ret = new String[blockCount];
+        if (trailerKey != -1 && order[0] != trailerKey) {
+            order = new int[] {order[1], order[0]};
+        }
+        for (int k : order) {
+            if (keys[k] == null) {
+                continue;
+            }
+            for (int i = 0; i < trailer; i++) {
+                if (ret[i] != null || (plan[i] != k && plan[i] != 2)) {
+                    continue;
+                }
+                if (!authenticate(sectorIndex, keys[k], k == 1)) {
+                    break;
+                }
+                try {
+                    ret[i] = Common.byte2HexString(
+                            mMFC.readBlock(firstBlock + i));
+                } catch (TagLostException e) {
+                    invalidateAuthentication();
+                    throw e;
+                } catch (IOException e) {
+                    Log.d(LOG_TAG, "Error while reading block "
+                            + (firstBlock + i) + " from tag.");
+                    invalidateAuthentication();
+                    checkConnected();
+                }
+            }
+        }
+        boolean read = trailerData != null;
+        for (int i = 0; i < trailer; i++) {
+            if (ret[i] == null) {
+                ret[i] = NO_DATA;
+            } else {
+                read = true;
+            }
+        }
+        if (!read) {
+            // Nothing could be read (e.g. only key B is known, but the
+            // Access Conditions make key B unusable). This is the same as
+            // a failed authentication.
+            return null;
+        }
+
+        // Merge the keys into the sector trailer.
+        String keyA = (keys[0] != null)
+                ? Common.byte2HexString(keys[0]) : NO_KEY;
+        String ac = NO_DATA.substring(12, 20);
+        String keyB = NO_KEY;
+        if (trailerData != null) {
+            String data = Common.byte2HexString(trailerData);
+            ac = data.substring(12, 20);
+            if (trailerKey == 0 && isKeyBReadable) {
+                keyB = data.substring(20, 32);
+            }
+        }
+        if (keys[1] != null) {
+            keyB = Common.byte2HexString(keys[1]);
+        }
+        ret[trailer] = keyA + ac + keyB;
+        return ret;
+    }
+
+    /**
+     * Throw a {@link TagLostException} if the tag is not
+     * connected anymore.
+     * @throws TagLostException When tag is lost.
+     */
+    private void checkConnected() throws TagLostException {
+        if (!mMFC.isConnected()) {
+            throw new TagLostException("Tag removed during reading.");
+        }
+    }
+
     /**
      * Write a block of 16 byte data to tag.
      * @param sectorIndex The sector to where the data should be written
@@ -276,18 +517,373 @@ public class MCReader {
             mMFC.writeBlock(block, data);
         } catch (IOException e) {
             Log.e(LOG_TAG, "Error while writing block to tag.", e);
+            invalidateAuthentication();
             return -1;
         }
+        if (blockIndex == mMFC.getBlockCountInSector(sectorIndex)-1) {
+            // The Access Conditions may have changed.
+            mACCache.remove(sectorIndex);
+        }
+        return 0;
+    }
+
+    /**
+     * Read a single block of 16 byte from the tag.
+     * @param sectorIndex The sector of the block.
+     * @param blockIndex The block (within the sector) to read.
+     * @param key The Mifare Classic key for the given sector.
+     * @param useAsKeyB If true, key will be treated as key B
+     * for authentication.
+     * @return The 16 byte of the block or "null" if the block could not be
+     * read (out of range, authentication error or read error).
+     * @see #writeBlock(int, int, byte[], byte[], boolean)
+     */
+    public byte[] readBlock(int sectorIndex, int blockIndex, byte[] key,
+            boolean useAsKeyB) {
+        if (mMFC.getSectorCount()-1 < sectorIndex
+                || mMFC.getBlockCountInSector(sectorIndex)-1 < blockIndex) {
+            return null;
+        }
+        if (!authenticate(sectorIndex, key, useAsKeyB)) {
+            return null;
+        }
+        int block = mMFC.sectorToBlock(sectorIndex) + blockIndex;
+        try {
+            byte[] data = mMFC.readBlock(block);
+            if (blockIndex == mMFC.getBlockCountInSector(sectorIndex)-1) {
+                cacheAC(sectorIndex, data);
+            }
+            return data;
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "Error while reading block " + block
+                    + " from tag.");
+            invalidateAuthentication();
+        }
+        return null;
+    }
+
+    /**
+     * Change the keys of a sector by rewriting only its sector trailer.
+     * The sector trailer is read with one of the old keys and its
+     * Access Conditions are kept as they are. The new trailer is only
+     * written if the Access Conditions allow writing all keys that should
+     * change with one of the known old keys. A key that should not change
+     * must be known (or readable), because the whole trailer is written.
+     * After writing, the sector is authenticated with every new key
+     * (except key B if it is readable and therefore not usable
+     * for authentication).
+     * If the old keys do not work, the sector might already have the new
+     * keys (e.g. the tag was removed after writing and is re-keyed again).
+     * This is checked with {@link #hasNewKeys(int, byte[][])}, so calling
+     * this method again for the same sector is safe.
+     * @param sectorIndex The sector.
+     * @param oldKeys Known old key A and key B ("null" if unknown).
+     * @param newKeys New key A and key B ("null" if the key should
+     * not change).
+     * @return The return codes are:<br />
+     * <ul>
+     * <li>0 - Everything went fine (or there was nothing to change).</li>
+     * <li>1 - Sector trailer not readable with the old keys
+     * (or sector index out of range).</li>
+     * <li>2 - Access Conditions are invalid.</li>
+     * <li>3 - Keys are not writable with the known keys.</li>
+     * <li>4 - Error while writing.</li>
+     * <li>5 - Authentication with the new keys failed.</li>
+     * <li>6 - Nothing to change. The old keys do not work, but the sector
+     * already has the new keys.</li>
+     * </ul>
+     * @see Common#getOperationInfoForBlock(byte, byte, byte,
+     * Common.Operations, boolean, boolean)
+     */
+    public int changeKeys(int sectorIndex, byte[][] oldKeys,
+            byte[][] newKeys) {
+        if (newKeys[0] == null && newKeys[1] == null) {
+            return 0;
+        }
+        if (mMFC.getSectorCount()-1 < sectorIndex) {
+            return 1;
+        }
+        // Read the sector trailer with the first old key that works.
+        int trailerIndex = mMFC.getBlockCountInSector(sectorIndex) - 1;
+        byte[] trailer = null;
+        int readWith = -1;
+        for (int i = 0; i < 2 && trailer == null; i++) {
+            if (oldKeys[i] != null) {
+                trailer = readBlock(sectorIndex, trailerIndex,
+                        oldKeys[i], i == 1);
+                readWith = i;
+            }
+        }
+        if (trailer == null) {
+            return hasNewKeys(sectorIndex, newKeys) ? 6 : 1;
+        }
+        byte[][] acMatrix = Common.acBytesToACMatrix(
+                Arrays.copyOfRange(trailer, 6, 9));
+        if (acMatrix == null) {
+            return 2;
+        }
+        boolean keyBReadable = Common.isKeyBReadable(
+                acMatrix[0][3], acMatrix[1][3], acMatrix[2][3]);
+
+        // Find a known key that is allowed to write all changed keys
+        // (prefer the key the trailer was read with).
+        int writeWith = -1;
+        for (int i : new int[] {readWith, 1 - readWith}) {
+            if (oldKeys[i] == null) {
+                continue;
+            }
+            boolean allowed = true;
+            for (int k = 0; k < 2; k++) {
+                if (newKeys[k] == null) {
+                    continue;
+                }
+                int info = Common.getOperationInfoForBlock(
+                        acMatrix[0][3], acMatrix[1][3], acMatrix[2][3],
+                        (k == 0) ? Common.Operations.WriteKeyA
+                                : Common.Operations.WriteKeyB,
+                        true, keyBReadable);
+                allowed &= info == 3 || info == i + 1;
+            }
+            if (allowed) {
+                writeWith = i;
+                break;
+            }
+        }
+        if (writeWith == -1) {
+            return 3;
+        }
+
+        // Compose the new sector trailer (old Access Conditions).
+        byte[] keyA = (newKeys[0] != null) ? newKeys[0] : oldKeys[0];
+        byte[] keyB = (newKeys[1] != null) ? newKeys[1] : oldKeys[1];
+        if (keyB == null && keyBReadable && readWith == 0) {
+            keyB = Arrays.copyOfRange(trailer, 10, 16);
+        }
+        if (keyA == null || keyB == null) {
+            return 3;
+        }
+        byte[] data = new byte[16];
+        System.arraycopy(keyA, 0, data, 0, 6);
+        System.arraycopy(trailer, 6, data, 6, 4);
+        System.arraycopy(keyB, 0, data, 10, 6);
+        if (writeBlock(sectorIndex, trailerIndex, data, oldKeys[writeWith],
+                writeWith == 1) != 0) {
+            return 4;
+        }
+
+        // Check the new key.
+        byte[] check = readBlock(sectorIndex, trailerIndex,
+                (writeWith == 0) ? keyA : keyB, writeWith == 1);
+        if (check == null || !Arrays.equals(Arrays.copyOfRange(check, 6, 10),
+                Arrays.copyOfRange(data, 6, 10))) {
+            return 5;
+        }
+        // Check the other changed key (if any). Key B can not be used
+        // for authentication if it is readable.
+        for (int k = 0; k < 2; k++) {
+            if (k == writeWith || newKeys[k] == null
+                    || (k == 1 && keyBReadable)) {
+                continue;
+            }
+            invalidateAuthentication();
+            if (!authenticate(sectorIndex, newKeys[k], k == 1)) {
+                return 5;
+            }
+        }
         return 0;
     }
 
+    /**
+     * Check if a sector already has its new keys (see
+     * {@link #changeKeys(int, byte[][], byte[][])}). The sector trailer
+     * must be readable with one of the new keys, its Access Conditions
+     * must be valid and the same as the cached ones (if the sector trailer
+     * was read before, see {@link #getACCache()}) and every other new key
+     * must work (or match the sector trailer if key B is readable).
+     * @param sectorIndex The sector.
+     * @param newKeys New key A and key B ("null" if the key should
+     * not change).
+     * @return True if the sector has the new keys. False otherwise.
+     */
+    private boolean hasNewKeys(int sectorIndex, byte[][] newKeys) {
+        byte[][] cachedAC = mACCache.get(sectorIndex);
+        int trailerIndex = mMFC.getBlockCountInSector(sectorIndex) - 1;
+        byte[] trailer = null;
+        int readWith = -1;
+        for (int i = 0; i < 2 && trailer == null; i++) {
+            if (newKeys[i] != null) {
+                trailer = readBlock(sectorIndex, trailerIndex,
+                        newKeys[i], i == 1);
+                readWith = i;
+            }
+        }
+        if (trailer == null) {
+            return false;
+        }
+        byte[][] acMatrix = Common.acBytesToACMatrix(
+                Arrays.copyOfRange(trailer, 6, 9));
+        if (acMatrix == null || (cachedAC != null
+                && !Arrays.deepEquals(acMatrix, cachedAC))) {
+            return false;
+        }
+        boolean keyBReadable = Common.isKeyBReadable(
+                acMatrix[0][3], acMatrix[1][3], acMatrix[2][3]);
+        for (int k = 0; k < 2; k++) {
+            if (k == readWith || newKeys[k] == null) {
+                continue;
+            }
+            if (k == 1 && keyBReadable) {
+                // Key B can not be used for authentication, but it was
+                // read with key A.
+                if (!Arrays.equals(newKeys[1],
+                        Arrays.copyOfRange(trailer, 10, 16))) {
+                    return false;
+                }
+                continue;
+            }
+            invalidateAuthentication();
+            if (!authenticate(sectorIndex, newKeys[k], k == 1)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Execute a batch of value block operations. The operations of a sector
+     * are executed with one key (and therefore one authentication).
+     * The key is chosen with the Access Conditions of the sector
+     * (see {@link #getACCache()}): the key that is allowed to execute the
+     * most operations of the sector is used (key B if both are equal).
+     * Every operation is verified by reading the value before the
+     * operation and the transferred value afterwards. If the cached
+     * Access Conditions do not allow reading these blocks with the chosen
+     * key, the operation is not executed.
+     * @param batch The operations.
+     * @param keyMap A key map (see {@link #getKeyMap()}).
+     * @return The result codes of the operations (in the order of
+     * {@link ValueBlockBatch#getSteps()}). The result codes are:<br />
+     * <ul>
+     * <li>0 - Everything went fine.</li>
+     * <li>1 - Sector or block index is out of range.</li>
+     * <li>2 - No key or not allowed by the Access Conditions
+     * (or authentication error).</li>
+     * <li>3 - Block is not a value block (or not readable, e.g. the
+     * Access Conditions do not allow reading the block or the
+     * transfer block).</li>
+     * <li>4 - Error while executing the operation (e.g. tag lost).</li>
+     * <li>5 - The transferred value is not the expected value.</li>
+     * </ul>
+     * @see Common#getOperationInfoForBlock(byte, byte, byte,
+     * Common.Operations, boolean, boolean)
+     */
+    public int[] executeValueBlockBatch(ValueBlockBatch batch,
+            SparseArray<byte[][]> keyMap) {
+        List<ValueBlockBatch.Step> steps = batch.getSteps();
+        int[] ret = new int[steps.size()];
+        boolean tagLost = false;
+        int first = 0;
+        while (first < steps.size()) {
+            int sector = steps.get(first).getSector();
+            int end = first;
+            while (end < steps.size()
+                    && steps.get(end).getSector() == sector) {
+                end++;
+            }
+            List<ValueBlockBatch.Step> sectorSteps =
+                    steps.subList(first, end);
+            boolean[] allowed = new boolean[sectorSteps.size()];
+            int keyType = -1;
+            if (sector < mMFC.getSectorCount() && !tagLost) {
+                keyType = chooseValueBlockKey(sector, keyMap.get(sector),
+                        sectorSteps, allowed);
+            }
+            int firstBlock = (sector < mMFC.getSectorCount())
+                    ? mMFC.sectorToBlock(sector) : -1;
+            for (int i = 0; i < sectorSteps.size(); i++) {
+                ValueBlockBatch.Step step = sectorSteps.get(i);
+                if (sector >= mMFC.getSectorCount()
+                        || step.getBlock() >= mMFC.getBlockCountInSector(sector)
+                        || step.getTransferBlock()
+                        >= mMFC.getBlockCountInSector(sector)) {
+                    ret[first+i] = 1;
+                    continue;
+                }
+                if (tagLost) {
+                    ret[first+i] = 4;
+                    continue;
+                }
+                if (keyType == -1 || !allowed[i]) {
+                    ret[first+i] = 2;
+                    continue;
+                }
+                if (!isReadable(sector, step.getBlock(), keyType)
+                        || !isReadable(sector, step.getTransferBlock(),
+                                keyType)) {
+                    // The operation could not be verified.
+                    ret[first+i] = 3;
+                    continue;
+                }
+                try {
+                    if (!authenticateOrThrow(sector,
+                            keyMap.get(sector)[keyType], keyType == 1)) {
+                        ret[first+i] = 2;
+                        continue;
+                    }
+                    Integer oldValue = Common.decodeValueBlock(
+                            mMFC.readBlock(firstBlock + step.getBlock()));
+                    if (oldValue == null) {
+                        ret[first+i] = 3;
+                        continue;
+                    }
+                    int block = firstBlock + step.getBlock();
+                    switch (step.getOperation()) {
+                    case Increment:
+                        mMFC.increment(block, step.getValue());
+                        break;
+                    case Decrement:
+                        mMFC.decrement(block, step.getValue());
+                        break;
+                    case Restore:
+                        mMFC.restore(block);
+                        break;
+                    }
+                    mMFC.transfer(firstBlock + step.getTransferBlock());
+                    Integer newValue = Common.decodeValueBlock(mMFC.readBlock(
+                            firstBlock + step.getTransferBlock()));
+                    if (newValue == null || newValue.intValue()
+                            != step.getExpectedValue(oldValue)) {
+                        ret[first+i] = 5;
+                        continue;
+                    }
+                    ret[first+i] = 0;
+                } catch (TagLostException e) {
+                    Log.d(LOG_TAG, "Tag lost while executing value block "
+                            + "operations.");
+                    invalidateAuthentication();
+                    tagLost = true;
+                    ret[first+i] = 4;
+                } catch (IOException e) {
+                    Log.d(LOG_TAG, "Error while executing value block "
+                            + "operation on block " + step.getBlock()
+                            + " (sector " + sector + ").");
+                    invalidateAuthentication();
+                    ret[first+i] = 4;
+                }
+            }
+            first = end;
+        }
+        return ret;
+    }
+
     /**
      * Build Key-Value Pairs in which keys represent the sector and
      * values are one or both of the Mifare keys (A/B).
      * The Mifare key information must be set before calling this method
      * (use {@link #setKeyFile(File[], Context)}).
      * Also the mapping range must be specified before calling this method
-     * (use {@link #setMappingRange(int, int)}).<br /><br />
+     * (use {@link #setMappingRange(int, int)} or
+     * {@link #setMappingSectors(BitSet)}).<br /><br />
      * The mapping works like some kind of dictionary attack.
      * All keys are checked against the next sector
      * with both authentication methods (A/B). If at least one key was found
@@ -295,65 +891,81 @@ public class MCReader {
      * key(s) and the information for what sector the key(s) are. You can get
      * this Key-Value Pairs by calling {@link #getKeyMap()}. A full
      * key map can be gained by calling this method as often as there are
-     * sectors on the tag (See {@link #getSectorCount()}). If you call
+     * sectors in the mapping range (See {@link #getMappingSectorCount()}).
+     * If you call
      * this method once more after a full key map was created, it resets the
-     * key map an starts all over.
+     * key map an starts all over.<br /><br />
+     * If there are seed keys, candidate keys or predicted keys for a
+     * sector (see {@link #setSeedKeyMap(SparseArray)},
+     * {@link #setCandidateKeyMap(SparseArray)} and
+     * {@link #setKeyPredictor(KeyPredictor)}), they will be checked first
+     * (in this order) and the dictionary is only used for the keys that
+     * could not be found this way. If key A was found and the access conditions allow
+     * reading key B, key B is taken from the sector trailer
+     * (see {@link #readKeyBFromTrailer(int)}) instead of searching it.
+     * If reading while mapping is enabled
+     * (see {@link #setReadWhileMapping(boolean)}), the sector will be
+     * read directly after its keys were found (see {@link #getRawDump()}).
+     * If there is a mapping goal (see
+     * {@link #setMappingGoal(MappingGoal, HashMap)}), the search for a key
+     * stops as soon as the found keys are enough to reach the goal.
      * @return The sector that was checked at the moment. On error it returns
      * "-1" and resets the key map to "null".
      * @see #getKeyMap()
      * @see #setKeyFile(File[], Context)
+     * @see #setCandidateKeyMap(SparseArray)
      * @see #setMappingRange(int, int)
      * @see #readAsMuchAsPossible(SparseArray)
      */
     public int buildNextKeyMapPart() {
         // Clear status and key map before new walk through sectors.
         boolean error = false;
-        if (mKeysWithOrder != null && mLastSector != -1) {
+        int sector = -1;
+        if ((mKeyDictionary != null || mCandidateKeyMap != null
+                || mSeedKeyMap != null || mKeyPredictor != null)
+                && mLastSector != -1) {
             if (mKeyMapStatus == mLastSector+1) {
                 mKeyMapStatus = mFirstSector;
                 mKeyMap = new SparseArray<byte[][]>();
+                mRawDump = (mReadWhileMapping)
+                        ? new SparseArray<String[]>() : null;
             }
 
             byte[][] keys = new byte[2][];
-            boolean[] foundKeys = new boolean[] {false, false};
+            // Keys (A/B) that still have to be searched in the dictionary.
+            boolean[] searchKeys = new boolean[] {true, true};
+            int[] foundKeys = new int[] {-1, -1};
             try {
-                // Check next sector against all keys (lines) with
-                // authentication method A and B.
-                for (byte[] key : mKeysWithOrder) {
-                    if (!foundKeys[0] &&
-                            mMFC.authenticateSectorWithKeyA(
-                                    mKeyMapStatus, key)) {
-                        keys[0] = key;
-                        foundKeys[0] = true;
-                    }
-                    if (!foundKeys[1] &&
-                            mMFC.authenticateSectorWithKeyB(
-                                    mKeyMapStatus, key)) {
-                        keys[1] = key;
-                        foundKeys[1] = true;
-                    }
-                    if (foundKeys[0] && foundKeys[1]) {
-                        // Both keys found. Continue with next sector.
-                        break;
+                checkKnownKeys(mKeyMapStatus, keys, searchKeys);
+                if (mKeyDictionary != null
+                        && (searchKeys[0] || searchKeys[1])) {
+                    // The key buffer is reused for all keys of
+                    // the dictionary.
+                    byte[] key = new byte[KeyDictionary.KEY_LENGTH];
+                    // Check next sector against all keys with
+                    // authentication method A and B.
+                    for (int i = mKeyDictionary.getFirstIndex(); i != -1;
+                            i = mKeyDictionary.getNextIndex(i)) {
+                        mKeyDictionary.getKey(i, key);
+                        checkKey(mKeyMapStatus, key, i, mKeyDictionary,
+                                keys, searchKeys, foundKeys);
+                        if (!searchKeys[0] && !searchKeys[1]) {
+                            // Both keys found. Continue with next sector.
+                            break;
+                        }
                     }
                 }
-                if (foundKeys[0] || foundKeys[1]) {
-                    // At least one key found. Add key(s).
-                    mKeyMap.put(mKeyMapStatus, keys);
-                    // Key reuse is very likely, so try these first
-                    // for the next sector.
-                    if (foundKeys[0]) {
-                        mKeysWithOrder.remove(keys[0]);
-                        mKeysWithOrder.add(0, keys[0]);
-                    }
-                    if (foundKeys[1]) {
-                        mKeysWithOrder.remove(keys[1]);
-                        mKeysWithOrder.add(0, keys[1]);
-                    }
+                if (keys[0] != null || keys[1] != null) {
+                    addToKeyMap(mKeyMapStatus, keys, foundKeys,
+                            mKeyDictionary);
                 }
-                mKeyMapStatus++;
+                // Continue with the next sector of the mapping range.
+                sector = mKeyMapStatus;
+                int next = mMappingSectors.nextSetBit(sector + 1);
+                mKeyMapStatus = (next != -1) ? next : mLastSector + 1;
             } catch (Exception e) {
                 Log.d(LOG_TAG, "Error while building next key map part");
+                invalidateAuthentication();
                 error = true;
             }
         } else {
@@ -363,94 +975,662 @@ public class MCReader {
         if (error) {
             mKeyMapStatus = 0;
             mKeyMap = null;
+            mRawDump = null;
             return -1;
         }
-        return mKeyMapStatus - 1;
+        return sector;
     }
 
     /**
-     * Merge the result of two {@link #readSector(int, byte[], boolean)}
-     * calls on the same sector (with different keys or authentication methods).
-     * In this case merging means empty blocks will be overwritten with non
-     * empty ones and the keys will be added correctly to the sector trailer.
-     * The access conditions will be taken from the first (firstResult)
-     * parameter if it is not null.
-     * @param firstResult First
-     * {@link #readSector(int, byte[], boolean)} result.
-     * @param secondResult Second
-     * {@link #readSector(int, byte[], boolean)} result.
-     * @return Array (sector) as result of merging the given
-     * sectors. If a block is {@link #NO_DATA} it
-     * means that none of the given sectors contained data from this block.
-     * @see #readSector(int, byte[], boolean)
-     * @see #authenticate(int, byte[], boolean)
+     * Build the key map breadth-first. Unlike
+     * {@link #buildNextKeyMapPart()}, which checks the whole dictionary
+     * against a sector before it continues with the next one, the
+     * dictionary is checked in rounds: the first round checks the first
+     * keys of the dictionary in their current order (see
+     * {@link #rankKeys(KeyStatistics)}) and the seed and candidate keys (see
+     * {@link #buildNextKeyMapPart()}) against all sectors of the mapping
+     * range, every following round checks twice as many of the next keys.
+     * Keys found for one sector are checked against all other sectors
+     * in their next round. This way, one sector with an unusual key does
+     * not delay all the others.<br /><br />
+     * If there are key tiers (see {@link #setKeyTiers(List)}), they are
+     * used instead of the dictionary: the tiers are checked one after
+     * another (each in rounds) and a tier is only checked against the
+     * sectors that still miss keys. Keys of a tier that were already
+     * checked in an earlier tier are skipped. A sector that used up the
+     * budget of a tier (see {@link KeyTier}) continues with the next tier.
+     * (In this case, the keys of that tier are not skipped in the
+     * next tiers.)
+     * The tier of every found key can be retrieved with
+     * {@link #getKeyTiers(int)}.<br /><br />
+     * Every call checks one sector of the current round. Found keys are
+     * added to the key map (see {@link #getKeyMap()}) immediately, so the
+     * (partial) key map can be used at any time (e.g. if the mapping
+     * is stopped). The key map is complete if
+     * {@link #isKeyMapComplete()} returns true. If you call this method
+     * once more after that, it resets the key map and starts all over.
+     * The mapping goal (see {@link #setMappingGoal(MappingGoal, HashMap)})
+     * and reading while mapping (see {@link #setReadWhileMapping(boolean)})
+     * work like in {@link #buildNextKeyMapPart()}. If more keys of an
+     * already read sector are found, the sector is read again.
+     * @return The sector that was checked. On error it returns
+     * "-1" and resets the key map to "null".
+     * @see #getKeyMapProgress()
      */
-    public String[] mergeSectorData(String[] firstResult,
-            String[] secondResult) {
-        String[] ret = null;
-        if (firstResult != null || secondResult != null) {
-            if ((firstResult != null && secondResult != null)
-                    && firstResult.length != secondResult.length) {
-                return null;
+    public int buildNextKeyMapStep() {
+        if ((mKeyDictionary == null && mKeyTiers == null
+                && mCandidateKeyMap == null && mSeedKeyMap == null
+                && mKeyPredictor == null) || mLastSector == -1) {
+            return -1;
+        }
+        if (mRoundSearchKeys == null || mRoundSector == -1) {
+            // Start the first round of the first tier.
+            mKeyMap = new SparseArray<byte[][]>();
+            mRawDump = (mReadWhileMapping)
+                    ? new SparseArray<String[]>() : null;
+            mRoundSearchKeys = new SparseArray<boolean[]>();
+            mRoundKeyTiers = new SparseArray<int[]>();
+            for (int i = mFirstSector; i != -1;
+                    i = mMappingSectors.nextSetBit(i + 1)) {
+                mRoundSearchKeys.put(i, new boolean[] {true, true});
             }
-            int length  = (firstResult != null)
-                    ? firstResult.length : secondResult.length;
-            ArrayList<String> blocks = new ArrayList<String>();
-            // Merge data blocks.
-            for (int i = 0; i < length -1 ; i++) {
-                if (firstResult != null && firstResult[i] != null
-                        && !firstResult[i].equals(NO_DATA)) {
-                    blocks.add(firstResult[i]);
-                } else if (secondResult != null && secondResult[i] != null
-                        && !secondResult[i].equals(NO_DATA)) {
-                    blocks.add(secondResult[i]);
-                } else {
-                    // Non of the results got the data for the block.
-                    blocks.add(NO_DATA);
+            mRoundTiers = new ArrayList<KeyTier>();
+            if (mKeyTiers != null) {
+                mRoundTiers.addAll(mKeyTiers);
+            } else if (mKeyDictionary != null) {
+                mRoundTiers.add(new KeyTier(mKeyDictionary, 0, 0));
+            }
+            mRoundTier = 0;
+            mRoundTierOffset = 0;
+            mRoundBudgetUsed = false;
+            mRoundBudgetSectors = new BitSet();
+            mRoundDoneTiers = new ArrayList<KeyDictionary>();
+            startTier();
+        }
+
+        int sector = mRoundSector;
+        boolean[] searchKeys = mRoundSearchKeys.get(sector);
+        byte[][] keys = mKeyMap.get(sector);
+        if (keys == null) {
+            keys = new byte[2][];
+        }
+        byte[][] oldKeys = keys.clone();
+        int[] foundKeys = new int[] {-1, -1};
+        KeyTier tier = (mRoundTier < mRoundTiers.size())
+                ? mRoundTiers.get(mRoundTier) : null;
+        KeyDictionary dictionary = (tier != null)
+                ? tier.getDictionary() : null;
+        try {
+            if (mRoundTier == 0 && mRoundStart == 0) {
+                checkKnownKeys(sector, keys, searchKeys);
+                for (int j = 0; j < 2; j++) {
+                    if (keys[j] != oldKeys[j]) {
+                        // Found without a tier (seed, candidate or
+                        // predicted key).
+                        setKeyTier(sector, j, -1);
+                        oldKeys[j] = keys[j];
+                    }
                 }
             }
-            ret = blocks.toArray(new String[blocks.size() + 1]);
-            int last = length - 1;
-            // Merge sector trailer.
-            if (firstResult != null && firstResult[last] != null
-                    && !firstResult[last].equals(NO_DATA)) {
-                // Take first for sector trailer.
-                ret[last] = firstResult[last];
-                if (secondResult != null && secondResult[last] != null
-                        && !secondResult[last].equals(NO_DATA)) {
-                    // Merge key form second result to sector trailer.
-                    ret[last] = ret[last].substring(0, 20)
-                            + secondResult[last].substring(20);
+            long[] budget = mRoundBudget.get(sector);
+            long start = SystemClock.elapsedRealtime();
+            if (dictionary != null && (searchKeys[0] || searchKeys[1])
+                    && !tier.isExhausted((int) budget[0], budget[1])) {
+                byte[] key = new byte[KeyDictionary.KEY_LENGTH];
+                // Keys found for other sectors first.
+                int cursor = mRoundFoundCursor.get(sector);
+                while (cursor < mRoundFoundKeys.size()
+                        && (searchKeys[0] || searchKeys[1])
+                        && !tier.isExhausted((int) budget[0], budget[1]
+                                + SystemClock.elapsedRealtime() - start)) {
+                    int i = mRoundFoundKeys.get(cursor++);
+                    if (!mRoundChecked.get(i)) {
+                        // Not checked in an earlier round.
+                        dictionary.getKey(i, key);
+                        checkKey(sector, key, i, dictionary, keys,
+                                searchKeys, foundKeys);
+                        budget[0]++;
+                    }
                 }
-            } else if (secondResult != null && secondResult[last] != null
-                    && !secondResult[last].equals(NO_DATA)) {
-                // No first result. Take second result as sector trailer.
-                ret[last] = secondResult[last];
-            } else {
-                // No sector trailer at all.
-                ret[last] = NO_DATA;
+                mRoundFoundCursor.put(sector, cursor);
+                // Then the keys of this round.
+                for (int pos = mRoundStart; pos < mRoundEnd
+                        && (searchKeys[0] || searchKeys[1])
+                        && !tier.isExhausted((int) budget[0], budget[1]
+                                + SystemClock.elapsedRealtime() - start);
+                        pos++) {
+                    int i = mRoundOrder[pos];
+                    // All found keys were checked above (the round
+                    // only starts if the cursor reached the end).
+                    if (mRoundFoundSet.get(i)) {
+                        // Already checked (found for another sector).
+                        continue;
+                    }
+                    dictionary.getKey(i, key);
+                    checkKey(sector, key, i, dictionary, keys, searchKeys,
+                            foundKeys);
+                    budget[0]++;
+                }
+            }
+            budget[1] += SystemClock.elapsedRealtime() - start;
+            if (keys[0] != oldKeys[0] || keys[1] != oldKeys[1]) {
+                // New keys found.
+                for (int j = 0; j < 2; j++) {
+                    if (keys[j] == oldKeys[j]) {
+                        continue;
+                    }
+                    setKeyTier(sector, j, mRoundTier);
+                    if (dictionary != null) {
+                        if (foundKeys[j] == -1) {
+                            foundKeys[j] = dictionary.indexOf(
+                                    KeyDictionary.toLong(keys[j]));
+                        }
+                        if (foundKeys[j] != -1
+                                && !mRoundFoundSet.get(foundKeys[j])) {
+                            mRoundFoundKeys.add(foundKeys[j]);
+                            mRoundFoundSet.set(foundKeys[j]);
+                        }
+                    }
+                }
+                addToKeyMap(sector, keys, foundKeys, dictionary);
             }
+        } catch (Exception e) {
+            Log.d(LOG_TAG, "Error while building next key map step");
+            invalidateAuthentication();
+            mRoundSearchKeys = null;
+            mKeyMap = null;
+            mRawDump = null;
+            return -1;
         }
-        return ret;
+
+        // Continue with the next sector (or the next round or tier).
+        mRoundSectorsDone++;
+        mRoundSector = mMappingSectors.nextSetBit(sector + 1);
+        if (mRoundSector == -1) {
+            nextRound();
+        }
+        return sector;
     }
 
     /**
-     * This method checks if the present tag is writable with the provided keys
-     * on the given positions (sectors, blocks). This is done by authenticating
-     * with one of the keys followed by reading and interpreting
-     * ({@link Common#getOperationInfoForBlock(byte, byte, byte,
-     * de.syss.MifareClassicTool.Common.Operations, boolean, boolean)}) of the
-     * Access Conditions.
-     * @param pos A map of positions (key = sector, value = Array of blocks).
-     * For each of these positions you will get the write information
-     * (see return values).
-     * @param keyMap A key map a generated by
-     * {@link Activities.CreateKeyMapActivity}.
-     * @return A map within a map (all with type = Integer).
-     * The key of the outer map is the sector number and the value is another
-     * map with key = block number and value = write information.
-     * The write information indicates which key is needed to write to the
-     * present tag on the given position.<br /><br />
+     * Start the next round of {@link #buildNextKeyMapStep()}. If the
+     * current tier is done (all keys checked or all sectors that still miss
+     * keys used up their budget), the next tier is started.
+     * If there is nothing left to do, the key map is complete.
+     */
+    private void nextRound() {
+        boolean search = false;
+        boolean inBudget = false;
+        boolean budgetUsed = false;
+        KeyTier tier = (mRoundTier < mRoundTiers.size())
+                ? mRoundTiers.get(mRoundTier) : null;
+        for (int i = 0; i < mRoundSearchKeys.size(); i++) {
+            boolean[] sectorSearchKeys = mRoundSearchKeys.valueAt(i);
+            if (sectorSearchKeys[0] || sectorSearchKeys[1]) {
+                search = true;
+                long[] budget = mRoundBudget.get(
+                        mRoundSearchKeys.keyAt(i));
+                if (tier != null && tier.isExhausted(
+                        (int) budget[0], budget[1])) {
+                    mRoundBudgetUsed = true;
+                    mRoundBudgetSectors.set(mRoundSearchKeys.keyAt(i));
+                    budgetUsed = true;
+                } else {
+                    inBudget = true;
+                }
+            }
+        }
+        if (!search) {
+            // Done.
+            return;
+        }
+        mRoundSector = mFirstSector;
+        mRoundSectorsDone = 0;
+        int size = (mRoundOrder != null) ? mRoundOrder.length : 0;
+        if (inBudget && mRoundEnd < size) {
+            // Next round of this tier.
+            for (int pos = mRoundStart; pos < mRoundEnd; pos++) {
+                mRoundChecked.set(mRoundOrder[pos]);
+            }
+            mRoundStart = mRoundEnd;
+            mRoundEnd = (int) Math.min(2L * mRoundEnd, size);
+            return;
+        }
+        // Next tier.
+        if (tier != null) {
+            mRoundTierOffset += tier.getDictionary().size();
+            if (!budgetUsed) {
+                // All keys of this tier were checked against all sectors
+                // that still miss keys. The next tiers can skip them.
+                mRoundDoneTiers.add(tier.getDictionary());
+            }
+        }
+        mRoundTier++;
+        if (mRoundTier < mRoundTiers.size()) {
+            startTier();
+        } else {
+            // Done.
+            mRoundSector = -1;
+        }
+    }
+
+    /**
+     * Reset the round state of {@link #buildNextKeyMapStep()} for the
+     * current tier (first round, no found keys, no budget used).
+     */
+    private void startTier() {
+        mRoundFoundCursor = new SparseIntArray();
+        mRoundFoundKeys = new ArrayList<Integer>();
+        mRoundFoundSet = new BitSet();
+        mRoundBudget = new SparseArray<long[]>();
+        for (int i = 0; i < mRoundSearchKeys.size(); i++) {
+            mRoundBudget.put(mRoundSearchKeys.keyAt(i), new long[2]);
+        }
+        // Walk through the tier in its current order (e.g. ranked by
+        // rankKeys()). Found keys are moved to the front while mapping,
+        // so the order is taken once.
+        KeyDictionary dictionary = (mRoundTier < mRoundTiers.size())
+                ? mRoundTiers.get(mRoundTier).getDictionary() : null;
+        mRoundOrder = (dictionary != null) ? dictionary.getOrder() : null;
+        if (mRoundOrder != null && mRoundDoneTiers.size() > 0) {
+            // Skip the keys that were already checked in an earlier tier.
+            int count = 0;
+            for (int i : mRoundOrder) {
+                long key = dictionary.getKey(i);
+                boolean checked = false;
+                for (KeyDictionary done : mRoundDoneTiers) {
+                    if (done.indexOf(key) != -1) {
+                        checked = true;
+                        break;
+                    }
+                }
+                if (!checked) {
+                    mRoundOrder[count++] = i;
+                }
+            }
+            mRoundOrder = Arrays.copyOf(mRoundOrder, count);
+        }
+        mRoundChecked = new BitSet();
+        int size = (mRoundOrder != null) ? mRoundOrder.length : 0;
+        mRoundStart = 0;
+        mRoundEnd = Math.min(FIRST_ROUND_KEY_COUNT, size);
+        mRoundSector = mFirstSector;
+        mRoundSectorsDone = 0;
+    }
+
+    /**
+     * Remember the tier a key was found in.
+     * @param sectorIndex The sector.
+     * @param keyType 0 for key A, 1 for key B.
+     * @param tier The tier (-1 if the key was not found in a tier).
+     * @see #getKeyTiers(int)
+     */
+    private void setKeyTier(int sectorIndex, int keyType, int tier) {
+        int[] tiers = mRoundKeyTiers.get(sectorIndex);
+        if (tiers == null) {
+            tiers = new int[] {-1, -1};
+            mRoundKeyTiers.put(sectorIndex, tiers);
+        }
+        tiers[keyType] = tier;
+    }
+
+    /**
+     * Check if the key map of {@link #buildNextKeyMapStep()} is complete
+     * (all rounds done).
+     * @return True if the key map is complete. False otherwise.
+     */
+    public boolean isKeyMapComplete() {
+        return mRoundSearchKeys != null && mRoundSector == -1;
+    }
+
+    /**
+     * Check if a sector was not searched completely by
+     * {@link #buildNextKeyMapStep()} because it used up the budget of a
+     * tier (see {@link KeyTier}) while it was still missing keys.
+     * In this case, a missing key might still be in one of the tiers.
+     * @return True if a budget was used up. False otherwise.
+     */
+    public boolean isBudgetUsedUp() {
+        return mRoundBudgetUsed;
+    }
+
+    /**
+     * Check which missing keys of a sector are known to be in none of the
+     * key files (tiers). This is the case if {@link #buildNextKeyMapStep()}
+     * checked all tiers against the sector without using up a budget or
+     * if the candidate key map said so (see
+     * {@link #setCandidateKeyMap(SparseArray)}). Keys that are missing for
+     * other reasons (mapping stopped, budget used up, not needed for the
+     * mapping goal) might still be in the key files.
+     * @param sectorIndex The sector.
+     * @return For key A and key B: true if the key was not found and the
+     * search was exhausted. False otherwise (also if the key was found).
+     */
+    public boolean[] getExhaustedKeys(int sectorIndex) {
+        boolean[] exhausted = new boolean[2];
+        if (!isKeyMapComplete() || mKeyMap == null) {
+            return exhausted;
+        }
+        byte[][] keys = mKeyMap.get(sectorIndex);
+        boolean[] searchKeys = mRoundSearchKeys.get(sectorIndex);
+        byte[][] candidates = (mCandidateKeyMap != null)
+                ? mCandidateKeyMap.get(sectorIndex) : null;
+        for (int j = 0; j < 2; j++) {
+            if (keys != null && keys[j] != null) {
+                continue;
+            }
+            if (candidates != null && candidates[j] == null) {
+                // Known to be not in the key files.
+                exhausted[j] = true;
+            } else if (searchKeys != null && searchKeys[j]
+                    && mRoundTiers.size() > 0
+                    && !mRoundBudgetSectors.get(sectorIndex)) {
+                // Still searched after all tiers were checked.
+                exhausted[j] = true;
+            }
+        }
+        return exhausted;
+    }
+
+    /**
+     * Get the tiers (see {@link #setKeyTiers(List)}) the keys of a sector
+     * were found in by {@link #buildNextKeyMapStep()}.
+     * @param sectorIndex The sector.
+     * @return The index of the tier for key A and key B. The index is -1
+     * if the key was not found or was not found in a tier (seed and
+     * candidate keys). Without tiers, all keys of the dictionary are
+     * found in tier 0.
+     */
+    public int[] getKeyTiers(int sectorIndex) {
+        int[] tiers = (mRoundKeyTiers != null)
+                ? mRoundKeyTiers.get(sectorIndex) : null;
+        if (tiers == null) {
+            return new int[] {-1, -1};
+        }
+        return tiers.clone();
+    }
+
+    /**
+     * Get the progress of {@link #buildNextKeyMapStep()} as the number of
+     * dictionary keys that were checked against all sectors
+     * (e.g. for a progress bar with {@link #getKeyCount()} as maximum).
+     * @return The progress (0 - {@link #getKeyCount()}).
+     */
+    public int getKeyMapProgress() {
+        if (mRoundSearchKeys == null) {
+            return 0;
+        }
+        if (mRoundSector == -1) {
+            return getKeyCount();
+        }
+        return mRoundTierOffset + mRoundStart
+                + (int) ((long) (mRoundEnd - mRoundStart)
+                * mRoundSectorsDone / getMappingSectorCount());
+    }
+
+    /**
+     * Check the seed and candidate keys of a sector (one authentication
+     * each, see {@link #setSeedKeyMap(SparseArray)} and
+     * {@link #setCandidateKeyMap(SparseArray)}). If only key A is found
+     * and there are keys to search in the dictionary, key B is read from the
+     * sector trailer (if the Access Conditions allow it).
+     * @param sectorIndex The sector.
+     * @param keys Found keys (A/B) will be set here.
+     * @param searchKeys Keys (A/B) that are found or do not have to be
+     * searched in the dictionary will be set to false.
+     * @throws IOException When there was an error while communicating
+     * with the tag (e.g. tag lost).
+     */
+    private void checkKnownKeys(int sectorIndex, byte[][] keys,
+            boolean[] searchKeys) throws IOException {
+        // Try the seed keys first (one authentication each).
+        byte[][] seeds = (mSeedKeyMap != null)
+                ? mSeedKeyMap.get(sectorIndex) : null;
+        if (seeds != null) {
+            for (int j = 0; j < 2; j++) {
+                if (seeds[j] != null && authenticateOrThrow(
+                        sectorIndex, seeds[j], j == 1)) {
+                    keys[j] = seeds[j];
+                    searchKeys[j] = false;
+                }
+            }
+        }
+        // Then the candidate keys (one authentication each).
+        byte[][] candidates = (mCandidateKeyMap != null)
+                ? mCandidateKeyMap.get(sectorIndex) : null;
+        if (candidates != null) {
+            for (int j = 0; j < 2; j++) {
+                if (keys[j] != null) {
+                    // Already found (seed key).
+                    continue;
+                } else if (candidates[j] == null) {
+                    // Key is known to be not in the dictionary.
+                    searchKeys[j] = false;
+                } else {
+                    if (authenticateOrThrow(sectorIndex,
+                            candidates[j], j == 1)) {
+                        keys[j] = candidates[j];
+                        searchKeys[j] = false;
+                    }
+                }
+            }
+        }
+        // Then the predicted keys for key A (one authentication each).
+        checkPredictedKeys(sectorIndex, 0, keys, searchKeys);
+        // Maybe the found keys are already enough.
+        updateSearchKeys(sectorIndex, keys, searchKeys);
+        if (keys[0] != null && searchKeys[1]
+                && (mKeyDictionary != null || mKeyTiers != null
+                        || mKeyPredictor != null)) {
+            // Key A is known, but the candidate for key B did not
+            // work. Maybe key B is readable.
+            if (authenticateOrThrow(sectorIndex, keys[0], false)) {
+                keys[1] = readKeyBFromTrailer(sectorIndex);
+                searchKeys[1] = keys[1] == null;
+            }
+        }
+        // Then the predicted keys for key B.
+        checkPredictedKeys(sectorIndex, 1, keys, searchKeys);
+    }
+
+    /**
+     * Check the keys proposed by the key predictor (see
+     * {@link #setKeyPredictor(KeyPredictor)}) against a sector (one
+     * authentication per key). The prediction is based on the keys found
+     * so far (this sector and all other sectors).
+     * @param sectorIndex The sector.
+     * @param keyType The key to predict (0 = key A, 1 = key B).
+     * @param keys The found keys (A/B). A found key will be set here.
+     * @param searchKeys Keys (A/B) that are still searched. If the
+     * key was found, it will be set to false.
+     * @throws IOException When there was an error while communicating
+     * with the tag (e.g. tag lost).
+     */
+    private void checkPredictedKeys(int sectorIndex, int keyType,
+            byte[][] keys, boolean[] searchKeys) throws IOException {
+        if (mKeyPredictor == null || !searchKeys[keyType]) {
+            return;
+        }
+        for (byte[] key : mKeyPredictor.predict(sectorIndex, keyType == 1,
+                mKeyMap, keys, KeyPredictor.SHORTLIST_SIZE)) {
+            if (authenticateOrThrow(sectorIndex, key, keyType == 1)) {
+                keys[keyType] = key;
+                searchKeys[keyType] = false;
+                updateSearchKeys(sectorIndex, keys, searchKeys);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Check a key of the dictionary against a sector (as key A and/or
+     * key B, depending on the keys that are still searched). If key A
+     * was found and key B is readable, key B is taken from the
+     * sector trailer.
+     * @param sectorIndex The sector.
+     * @param key The key (the buffer may be reused by the caller).
+     * @param index The index of the key in the dictionary.
+     * @param dictionary The dictionary of the key.
+     * @param keys Found keys (A/B) will be set here.
+     * @param searchKeys Keys (A/B) that are still searched. Found keys
+     * (and keys that are no longer needed) will be set to false.
+     * @param foundKeys The dictionary indices of found keys
+     * will be set here.
+     * @throws IOException When there was an error while communicating
+     * with the tag (e.g. tag lost).
+     */
+    private void checkKey(int sectorIndex, byte[] key, int index,
+            KeyDictionary dictionary, byte[][] keys, boolean[] searchKeys,
+            int[] foundKeys) throws IOException {
+        if (searchKeys[0]) {
+            if (authenticateOrThrow(sectorIndex, key, false)) {
+                keys[0] = key.clone();
+                foundKeys[0] = index;
+                searchKeys[0] = false;
+                updateSearchKeys(sectorIndex, keys, searchKeys);
+            }
+            if (!searchKeys[0] && searchKeys[1]) {
+                // Maybe key B is readable. This saves
+                // walking through the dictionary for it.
+                keys[1] = readKeyBFromTrailer(sectorIndex);
+                if (keys[1] != null) {
+                    searchKeys[1] = false;
+                    foundKeys[1] = dictionary.indexOf(
+                            KeyDictionary.toLong(keys[1]));
+                }
+            }
+        }
+        if (searchKeys[1]) {
+            if (authenticateOrThrow(sectorIndex, key, true)) {
+                keys[1] = key.clone();
+                foundKeys[1] = index;
+                searchKeys[1] = false;
+                updateSearchKeys(sectorIndex, keys, searchKeys);
+            }
+        }
+    }
+
+    /**
+     * Add the found keys of a sector to the key map. The found keys are
+     * moved to the front of the dictionary (key reuse is very likely).
+     * If reading while mapping is enabled, the sector is read.
+     * Otherwise its Access Conditions are cached (if the sector is
+     * still authenticated).
+     * @param sectorIndex The sector.
+     * @param keys The keys (A/B, at least one).
+     * @param foundKeys The dictionary indices of the keys (-1 if unknown).
+     * @param dictionary The dictionary of the keys (may be "null").
+     * @throws TagLostException When tag is lost.
+     */
+    private void addToKeyMap(int sectorIndex, byte[][] keys,
+            int[] foundKeys, KeyDictionary dictionary)
+            throws TagLostException {
+        mKeyMap.put(sectorIndex, keys);
+        // Key reuse is very likely, so try these first
+        // for the next sector.
+        if (dictionary != null) {
+            dictionary.moveToFront(foundKeys[0]);
+            dictionary.moveToFront(foundKeys[1]);
+        }
+        if (mReadWhileMapping) {
+            // Read the sector while it is still authenticated.
+            String[] data = readSector(sectorIndex, keys);
+            if (data != null) {
+                mRawDump.put(sectorIndex, data);
+            }
+        } else if (mACCache.get(sectorIndex) == null
+                && mAuthSector == sectorIndex) {
+            // Read the Access Conditions while the sector
+            // is still authenticated.
+            readACWhileAuthenticated(sectorIndex);
+        }
+    }
+
+    /**
+     * Merge the result of two {@link #readSector(int, byte[], boolean)}
+     * calls on the same sector (with different keys or authentication methods).
+     * In this case merging means empty blocks will be overwritten with non
+     * empty ones and the keys will be added correctly to the sector trailer.
+     * The access conditions will be taken from the first (firstResult)
+     * parameter if it is not null.
+     * @param firstResult First
+     * {@link #readSector(int, byte[], boolean)} result.
+     * @param secondResult Second
+     * {@link #readSector(int, byte[], boolean)} result.
+     * @return Array (sector) as result of merging the given
+     * sectors. If a block is {@link #NO_DATA} it
+     * means that none of the given sectors contained data from this block.
+     * @see #readSector(int, byte[], boolean)
+     * @see #authenticate(int, byte[], boolean)
+     */
+    public String[] mergeSectorData(String[] firstResult,
+            String[] secondResult) {
+        String[] ret = null;
+        if (firstResult != null || secondResult != null) {
+            if ((firstResult != null && secondResult != null)
+                    && firstResult.length != secondResult.length) {
+                return null;
+            }
+            int length  = (firstResult != null)
+                    ? firstResult.length : secondResult.length;
+            ArrayList<String> blocks = new ArrayList<String>();
+            // Merge data blocks.
+            for (int i = 0; i < length -1 ; i++) {
+                if (firstResult != null && firstResult[i] != null
+                        && !firstResult[i].equals(NO_DATA)) {
+                    blocks.add(firstResult[i]);
+                } else if (secondResult != null && secondResult[i] != null
+                        && !secondResult[i].equals(NO_DATA)) {
+                    blocks.add(secondResult[i]);
+                } else {
+                    // Non of the results got the data for the block.
+                    blocks.add(NO_DATA);
+                }
+            }
+            ret = blocks.toArray(new String[blocks.size() + 1]);
+            int last = length - 1;
+            // Merge sector trailer.
+            if (firstResult != null && firstResult[last] != null
+                    && !firstResult[last].equals(NO_DATA)) {
+                // Take first for sector trailer.
+                ret[last] = firstResult[last];
+                if (secondResult != null && secondResult[last] != null
+                        && !secondResult[last].equals(NO_DATA)) {
+                    // Merge key form second result to sector trailer.
+                    ret[last] = ret[last].substring(0, 20)
+                            + secondResult[last].substring(20);
+                }
+            } else if (secondResult != null && secondResult[last] != null
+                    && !secondResult[last].equals(NO_DATA)) {
+                // No first result. Take second result as sector trailer.
+                ret[last] = secondResult[last];
+            } else {
+                // No sector trailer at all.
+                ret[last] = NO_DATA;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * This method checks if the present tag is writable with the provided keys
+     * on the given positions (sectors, blocks). This is done by authenticating
+     * with one of the keys followed by reading and interpreting
+     * ({@link Common#getOperationInfoForBlock(byte, byte, byte,
+     * de.syss.MifareClassicTool.Common.Operations, boolean, boolean)}) of the
+     * Access Conditions. If the Access Conditions of a sector are already
+     * cached (see {@link #getACCache()}), the check is done without
+     * any communication with the tag (and without checking the keys).
+     * @param pos A map of positions (key = sector, value = Array of blocks).
+     * For each of these positions you will get the write information
+     * (see return values).
+     * @param keyMap A key map a generated by
+     * {@link Activities.CreateKeyMapActivity}.
+     * @return A map within a map (all with type = Integer).
+     * The key of the outer map is the sector number and the value is another
+     * map with key = block number and value = write information.
+     * The write information indicates which key is needed to write to the
+     * present tag on the given position.<br /><br />
      * Write informations are:<br />
      * <ul>
      * <li>0 - Never</li>
@@ -475,33 +1655,34 @@ public class MCReader {
             int sector = keyMap.keyAt(i);
             if (pos.containsKey(sector)) {
                 byte[][] keys = keyMap.get(sector);
-                byte[] ac = null;
-                // Authenticate.
-                if (keys[0] != null) {
-                    if (authenticate(sector, keys[0], false) == false) {
+                byte[][] acMatrix = mACCache.get(sector);
+                if (acMatrix == null) {
+                    // Cache miss. Authenticate.
+                    if (keys[0] != null) {
+                        if (authenticate(sector, keys[0], false) == false) {
+                            return null;
+                        }
+                    } else if (keys[1] != null) {
+                        if (authenticate(sector, keys[1], true) == false) {
+                            return null;
+                        }
+                    } else {
                         return null;
                     }
-                } else if (keys[1] != null) {
-                    if (authenticate(sector, keys[1], true) == false) {
-                        return null;
+                    // Read Mifare Access Conditions.
+                    int acBlock = mMFC.sectorToBlock(sector)
+                            + mMFC.getBlockCountInSector(sector) -1;
+                    try {
+                        acMatrix = cacheAC(sector, mMFC.readBlock(acBlock));
+                    } catch (IOException e) {
+                        invalidateAuthentication();
+                        ret.put(sector, null);
+                        continue;
+                    }
+                    if (acMatrix == null) {
+                        ret.put(sector, null);
+                        continue;
                     }
-                } else {
-                    return null;
-                }
-                // Read Mifare Access Conditions.
-                int acBlock = mMFC.sectorToBlock(sector)
-                        + mMFC.getBlockCountInSector(sector) -1;
-                try {
-                    ac = mMFC.readBlock(acBlock);
-                } catch (IOException e) {
-                    ret.put(sector, null);
-                    continue;
-                }
-                ac = Arrays.copyOfRange(ac, 6, 9);
-                byte[][] acMatrix = Common.acBytesToACMatrix(ac);
-                if (acMatrix == null) {
-                    ret.put(sector, null);
-                    continue;
                 }
                 boolean isKeyBReadable = Common.isKeyBReadable(
                         acMatrix[0][3], acMatrix[1][3], acMatrix[2][3]);
@@ -573,6 +1754,10 @@ public class MCReader {
     /**
      * Set the key files for {@link #buildNextKeyMapPart()}.
      * Key duplicates from the key file will be removed.
+     * If possible, the key files will be compiled into a memory-mapped
+     * dictionary in {@link Common#CACHE_DIR} (see
+     * {@link KeyDictionary#getCompiled(File[], File)}). Using the same
+     * key files again will reuse the compiled dictionary.
      * @param keyFiles One or more key files.
      * These files are simple text files with one key
      * per line. Empty lines and lines STARTING with "#"
@@ -583,71 +1768,763 @@ public class MCReader {
      * on error (out of memory).
      */
     public boolean setKeyFile(File[] keyFiles, Context context) {
-        HashSet<byte[]> keys = new HashSet<byte[]>();
-        for (File file : keyFiles) {
-            String[] lines = Common.readFileLineByLine(file, false, context);
-            if (lines != null) {
-                for (String line : lines) {
-                    if (!line.equals("") && line.length() == 12
-                            && line.matches("[0-9A-Fa-f]+")) {
-                        try {
-                            keys.add(Common.hexStringToByteArray(line));
-                        } catch (OutOfMemoryError e) {
-                            // Error. Too many keys (out of memory).
-                            Toast.makeText(context, R.string.info_to_many_keys,
-                                    Toast.LENGTH_LONG).show();
-                            return false;
-                        }
-                    }
+        try {
+            mKeyDictionary = loadKeyFiles(keyFiles);
+        } catch (OutOfMemoryError e) {
+            // Error. Too many keys (out of memory).
+            Toast.makeText(context, R.string.info_to_many_keys,
+                    Toast.LENGTH_LONG).show();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Set the key files as key tiers (one tier per file, in the given
+     * order) for {@link #buildNextKeyMapStep()}
+     * (see {@link #setKeyTiers(List)}). Every file is loaded like in
+     * {@link #loadKeyFiles(File[])}.
+     * @param keyFiles The key files in the order they should be checked
+     * (e.g. small files with common keys first).
+     * @param maxKeys The maximum number of keys of every tier checked
+     * against a sector (0 = no limit). "null" for no limits.
+     * @param maxMillis The maximum time (in milliseconds) spent on a sector
+     * for every tier (0 = no limit). "null" for no limits.
+     * @param context The context in which the possible "Out of memory"-Toast
+     * will be shown.
+     * @return True if the key files are correctly loaded. False
+     * on error (out of memory).
+     */
+    public boolean setKeyFileTiers(File[] keyFiles, int[] maxKeys,
+            long[] maxMillis, Context context) {
+        ArrayList<KeyTier> tiers = new ArrayList<KeyTier>(keyFiles.length);
+        try {
+            for (int i = 0; i < keyFiles.length; i++) {
+                KeyDictionary dictionary = loadKeyFiles(
+                        new File[] {keyFiles[i]});
+                if (dictionary == null) {
+                    // No keys. Keep the tier (the tier indices are the
+                    // indices of the key files).
+                    dictionary = new KeyDictionary(new long[0], 0);
                 }
+                tiers.add(new KeyTier(dictionary,
+                        (maxKeys != null) ? maxKeys[i] : 0,
+                        (maxMillis != null) ? maxMillis[i] : 0));
             }
+        } catch (OutOfMemoryError e) {
+            // Error. Too many keys (out of memory).
+            Toast.makeText(context, R.string.info_to_many_keys,
+                    Toast.LENGTH_LONG).show();
+            return false;
         }
-        if (keys.size() > 0) {
-            mKeysWithOrder = new ArrayList<byte[]>(keys);
-        }
+        mKeyTiers = tiers;
         return true;
     }
 
+    /**
+     * Load key files into a {@link KeyDictionary} (like
+     * {@link #setKeyFile(File[], Context)} does, but without a tag).
+     * If possible, the key files will be compiled into a memory-mapped
+     * dictionary in {@link Common#CACHE_DIR}.
+     * @param keyFiles One or more key files.
+     * @return The key dictionary or "null" if there are no keys or
+     * an error occurred.
+     * @throws OutOfMemoryError If there are too many keys.
+     * @see #setKeyDictionary(KeyDictionary)
+     */
+    public static KeyDictionary loadKeyFiles(File[] keyFiles) {
+        File cacheDir = new File(Environment.getExternalStoragePublicDirectory(
+                Common.HOME_DIR) + Common.CACHE_DIR);
+        if (cacheDir.isDirectory() && cacheDir.canWrite()) {
+            // Use a compiled (memory-mapped) dictionary. It will only
+            // be (re)built if the key files have changed.
+            return KeyDictionary.getCompiled(keyFiles, cacheDir);
+        }
+        return KeyDictionary.readKeyFiles(keyFiles);
+    }
+
+    /**
+     * Set candidate keys for {@link #buildNextKeyMapPart()} (e.g. a cached
+     * key map of this tag, see {@link KeyMapCache}). For sectors in this map,
+     * the candidate keys are checked first (one authentication per key).
+     * Only if a candidate key does not work, the key will be searched in
+     * the dictionary. If a candidate key is "null", it is known that the key
+     * is not in the dictionary and it will not be searched at all.
+     * Sectors that are not in this map will be mapped as usual.
+     * If there are candidate keys, the key files are optional
+     * (see {@link #setKeyFile(File[], Context)}).
+     * @param candidates Keys (A and B) mapped to a sector (like
+     * {@link #getKeyMap()}) or "null" to use only the dictionary.
+     */
+    public void setCandidateKeyMap(SparseArray<byte[][]> candidates) {
+        mCandidateKeyMap = candidates;
+    }
+
+    /**
+     * Set seed keys for {@link #buildNextKeyMapPart()} (e.g. the keys from
+     * the sector trailers of a dump that will be written to the tag).
+     * Seed keys are checked before the candidate keys
+     * (see {@link #setCandidateKeyMap(SparseArray)}) with one
+     * authentication per key. Unlike candidate keys, a seed key that is
+     * "null" or does not work does not change the mapping of this key.
+     * If there are seed keys, the key files are optional
+     * (see {@link #setKeyFile(File[], Context)}).
+     * @param seeds Keys (A and B) mapped to a sector (like
+     * {@link #getKeyMap()}) or "null" to use no seed keys.
+     * @see Common#getKeysFromDump(String[])
+     */
+    public void setSeedKeyMap(SparseArray<byte[][]> seeds) {
+        mSeedKeyMap = seeds;
+    }
+
+    /**
+     * Set a key predictor for {@link #buildNextKeyMapPart()} and
+     * {@link #buildNextKeyMapStep()}. The keys it proposes for a sector
+     * (based on the keys found so far) are checked after the seed and
+     * candidate keys (see {@link #setSeedKeyMap(SparseArray)} and
+     * {@link #setCandidateKeyMap(SparseArray)}) and before the dictionary,
+     * with one authentication per key (at most
+     * {@link KeyPredictor#SHORTLIST_SIZE} per key type).
+     * @param predictor The key predictor or "null" to use no predictions.
+     * @see KeyPredictor#load(File)
+     */
+    public void setKeyPredictor(KeyPredictor predictor) {
+        mKeyPredictor = predictor;
+    }
+
+    /**
+     * Set the goal of the key mapping. By default
+     * {@link #buildNextKeyMapPart()} searches for key A and key B of every
+     * sector. With a goal, the Access Conditions are read after the first
+     * key of a sector was found and the search stops as soon as the found
+     * keys allow everything the goal needs. Keys that are not needed for
+     * the goal may be missing in the key map, even if they are in the
+     * dictionary.
+     * <ul>
+     * <li>{@link MappingGoal#ReadData} - Read all data blocks.</li>
+     * <li>{@link MappingGoal#WriteBlocks} - Write the given blocks
+     * (sectors without blocks need no key).</li>
+     * <li>{@link MappingGoal#WriteTrailer} - Write the keys and the
+     * Access Conditions of the sector trailer.</li>
+     * </ul>
+     * @param goal The goal or "null" to search for both keys (default).
+     * @param positions Only for {@link MappingGoal#WriteBlocks}:
+     * the blocks to write (key = sector, value = blocks, like in
+     * {@link #isWritableOnPositions(HashMap, SparseArray)}).
+     */
+    public void setMappingGoal(MappingGoal goal,
+            HashMap<Integer, int[]> positions) {
+        mMappingGoal = goal;
+        mGoalPositions = positions;
+    }
+
+    /**
+     * Enable or disable reading while mapping. If enabled,
+     * {@link #buildNextKeyMapPart()} reads every sector directly after its
+     * keys were found (while the sector is still authenticated).
+     * This saves a second pass ({@link #readAsMuchAsPossible(SparseArray)})
+     * with a new authentication for every sector.
+     * @param readWhileMapping True to read while mapping. Default is false.
+     * @see #getRawDump()
+     */
+    public void setReadWhileMapping(boolean readWhileMapping) {
+        mReadWhileMapping = readWhileMapping;
+    }
+
+    /**
+     * Get the data read by {@link #buildNextKeyMapPart()} if reading while
+     * mapping is enabled (see {@link #setReadWhileMapping(boolean)}).
+     * The data is complete once the key map is complete.
+     * @return A Key-Value Pair like
+     * {@link #readAsMuchAsPossible(SparseArray)} returns it or "null" if
+     * reading while mapping is not enabled or there was an error.
+     */
+    public SparseArray<String[]> getRawDump() {
+        return mRawDump;
+    }
+
+    /**
+     * Get the Access Condition cache of this reader. Every sector trailer
+     * that is read (while mapping keys, reading or checking)
+     * is decoded and stored here, so
+     * {@link #isWritableOnPositions(HashMap, SparseArray)} does not need
+     * to read it again. After a sector trailer was written, its entry
+     * will be removed.
+     * @return A Key-Value Pair. Keys are the sector numbers, values are
+     * the Access Conditions (see {@link Common#acBytesToACMatrix(byte[])}).
+     */
+    public SparseArray<byte[][]> getACCache() {
+        return mACCache;
+    }
+
+    /**
+     * Use the Access Condition cache of another reader of the same tag
+     * (e.g. the one that created the key map). The cache is shared,
+     * not copied.
+     * @param acCache The Access Condition cache (see {@link #getACCache()})
+     * or "null" to start with an empty cache.
+     */
+    public void setACCache(SparseArray<byte[][]> acCache) {
+        mACCache = (acCache != null) ? acCache : new SparseArray<byte[][]>();
+    }
+
+    /**
+     * Set the key dictionary for {@link #buildNextKeyMapPart()} directly.
+     * This is useful to share one dictionary (and its key order) between
+     * many readers (e.g. when reading many tags in a row).
+     * @param keyDictionary The key dictionary or "null".
+     * @see #getKeyDictionary()
+     * @see #setKeyFile(File[], Context)
+     */
+    public void setKeyDictionary(KeyDictionary keyDictionary) {
+        mKeyDictionary = keyDictionary;
+    }
+
+    /**
+     * Set the key tiers for {@link #buildNextKeyMapStep()}. If there are
+     * key tiers, they are used instead of the key dictionary
+     * (see {@link #setKeyFile(File[], Context)}) by
+     * {@link #buildNextKeyMapStep()}. {@link #buildNextKeyMapPart()}
+     * does not use them.
+     * @param tiers The tiers in the order they should be checked or
+     * "null" to use the key dictionary.
+     * @see #getKeyTiers(int)
+     */
+    public void setKeyTiers(List<KeyTier> tiers) {
+        mKeyTiers = tiers;
+    }
+
+    /**
+     * Rank the keys of the key dictionary and of all key tiers by their
+     * hits (see {@link KeyStatistics#rank(KeyDictionary)}), so the keys
+     * that were found most often are checked first. This should be called
+     * after the key files were set and before the mapping starts.
+     * @param statistics The key hit statistics.
+     * @see #setKeyFile(File[], Context)
+     * @see #setKeyTiers(List)
+     */
+    public void rankKeys(KeyStatistics statistics) {
+        statistics.rank(mKeyDictionary);
+        if (mKeyTiers != null) {
+            for (KeyTier tier : mKeyTiers) {
+                statistics.rank(tier.getDictionary());
+            }
+        }
+    }
+
+    /**
+     * Order the key tiers (see {@link #setKeyTiers(List)}) by their hit
+     * rate (the hits of all keys of a tier per key, see
+     * {@link KeyStatistics#getHits(KeyDictionary)}), the best tier first.
+     * Tiers with the same hit rate (e.g. no hits at all) keep their order.
+     * This should be called after the key tiers were set and before the
+     * mapping starts.
+     * @param statistics The key hit statistics.
+     * @return The indices the tiers had before they were ordered (in the
+     * new order), e.g. to order the key files of
+     * {@link #setKeyFileTiers(File[], int[], long[], Context)} the
+     * same way.
+     * "null" if there are no key tiers.
+     */
+    public int[] orderKeyTiers(KeyStatistics statistics) {
+        if (mKeyTiers == null) {
+            return null;
+        }
+        final double[] rates = new double[mKeyTiers.size()];
+        ArrayList<Integer> order = new ArrayList<Integer>(rates.length);
+        for (int i = 0; i < rates.length; i++) {
+            KeyDictionary dictionary = mKeyTiers.get(i).getDictionary();
+            if (dictionary.size() > 0) {
+                rates[i] = (double) statistics.getHits(dictionary)
+                        / dictionary.size();
+            }
+            order.add(i);
+        }
+        // Sorting is stable, so tiers with the same rate keep their order.
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Double.compare(rates[rhs], rates[lhs]);
+            }
+        });
+        ArrayList<KeyTier> tiers = new ArrayList<KeyTier>(rates.length);
+        int[] ret = new int[rates.length];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = order.get(i);
+            tiers.add(mKeyTiers.get(ret[i]));
+        }
+        mKeyTiers = tiers;
+        return ret;
+    }
+
+    /**
+     * Get the key dictionary set by {@link #setKeyFile(File[], Context)}
+     * or {@link #setKeyDictionary(KeyDictionary)}.
+     * @return The key dictionary or "null" if there is none.
+     */
+    public KeyDictionary getKeyDictionary() {
+        return mKeyDictionary;
+    }
+
+    /**
+     * Get the number of (unique) keys set by
+     * {@link #setKeyFile(File[], Context)} or the number of keys of all
+     * tiers (see {@link #setKeyTiers(List)}).
+     * @return Number of keys in the dictionary (or the tiers) or 0 if
+     * there is none.
+     */
+    public int getKeyCount() {
+        if (mKeyTiers != null) {
+            int count = 0;
+            for (KeyTier tier : mKeyTiers) {
+                count += tier.getDictionary().size();
+            }
+            return count;
+        }
+        if (mKeyDictionary == null) {
+            return 0;
+        }
+        return mKeyDictionary.size();
+    }
+
     /**
      * Set the mapping range for {@link #buildNextKeyMapPart()}.
      * @param firstSector Index of the first sector of the key map.
      * @param lastSector Index of the last sector of the key map.
      * @return True if range parameters were correct. False otherwise.
+     * @see #setMappingSectors(BitSet)
      */
     public boolean setMappingRange(int firstSector, int lastSector) {
         if (firstSector >= 0 && lastSector < mMFC.getSectorCount()
                 && firstSector <= lastSector) {
-            mFirstSector = firstSector;
-            mLastSector = lastSector;
-            // Init. status of buildNextKeyMapPart to create a new key map.
-            mKeyMapStatus = lastSector+1;
-            return true;
+            BitSet sectors = new BitSet(lastSector + 1);
+            sectors.set(firstSector, lastSector + 1);
+            return setMappingSectors(sectors);
         }
         return false;
     }
 
+    /**
+     * Set the sectors for {@link #buildNextKeyMapPart()}. Unlike
+     * {@link #setMappingRange(int, int)}, the sectors do not have to be
+     * contiguous (e.g. only the sectors of a dump). Sectors that are not
+     * in the set will not be touched. {@link #buildNextKeyMapPart()}
+     * returns the sectors in ascending order.
+     * @param sectors The sectors of the key map (set bits).
+     * @return True if the sectors were correct (at least one sector and
+     * all sectors on the tag). False otherwise.
+     * @see #getMappingSectorCount()
+     */
+    public boolean setMappingSectors(BitSet sectors) {
+        if (sectors == null || sectors.isEmpty()
+                || sectors.length() > mMFC.getSectorCount()) {
+            return false;
+        }
+        mMappingSectors = (BitSet) sectors.clone();
+        mFirstSector = mMappingSectors.nextSetBit(0);
+        mLastSector = mMappingSectors.length() - 1;
+        // Init. status of buildNextKeyMapPart and buildNextKeyMapStep
+        // to create a new key map.
+        mKeyMapStatus = mLastSector+1;
+        mRoundSearchKeys = null;
+        return true;
+    }
+
+    /**
+     * Get the number of sectors set by {@link #setMappingSectors(BitSet)}
+     * or {@link #setMappingRange(int, int)} (e.g. for a progress bar).
+     * @return The number of sectors {@link #buildNextKeyMapPart()}
+     * has to check for a full key map.
+     */
+    public int getMappingSectorCount() {
+        if (mMappingSectors == null) {
+            return 0;
+        }
+        return mMappingSectors.cardinality();
+    }
+
     /**
      * Authenticate to given sector of the tag.
+     * If the sector is already authenticated with the same key and
+     * key type (because the last operation was on the same sector),
+     * the authentication is skipped.
      * @param sectorIndex The sector to authenticate to.
      * @param key Key for the authentication.
      * @param useAsKeyB If true, key will be treated as key B
      * for authentication.
      * @return True if authentication was successful. False otherwise.
+     * @see #authenticateOrThrow(int, byte[], boolean)
      */
     private boolean authenticate(int sectorIndex, byte[] key,
             boolean useAsKeyB) {
+        try {
+            return authenticateOrThrow(sectorIndex, key, useAsKeyB);
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "Error while authenticate with tag.");
+        }
+        return false;
+    }
+
+    /**
+     * Authenticate to given sector of the tag like
+     * {@link #authenticate(int, byte[], boolean)}, but don't catch
+     * IO errors (e.g. tag lost).
+     * @param sectorIndex The sector to authenticate to.
+     * @param key Key for the authentication.
+     * @param useAsKeyB If true, key will be treated as key B
+     * for authentication.
+     * @return True if authentication was successful. False otherwise.
+     * @throws IOException When there was an error while communicating
+     * with the tag.
+     */
+    private boolean authenticateOrThrow(int sectorIndex, byte[] key,
+            boolean useAsKeyB) throws IOException {
+        if (mAuthSector == sectorIndex && mAuthKeyB == useAsKeyB
+                && Arrays.equals(mAuthKey, key)) {
+            // Already authenticated.
+            return true;
+        }
+        // A failed authentication ends the current one.
+        invalidateAuthentication();
+        boolean auth;
         try {
             if (!useAsKeyB) {
                 // Key A.
-                return mMFC.authenticateSectorWithKeyA(sectorIndex, key);
+                auth = mMFC.authenticateSectorWithKeyA(sectorIndex, key);
             } else {
                 // Key B.
-                return mMFC.authenticateSectorWithKeyB(sectorIndex, key);
+                auth = mMFC.authenticateSectorWithKeyB(sectorIndex, key);
             }
         } catch (IOException e) {
-            Log.d(LOG_TAG, "Error while authenticate with tag.");
+            invalidateAuthentication();
+            throw e;
         }
-        return false;
+        if (auth) {
+            mAuthSector = sectorIndex;
+            // The key might be a reused buffer.
+            mAuthKey = key.clone();
+            mAuthKeyB = useAsKeyB;
+        }
+        return auth;
+    }
+
+    /**
+     * Forget the current authentication. This must be called after
+     * every error while communicating with the tag, because the tag
+     * needs a new authentication afterwards.
+     */
+    private void invalidateAuthentication() {
+        mAuthSector = -1;
+        mAuthKey = null;
+    }
+
+    /**
+     * Choose the key for the value block operations of a sector
+     * (see {@link #executeValueBlockBatch(ValueBlockBatch, SparseArray)}).
+     * If the Access Conditions are not cached, the sector trailer is
+     * read (with key A first, then with key B) and the key is chosen
+     * by the decoded Access Conditions. If they are unknown (not readable), every
+     * operation is allowed and the tag will decide.
+     * @param sectorIndex The sector.
+     * @param keys Key A and key B of the sector (may be "null").
+     * @param steps The operations of the sector.
+     * @param allowed Will be filled with the operations that are allowed
+     * with the chosen key.
+     * @return 0 for key A, 1 for key B or -1 if there is no key.
+     */
+    private int chooseValueBlockKey(int sectorIndex, byte[][] keys,
+            List<ValueBlockBatch.Step> steps, boolean[] allowed) {
+        if (keys == null || (keys[0] == null && keys[1] == null)) {
+            return -1;
+        }
+        byte[][] acMatrix = mACCache.get(sectorIndex);
+        if (acMatrix == null) {
+            // Try key A first. If key B is readable, authentication
+            // with key B would fail (and every operation would be allowed).
+            for (int type = 0; type < 2 && acMatrix == null; type++) {
+                if (keys[type] == null) {
+                    continue;
+                }
+                byte[] trailer = readBlock(sectorIndex,
+                        mMFC.getBlockCountInSector(sectorIndex) - 1,
+                        keys[type], type == 1);
+                if (trailer != null) {
+                    acMatrix = Common.acBytesToACMatrix(
+                            Arrays.copyOfRange(trailer, 6, 9));
+                }
+            }
+        }
+        if (acMatrix == null) {
+            Arrays.fill(allowed, true);
+            return (keys[1] != null) ? 1 : 0;
+        }
+        boolean keyBReadable = Common.isKeyBReadable(
+                acMatrix[0][3], acMatrix[1][3], acMatrix[2][3]);
+
+        int best = -1;
+        int bestCount = -1;
+        boolean[] current = new boolean[steps.size()];
+        for (int type = 1; type >= 0; type--) {
+            if (keys[type] == null) {
+                continue;
+            }
+            int count = 0;
+            for (int i = 0; i < steps.size(); i++) {
+                ValueBlockBatch.Step step = steps.get(i);
+                int column = getACColumn(sectorIndex, step.getBlock());
+                int info = Common.getOperationInfoForBlock(
+                        acMatrix[0][column], acMatrix[1][column],
+                        acMatrix[2][column],
+                        (step.getOperation()
+                                == ValueBlockBatch.Operation.Increment)
+                                ? Common.Operations.Increment
+                                : Common.Operations.DecTransRest,
+                        false, keyBReadable);
+                // The transfer needs the decrement/transfer/restore
+                // permission of the target block.
+                column = getACColumn(sectorIndex, step.getTransferBlock());
+                int transferInfo = Common.getOperationInfoForBlock(
+                        acMatrix[0][column], acMatrix[1][column],
+                        acMatrix[2][column], Common.Operations.DecTransRest,
+                        false, keyBReadable);
+                current[i] = (info == 3 || info == type + 1)
+                        && (transferInfo == 3 || transferInfo == type + 1);
+                if (current[i]) {
+                    count++;
+                }
+            }
+            if (count > bestCount) {
+                best = type;
+                bestCount = count;
+                System.arraycopy(current, 0, allowed, 0, current.length);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Check if the cached Access Conditions (see {@link #getACCache()})
+     * allow reading a data block with a key.
+     * @param sectorIndex The sector.
+     * @param blockIndex The data block (within the sector).
+     * @param keyType 0 for key A, 1 for key B.
+     * @return True if the block is readable with the key or if there are
+     * no cached Access Conditions for the sector. False otherwise.
+     */
+    private boolean isReadable(int sectorIndex, int blockIndex,
+            int keyType) {
+        byte[][] acMatrix = mACCache.get(sectorIndex);
+        if (acMatrix == null) {
+            return true;
+        }
+        boolean keyBReadable = Common.isKeyBReadable(
+                acMatrix[0][3], acMatrix[1][3], acMatrix[2][3]);
+        int column = getACColumn(sectorIndex, blockIndex);
+        int info = Common.getOperationInfoForBlock(
+                acMatrix[0][column], acMatrix[1][column],
+                acMatrix[2][column], Common.Operations.Read,
+                false, keyBReadable);
+        return info == 3 || info == keyType + 1;
+    }
+
+    /**
+     * Get the column of the Access Condition matrix
+     * (see {@link Common#acBytesToACMatrix(byte[])}) for a block.
+     * On Mifare Classic 4k tags, the data blocks of the sectors 32-39
+     * share their Access Conditions in groups of five blocks.
+     * @param sectorIndex The sector.
+     * @param blockIndex The block (within the sector).
+     * @return The column (0-2 for data blocks, 3 for the sector trailer).
+     */
+    private static int getACColumn(int sectorIndex, int blockIndex) {
+        if (sectorIndex >= 32) {
+            return (blockIndex == 15) ? 3 : blockIndex / 5;
+        }
+        return blockIndex;
+    }
+
+    /**
+     * Stop searching for keys that are not needed for the mapping goal
+     * (see {@link #setMappingGoal(MappingGoal, HashMap)}). If the Access
+     * Conditions of the sector are not known yet, they are read with
+     * one of the found keys.
+     * @param sectorIndex The sector.
+     * @param keys The keys (A/B) found so far ("null" if not found).
+     * @param searchKeys The keys (A/B) that are still searched. Keys that
+     * are not needed will be set to false.
+     * @throws IOException When there was an error while communicating
+     * with the tag (e.g. tag lost).
+     */
+    private void updateSearchKeys(int sectorIndex, byte[][] keys,
+            boolean[] searchKeys) throws IOException {
+        if (mMappingGoal == null || (!searchKeys[0] && !searchKeys[1])) {
+            return;
+        }
+        if (mACCache.get(sectorIndex) == null
+                && (keys[0] != null || keys[1] != null)) {
+            boolean auth = mAuthSector == sectorIndex;
+            if (!auth) {
+                int type = (keys[0] != null) ? 0 : 1;
+                auth = authenticateOrThrow(sectorIndex, keys[type],
+                        type == 1);
+            }
+            if (auth) {
+                readACWhileAuthenticated(sectorIndex);
+            }
+        }
+        boolean[] needed = getNeededKeys(sectorIndex, keys,
+                mACCache.get(sectorIndex));
+        searchKeys[0] &= needed[0];
+        searchKeys[1] &= needed[1];
+    }
+
+    /**
+     * Check which of the missing keys are needed for the mapping goal
+     * (see {@link #setMappingGoal(MappingGoal, HashMap)}).
+     * Operations that are never allowed do not need a key.
+     * @param sectorIndex The sector.
+     * @param keys The keys (A/B) found so far ("null" if not found).
+     * @param acMatrix The Access Conditions of the sector
+     * (see {@link Common#acBytesToACMatrix(byte[])}) or "null"
+     * if unknown.
+     * @return Key A and key B needed (true) or not (false). If the Access
+     * Conditions are unknown, every missing key is needed.
+     */
+    private boolean[] getNeededKeys(int sectorIndex, byte[][] keys,
+            byte[][] acMatrix) {
+        boolean[] needed = new boolean[] {false, false};
+        int trailer = mMFC.getBlockCountInSector(sectorIndex) - 1;
+        int[] blocks;
+        if (mMappingGoal == MappingGoal.WriteBlocks) {
+            blocks = (mGoalPositions != null)
+                    ? mGoalPositions.get(sectorIndex) : null;
+            if (blocks == null) {
+                // Nothing to write in this sector.
+                return needed;
+            }
+        } else if (mMappingGoal == MappingGoal.WriteTrailer) {
+            blocks = new int[] {trailer};
+        } else {
+            blocks = new int[trailer];
+            for (int i = 0; i < trailer; i++) {
+                blocks[i] = i;
+            }
+        }
+        if (acMatrix == null) {
+            needed[0] = keys[0] == null;
+            needed[1] = keys[1] == null;
+            return needed;
+        }
+        boolean keyBReadable = Common.isKeyBReadable(
+                acMatrix[0][3], acMatrix[1][3], acMatrix[2][3]);
+
+        ArrayList<Common.Operations> ops = new ArrayList<Common.Operations>();
+        for (int block : blocks) {
+            ops.clear();
+            if (block == trailer) {
+                ops.add(Common.Operations.WriteAC);
+                ops.add(Common.Operations.WriteKeyA);
+                if (mMappingGoal == MappingGoal.WriteTrailer) {
+                    ops.add(Common.Operations.WriteKeyB);
+                }
+            } else if (mMappingGoal == MappingGoal.ReadData) {
+                ops.add(Common.Operations.Read);
+            } else {
+                ops.add(Common.Operations.Write);
+            }
+            int column = getACColumn(sectorIndex, block);
+            for (Common.Operations op : ops) {
+                int info = Common.getOperationInfoForBlock(
+                        acMatrix[0][column], acMatrix[1][column],
+                        acMatrix[2][column], op, block == trailer,
+                        keyBReadable);
+                if (info == 1 && keys[0] == null) {
+                    needed[0] = true;
+                } else if (info == 2 && keys[1] == null) {
+                    needed[1] = true;
+                } else if (info == 3 && keys[0] == null && keys[1] == null) {
+                    needed[0] = true;
+                    needed[1] = true;
+                }
+            }
+        }
+        return needed;
+    }
+
+    /**
+     * Decode the Access Conditions of a sector trailer and store them in
+     * the Access Condition cache (see {@link #getACCache()}).
+     * @param sectorIndex The sector of the trailer.
+     * @param trailer The 16 byte of the sector trailer.
+     * @return The Access Conditions (see
+     * {@link Common#acBytesToACMatrix(byte[])}) or "null" if they
+     * are invalid (e.g. because the trailer was read with a key B
+     * that can not read data). Invalid Access Conditions are not cached.
+     */
+    private byte[][] cacheAC(int sectorIndex, byte[] trailer) {
+        byte[][] acMatrix = Common.acBytesToACMatrix(
+                Arrays.copyOfRange(trailer, 6, 9));
+        if (acMatrix != null) {
+            mACCache.put(sectorIndex, acMatrix);
+        }
+        return acMatrix;
+    }
+
+    /**
+     * Read the sector trailer of the currently authenticated sector
+     * and cache its Access Conditions. Errors will be ignored
+     * (except a lost tag).
+     * @param sectorIndex The authenticated sector.
+     * @throws TagLostException When tag is lost.
+     */
+    private void readACWhileAuthenticated(int sectorIndex)
+            throws TagLostException {
+        int trailer = mMFC.sectorToBlock(sectorIndex)
+                + mMFC.getBlockCountInSector(sectorIndex) - 1;
+        try {
+            cacheAC(sectorIndex, mMFC.readBlock(trailer));
+        } catch (TagLostException e) {
+            invalidateAuthentication();
+            throw e;
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "Error while reading Access Conditions.");
+            invalidateAuthentication();
+        }
+    }
+
+    /**
+     * Read key B from the sector trailer. This must be called directly
+     * after a successful authentication with key A to the same sector.
+     * If the access conditions allow reading key B, the key
+     * (byte 10-15 of the sector trailer) will be verified with
+     * one authentication.
+     * @param sectorIndex The sector.
+     * @return Key B or "null" if key B is not readable or not valid
+     * for authentication.
+     * @throws TagLostException When tag is lost.
+     */
+    private byte[] readKeyBFromTrailer(int sectorIndex)
+            throws TagLostException {
+        int trailer = mMFC.sectorToBlock(sectorIndex)
+                + mMFC.getBlockCountInSector(sectorIndex) - 1;
+        try {
+            byte[] data = mMFC.readBlock(trailer);
+            cacheAC(sectorIndex, data);
+            if (!isKeyBReadable(Arrays.copyOfRange(data, 6, 10))) {
+                return null;
+            }
+            byte[] keyB = Arrays.copyOfRange(data, 10, 16);
+            if (authenticateOrThrow(sectorIndex, keyB, true)) {
+                return keyB;
+            }
+        } catch (TagLostException e) {
+            invalidateAuthentication();
+            throw e;
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "Error while reading key B from sector trailer.");
+            invalidateAuthentication();
+        }
+        return null;
     }
 
     /**
@@ -666,9 +2543,9 @@ public class MCReader {
         byte c2 = (byte) ((ac[2] & 0x08) >>> 3);
         byte c3 = (byte) ((ac[2] & 0x80) >>> 7);
         if (c1 == 0
-                && (c2 == 0 && c3 == 0)
+                && ((c2 == 0 && c3 == 0)
                 || (c2 == 1 && c3 == 0)
-                || (c2 == 0 && c3 == 1)) {
+                || (c2 == 0 && c3 == 1))) {
             return true;
         }
         return false;
@@ -746,6 +2623,7 @@ public class MCReader {
      * Connect the reader to the tag.
      */
     public void connect() {
+        invalidateAuthentication();
         try {
             mMFC.connect();
         } catch (IOException e) {
@@ -757,6 +2635,7 @@ public class MCReader {
      * Close the connection between reader an tag.
      */
     public void close() {
+        invalidateAuthentication();
         try {
             mMFC.close();
         }
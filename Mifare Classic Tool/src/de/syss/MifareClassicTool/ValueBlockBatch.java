@@ -0,0 +1,212 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import android.util.SparseArray;
+
+/**
+ * A batch of value block operations (increment, decrement, restore),
+ * each followed by a transfer of the result to a block of the same sector.
+ * The operations are kept grouped by sector (ascending, in the order they
+ * were added within a sector), so executing the batch needs only one
+ * authentication per sector. Unlike writing the whole value block,
+ * these operations only change the value.
+ * This is an API for callers that change values of many tags (e.g. top-ups
+ * or resets); there is no Activity for it yet.
+ * @see MCReader#executeValueBlockBatch(ValueBlockBatch, SparseArray)
+ * @see Common#isValueBlock(String)
+ */
+public class ValueBlockBatch {
+
+    /**
+     * The operations on value blocks.
+     * A restore copies the value of a block (e.g. a backup block).
+     */
+    public enum Operation {
+        Increment, Decrement, Restore
+    }
+
+    private final List<Step> mSteps = new ArrayList<Step>();
+
+    /**
+     * A single operation of a {@link ValueBlockBatch}.
+     */
+    public static class Step {
+        private final int mSector;
+        private final int mBlock;
+        private final Operation mOperation;
+        private final int mValue;
+        private final int mTransferBlock;
+
+        private Step(int sector, int block, Operation operation, int value,
+                int transferBlock) {
+            mSector = sector;
+            mBlock = block;
+            mOperation = operation;
+            mValue = value;
+            mTransferBlock = transferBlock;
+        }
+
+        /**
+         * @return The sector of the blocks.
+         */
+        public int getSector() {
+            return mSector;
+        }
+
+        /**
+         * @return The value block (within the sector) to operate on.
+         */
+        public int getBlock() {
+            return mBlock;
+        }
+
+        /**
+         * @return The operation.
+         */
+        public Operation getOperation() {
+            return mOperation;
+        }
+
+        /**
+         * @return The value to increment/decrement by
+         * (always 0 for {@link Operation#Restore}).
+         */
+        public int getValue() {
+            return mValue;
+        }
+
+        /**
+         * @return The block (within the sector) the result
+         * is transferred to.
+         */
+        public int getTransferBlock() {
+            return mTransferBlock;
+        }
+
+        /**
+         * Get the value the transfer block should have after this step.
+         * @param oldValue The value of {@link #getBlock()} before this step.
+         * @return The expected value.
+         */
+        public int getExpectedValue(int oldValue) {
+            switch (mOperation) {
+            case Increment:
+                return oldValue + mValue;
+            case Decrement:
+                return oldValue - mValue;
+            default:
+                return oldValue;
+            }
+        }
+    }
+
+    /**
+     * Add an increment of a value block (the result is written back
+     * to the same block).
+     * @param sector The sector.
+     * @param block The value block (within the sector).
+     * @param value The value to add (not negative).
+     * @return True if the operation was added. False if the block is
+     * a sector trailer or the value is negative.
+     */
+    public boolean increment(int sector, int block, int value) {
+        return add(sector, block, Operation.Increment, value, block);
+    }
+
+    /**
+     * Add a decrement of a value block (the result is written back
+     * to the same block).
+     * @param sector The sector.
+     * @param block The value block (within the sector).
+     * @param value The value to subtract (not negative).
+     * @return True if the operation was added. False if the block is
+     * a sector trailer or the value is negative.
+     */
+    public boolean decrement(int sector, int block, int value) {
+        return add(sector, block, Operation.Decrement, value, block);
+    }
+
+    /**
+     * Add a restore of a value block to another block of the same
+     * sector (e.g. reset a value from its backup block).
+     * @param sector The sector.
+     * @param block The value block to restore from (within the sector).
+     * @param transferBlock The block to restore to (within the sector).
+     * @return True if the operation was added. False if one of the
+     * blocks is a sector trailer.
+     */
+    public boolean restore(int sector, int block, int transferBlock) {
+        return add(sector, block, Operation.Restore, 0, transferBlock);
+    }
+
+    /**
+     * Add an operation. The operation is inserted after all other
+     * operations of the same sector.
+     * @param sector The sector.
+     * @param block The value block (within the sector).
+     * @param operation The operation.
+     * @param value The value to increment/decrement by (not negative,
+     * ignored for {@link Operation#Restore}).
+     * @param transferBlock The block (within the sector) the result is
+     * transferred to.
+     * @return True if the operation was added. False if one of the
+     * blocks is a sector trailer or the value is negative.
+     */
+    public boolean add(int sector, int block, Operation operation, int value,
+            int transferBlock) {
+        int trailer = (sector < 32) ? 3 : 15;
+        if (sector < 0 || block < 0 || block >= trailer
+                || transferBlock < 0 || transferBlock >= trailer) {
+            return false;
+        }
+        if (operation == Operation.Restore) {
+            value = 0;
+        } else if (value < 0) {
+            return false;
+        }
+        int i = mSteps.size();
+        while (i > 0 && mSteps.get(i-1).getSector() > sector) {
+            i--;
+        }
+        mSteps.add(i, new Step(sector, block, operation, value,
+                transferBlock));
+        return true;
+    }
+
+    /**
+     * Get the operations in the order they should be executed
+     * (grouped by sector).
+     * @return The operations of this batch.
+     */
+    public List<Step> getSteps() {
+        return Collections.unmodifiableList(mSteps);
+    }
+
+    /**
+     * @return The number of operations.
+     */
+    public int size() {
+        return mSteps.size();
+    }
+}
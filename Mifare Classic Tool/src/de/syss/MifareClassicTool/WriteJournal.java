@@ -0,0 +1,336 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * An append-only journal of the blocks written by a {@link WritePlan}.
+ * There is one journal file per tag (UID). The first line describes the
+ * write session: "session session-id UID plan-hash step-count".
+ * Before a block is written, a line
+ * "begin session-id step sector block data-hash" is appended and after the
+ * block was written successfully the same line starting with "done"
+ * follows. Every line is flushed directly.<br /><br />
+ * If writing stops (e.g. because the tag was removed), the journal stays.
+ * When the same plan is written to the same tag again, writing resumes
+ * at the first step that was not confirmed (see
+ * {@link #begin(MCReader, String, WritePlan)}). After the plan was
+ * written completely, the journal will be deleted.
+ */
+public class WriteJournal {
+
+    /**
+     * File extension of the journal files.
+     */
+    public static final String FILE_EXTENSION = ".journal";
+
+    private static final String LOG_TAG = WriteJournal.class.getSimpleName();
+
+    private final File mDir;
+    private File mFile;
+    private BufferedWriter mWriter;
+    private String mSessionId;
+    private List<WritePlan.Step> mSteps;
+    private int mFirstStep;
+
+    /**
+     * Initialize a write journal.
+     * @param dir Directory in which the journals are stored.
+     * It will be created on the first write.
+     */
+    public WriteJournal(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Start (or resume) writing a plan to a tag. If there is a journal
+     * of an interrupted session with the same plan for this tag, the
+     * first step that was not confirmed will be returned. Before that,
+     * one block will be read back from the tag: the block that was being
+     * written when the session was interrupted (maybe it was written
+     * anyway) or otherwise the last confirmed block (to make sure the tag
+     * was not changed in the meantime). If the last confirmed block
+     * does not match, a new session will be started.
+     * @param reader A connected {@link MCReader} of the tag.
+     * @param uid The UID of the tag (hex string).
+     * @param plan The plan to write.
+     * @return The index of the first step of the plan that must be
+     * written (see {@link WritePlan#getSteps()}).
+     */
+    public int begin(MCReader reader, String uid, WritePlan plan) {
+        close();
+        mSteps = plan.getSteps();
+        mFile = new File(mDir, uid + FILE_EXTENSION);
+        String planHash = String.format("%08X", getPlanHash(mSteps));
+        mFirstStep = 0;
+        boolean inFlight = false;
+
+        // Load the journal of the last session.
+        BufferedReader br = null;
+        if (mFile.exists()) {
+            try {
+                br = new BufferedReader(new FileReader(mFile));
+                String line = br.readLine();
+                String[] header = (line != null) ? line.split(" ") : null;
+                if (header != null && header.length == 5
+                        && header[0].equals("session")
+                        && header[2].equals(uid)
+                        && header[3].equals(planHash)
+                        && header[4].equals(String.valueOf(mSteps.size()))) {
+                    mSessionId = header[1];
+                    while ((line = br.readLine()) != null) {
+                        String[] fields = line.split(" ");
+                        if (fields.length != 6
+                                || !fields[1].equals(mSessionId)
+                                || !fields[2].equals(
+                                        String.valueOf(mFirstStep))
+                                || !matches(fields, mSteps.get(mFirstStep))) {
+                            continue;
+                        }
+                        if (fields[0].equals("begin")) {
+                            inFlight = true;
+                        } else if (fields[0].equals("done")) {
+                            inFlight = false;
+                            mFirstStep++;
+                            if (mFirstStep == mSteps.size()) {
+                                break;
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error while reading write journal.", e);
+                mFirstStep = 0;
+            } finally {
+                if (br != null) {
+                    try {
+                        br.close();
+                    } catch (IOException e) {
+                        Log.e(LOG_TAG, "Error while closing file.", e);
+                    }
+                }
+            }
+        }
+
+        // Read back a single block.
+        if (inFlight && mFirstStep < mSteps.size()
+                && isOnTag(reader, mSteps.get(mFirstStep))) {
+            // The interrupted write was successful.
+            mFirstStep++;
+            append("done", mFirstStep - 1);
+        } else if (!inFlight && mFirstStep > 0
+                && !isOnTag(reader, mSteps.get(mFirstStep - 1))) {
+            // Tag was changed. Start all over.
+            mFirstStep = 0;
+        }
+
+        if (mFirstStep == 0) {
+            // Start a new session.
+            mSessionId = Long.toHexString(System.currentTimeMillis());
+            if (!mDir.exists() && !mDir.mkdirs()) {
+                Log.e(LOG_TAG, "Error while creating write journal "
+                        + "directory.");
+                return 0;
+            }
+            if (open(false)) {
+                writeLine("session " + mSessionId + " " + uid + " "
+                        + planHash + " " + mSteps.size());
+            }
+        } else {
+            Log.d(LOG_TAG, "Resuming interrupted write at step "
+                    + mFirstStep + ".");
+        }
+        return mFirstStep;
+    }
+
+    /**
+     * Get the step at which the current session started.
+     * @return The step returned by
+     * {@link #begin(MCReader, String, WritePlan)}. It is greater than 0
+     * if an interrupted session was resumed.
+     */
+    public int getFirstStep() {
+        return mFirstStep;
+    }
+
+    /**
+     * Log that a step is about to be written.
+     * @param step The index of the step (see {@link WritePlan#getSteps()}).
+     */
+    public void beforeWrite(int step) {
+        append("begin", step);
+    }
+
+    /**
+     * Log that a step was written successfully.
+     * @param step The index of the step (see {@link WritePlan#getSteps()}).
+     */
+    public void afterWrite(int step) {
+        append("done", step);
+    }
+
+    /**
+     * Finish the session after all steps were written. The journal
+     * will be deleted.
+     */
+    public void finish() {
+        close();
+        if (mFile != null && mFile.exists() && !mFile.delete()) {
+            Log.e(LOG_TAG, "Error while deleting write journal.");
+        }
+    }
+
+    /**
+     * Close the journal file (e.g. after an error while writing to the tag).
+     * The journal will be kept, so the session can be resumed.
+     */
+    public void close() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error while closing file.", e);
+            }
+            mWriter = null;
+        }
+    }
+
+    /**
+     * Append a "begin" or "done" line for a step to the journal.
+     * @param type "begin" or "done".
+     * @param step The index of the step.
+     */
+    private void append(String type, int step) {
+        if (mWriter == null && !open(true)) {
+            return;
+        }
+        WritePlan.Step s = mSteps.get(step);
+        writeLine(type + " " + mSessionId + " " + step + " " + s.getSector()
+                + " " + s.getBlock() + " " + getDataHash(s.getData()));
+    }
+
+    /**
+     * Open the journal file for writing.
+     * @param append If true, lines will be appended. Otherwise the
+     * file will be overwritten.
+     * @return True if the file was opened. False otherwise.
+     */
+    private boolean open(boolean append) {
+        close();
+        try {
+            mWriter = new BufferedWriter(new FileWriter(mFile, append));
+            return true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while opening write journal.", e);
+        }
+        return false;
+    }
+
+    /**
+     * Write and flush a line to the journal file. On error, the journal
+     * will be closed (writing to the tag goes on without journal).
+     * @param line The line to write.
+     */
+    private void writeLine(String line) {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            mWriter.write(line);
+            mWriter.newLine();
+            mWriter.flush();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while writing to write journal.", e);
+            close();
+        }
+    }
+
+    /**
+     * Check if a "begin" or "done" line belongs to a step.
+     * @param fields The fields of the line.
+     * @param step The step.
+     * @return True if sector, block and data hash match. False otherwise.
+     */
+    private static boolean matches(String[] fields, WritePlan.Step step) {
+        return fields[3].equals(String.valueOf(step.getSector()))
+                && fields[4].equals(String.valueOf(step.getBlock()))
+                && fields[5].equals(getDataHash(step.getData()));
+    }
+
+    /**
+     * Check if the data of a step is on the tag. Data blocks are compared
+     * directly. Sector trailers can not be read completely, so a sector
+     * trailer counts as written if the tag accepts the new keys
+     * and has the new Access Conditions.
+     * @param reader A connected {@link MCReader}.
+     * @param step The step to check.
+     * @return True if the data of the step is on the tag. False otherwise.
+     */
+    private static boolean isOnTag(MCReader reader, WritePlan.Step step) {
+        byte[] data = step.getData();
+        int trailer = reader.getBlockCountInSector(step.getSector()) - 1;
+        if (step.getBlock() != trailer) {
+            byte[] current = reader.readBlock(step.getSector(),
+                    step.getBlock(), step.getKey(), step.isKeyB());
+            return Arrays.equals(current, data);
+        }
+        // Sector trailer. Authenticate with the new key.
+        byte[] newKey = (step.isKeyB()) ? Arrays.copyOfRange(data, 10, 16)
+                : Arrays.copyOfRange(data, 0, 6);
+        byte[] current = reader.readBlock(step.getSector(), trailer,
+                newKey, step.isKeyB());
+        return current != null && Arrays.equals(
+                Arrays.copyOfRange(current, 6, 10),
+                Arrays.copyOfRange(data, 6, 10));
+    }
+
+    /**
+     * Get the hash of the data of a block.
+     * @param data The data.
+     * @return The hash as hex string.
+     */
+    private static String getDataHash(byte[] data) {
+        return String.format("%08X", Arrays.hashCode(data));
+    }
+
+    /**
+     * Get the hash of a plan (positions and data of all steps).
+     * @param steps The steps of the plan.
+     * @return The hash.
+     */
+    private static int getPlanHash(List<WritePlan.Step> steps) {
+        int hash = 1;
+        for (WritePlan.Step step : steps) {
+            hash = 31 * hash + step.getSector();
+            hash = 31 * hash + step.getBlock();
+            hash = 31 * hash + Arrays.hashCode(step.getData());
+        }
+        return hash;
+    }
+}
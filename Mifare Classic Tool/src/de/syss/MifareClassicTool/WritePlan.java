@@ -0,0 +1,315 @@
+/*
+ * Copyright 2013 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import android.util.SparseArray;
+
+/**
+ * The order in which the blocks of a dump are written to a tag.
+ * The blocks are ordered by sector. Within a sector, all blocks that are
+ * written with the same key are grouped together and the sector trailer
+ * is always written last (after it is written the keys and
+ * Access Conditions of the sector may have changed). The group with
+ * the key that is also needed for the sector trailer comes second, so
+ * a sector needs at most two authentications.
+ * Every step of the plan carries the key it needs
+ * (see {@link Step#getKey()}).
+ * @see MCReader#isWritableOnPositions(HashMap, SparseArray)
+ */
+public class WritePlan {
+
+    private final List<Step> mSteps = new ArrayList<Step>();
+    private int mAuthCount;
+    private int mWrittenCount;
+
+    /**
+     * A single block write of a {@link WritePlan}.
+     */
+    public static class Step {
+        private final int mSector;
+        private final int mBlock;
+        private final byte[] mData;
+        private final byte[] mKey;
+        private final boolean mUseAsKeyB;
+
+        private Step(int sector, int block, byte[] data, byte[] key,
+                boolean useAsKeyB) {
+            mSector = sector;
+            mBlock = block;
+            mData = data;
+            mKey = key;
+            mUseAsKeyB = useAsKeyB;
+        }
+
+        /**
+         * @return The sector to write to.
+         */
+        public int getSector() {
+            return mSector;
+        }
+
+        /**
+         * @return The block (within the sector) to write to.
+         */
+        public int getBlock() {
+            return mBlock;
+        }
+
+        /**
+         * @return The 16 byte of data to write.
+         */
+        public byte[] getData() {
+            return mData;
+        }
+
+        /**
+         * @return The key to authenticate with.
+         */
+        public byte[] getKey() {
+            return mKey;
+        }
+
+        /**
+         * @return True if {@link #getKey()} is key B. False if it is key A.
+         */
+        public boolean isKeyB() {
+            return mUseAsKeyB;
+        }
+    }
+
+    /**
+     * Create a write plan.
+     * @param writeOnPos A map within a map (all with type = Integer).
+     * The key of the outer map is the sector number and the value is another
+     * map with key = block number and value = write information
+     * (see {@link MCReader#isWritableOnPositions(HashMap, SparseArray)}).
+     * Only blocks with the write information 1 - 6 will be written.
+     * Blocks with write information 3 (key A or B) will be written with
+     * the key that is needed anyway.
+     * @param data The data to write (key = sector, value = map with
+     * key = block and value = 16 byte of data).
+     * @param keyMap A key map generated by
+     * {@link de.syss.MifareClassicTool.Activities.CreateKeyMapActivity}.
+     */
+    public WritePlan(HashMap<Integer, HashMap<Integer, Integer>> writeOnPos,
+            HashMap<Integer, HashMap<Integer, byte[]>> data,
+            SparseArray<byte[][]> keyMap) {
+        List<Integer> sectors = new ArrayList<Integer>(writeOnPos.keySet());
+        Collections.sort(sectors);
+        for (int sector : sectors) {
+            HashMap<Integer, Integer> blocks = writeOnPos.get(sector);
+            byte[][] keys = keyMap.get(sector);
+            if (blocks == null || keys == null || data.get(sector) == null) {
+                continue;
+            }
+            int trailer = (sector < 32) ? 3 : 15;
+
+            // Group the blocks by the key they need
+            // (0 = key A, 1 = key B, 2 = any key).
+            List<List<Integer>> groups = new ArrayList<List<Integer>>(3);
+            for (int i = 0; i < 3; i++) {
+                groups.add(new ArrayList<Integer>());
+            }
+            int trailerKey = -1;
+            List<Integer> sorted = new ArrayList<Integer>(blocks.keySet());
+            Collections.sort(sorted);
+            for (int block : sorted) {
+                int keyType = getKeyType(blocks.get(block), keys);
+                if (keyType == -1 || data.get(sector).get(block) == null) {
+                    continue;
+                }
+                if (block == trailer) {
+                    trailerKey = keyType;
+                } else {
+                    groups.get(keyType).add(block);
+                }
+            }
+
+            // The key that is used last (for the sector trailer and
+            // the blocks that can be written with any key).
+            int last;
+            if (trailerKey == 0 || trailerKey == 1) {
+                last = trailerKey;
+            } else if (groups.get(0).isEmpty() && !groups.get(1).isEmpty()) {
+                last = 1;
+            } else if (!groups.get(0).isEmpty()) {
+                last = 0;
+            } else {
+                last = (keys[0] != null) ? 0 : 1;
+            }
+            int first = 1 - last;
+            int sectorAuths = 0;
+            if (!groups.get(first).isEmpty()) {
+                addSteps(sector, groups.get(first), keys[first], first == 1,
+                        data.get(sector));
+                sectorAuths++;
+            }
+            List<Integer> lastGroup = groups.get(last);
+            lastGroup.addAll(groups.get(2));
+            Collections.sort(lastGroup);
+            if (trailerKey != -1) {
+                lastGroup.add(trailer);
+            }
+            if (!lastGroup.isEmpty()) {
+                addSteps(sector, lastGroup, keys[last], last == 1,
+                        data.get(sector));
+                sectorAuths++;
+            }
+            mAuthCount += sectorAuths;
+        }
+    }
+
+    /**
+     * Get the write steps in the order they should be executed.
+     * @return The steps of this plan.
+     */
+    public List<Step> getSteps() {
+        return Collections.unmodifiableList(mSteps);
+    }
+
+    /**
+     * Get the number of authentications needed to execute this plan.
+     * @return Number of authentications (one for every change of sector
+     * or key).
+     */
+    public int getAuthenticationCount() {
+        return mAuthCount;
+    }
+
+    /**
+     * Get the number of steps that were written by the last execution
+     * of this plan (see {@link #execute(MCReader, WriteJournal, String)}).
+     * If the execution resumed an interrupted one, the steps written
+     * before are included.
+     * @return Number of written steps (all steps if everything
+     * went fine).
+     */
+    public int getWrittenCount() {
+        return mWrittenCount;
+    }
+
+    /**
+     * Execute this plan (write all steps to the tag). Writing stops
+     * at the first error.
+     * @param reader A connected {@link MCReader}.
+     * @return 0 if everything went fine. Otherwise the return code of
+     * {@link MCReader#writeBlock(int, int, byte[], byte[], boolean)}
+     * for the step that failed.
+     * @see #execute(MCReader, WriteJournal, String)
+     */
+    public int execute(MCReader reader) {
+        return execute(reader, null, null);
+    }
+
+    /**
+     * Execute this plan and log every step in a {@link WriteJournal}.
+     * If an earlier execution of this plan on the same tag was
+     * interrupted, writing resumes where it stopped
+     * (see {@link WriteJournal#begin(MCReader, String, WritePlan)}).
+     * Writing stops at the first error.
+     * @param reader A connected {@link MCReader}.
+     * @param journal The journal to log the steps in or "null".
+     * @param uid The UID of the tag (hex string).
+     * @return 0 if everything went fine. Otherwise the return code of
+     * {@link MCReader#writeBlock(int, int, byte[], byte[], boolean)}
+     * for the step that failed.
+     * @see #getWrittenCount()
+     */
+    public int execute(MCReader reader, WriteJournal journal, String uid) {
+        int first = 0;
+        if (journal != null) {
+            first = journal.begin(reader, uid, this);
+        }
+        mWrittenCount = first;
+        for (int i = first; i < mSteps.size(); i++) {
+            Step step = mSteps.get(i);
+            if (journal != null) {
+                journal.beforeWrite(i);
+            }
+            int result = reader.writeBlock(step.getSector(), step.getBlock(),
+                    step.getData(), step.getKey(), step.isKeyB());
+            if (result != 0) {
+                if (journal != null) {
+                    journal.close();
+                }
+                return result;
+            }
+            mWrittenCount++;
+            if (journal != null) {
+                journal.afterWrite(i);
+            }
+        }
+        if (journal != null) {
+            journal.finish();
+        }
+        return 0;
+    }
+
+    /**
+     * Add a group of blocks that are written with the same key.
+     * @param sector The sector of the blocks.
+     * @param blocks The blocks.
+     * @param key The key.
+     * @param useAsKeyB True if the key is key B.
+     * @param data The data of the sector (key = block,
+     * value = 16 byte of data).
+     */
+    private void addSteps(int sector, List<Integer> blocks, byte[] key,
+            boolean useAsKeyB, HashMap<Integer, byte[]> data) {
+        for (int block : blocks) {
+            mSteps.add(new Step(sector, block, data.get(block), key,
+                    useAsKeyB));
+        }
+    }
+
+    /**
+     * Get the key needed for writing a block.
+     * @param writeInfo The write information of the block
+     * (see {@link MCReader#isWritableOnPositions(HashMap, SparseArray)}).
+     * @param keys Key A and key B of the sector.
+     * @return 0 = key A, 1 = key B, 2 = any key or -1 if the block
+     * can not be written with the known keys.
+     */
+    private static int getKeyType(Integer writeInfo, byte[][] keys) {
+        if (writeInfo == null) {
+            return -1;
+        }
+        switch (writeInfo) {
+        case 1:
+        case 4:
+            return (keys[0] != null) ? 0 : -1;
+        case 2:
+        case 5:
+        case 6:
+            return (keys[1] != null) ? 1 : -1;
+        case 3:
+            if (keys[0] != null && keys[1] != null) {
+                return 2;
+            }
+            return (keys[0] != null) ? 0 : (keys[1] != null) ? 1 : -1;
+        default:
+            return -1;
+        }
+    }
+}